@@ -0,0 +1,113 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.DropZoneApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Boots the real application (no web server) against a throw-away database and storage folder,
+// so benchmarks go through the same beans, SQLite driver and Hibernate setup as production.
+final class BenchmarkApplication {
+
+    private BenchmarkApplication() {
+    }
+
+    static ConfigurableApplicationContext start(Path workDir, String... properties) {
+        return new SpringApplicationBuilder(DropZoneApplication.class)
+                .web(WebApplicationType.NONE)
+                .logStartupInfo(false)
+                .run(arguments(workDir, List.of(), properties));
+    }
+
+    // Bulk-loads 'files' rows through plain JDBC (going through JPA would take longer than most
+    // benchmarks themselves), 10k rows per batch, in one transaction.
+    static void insertFiles(ConfigurableApplicationContext context, String[] ids, String[] storageNames,
+                            LocalDateTime expiryTime) {
+        JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        Timestamp expiry = Timestamp.valueOf(expiryTime);
+        context.getBean(TransactionTemplate.class).executeWithoutResult(status -> {
+            int batch = 10000;
+            for (int from = 0; from < ids.length; from += batch) {
+                int start = from;
+                int end = Math.min(ids.length, from + batch);
+                jdbc.batchUpdate("""
+                                INSERT INTO files (id, original_filename, storage_name, size, content_type,
+                                                   max_downloads, download_count, upload_time, expiry_time,
+                                                   encryption_key, password, is_encrypted)
+                                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                                """,
+                        new BatchPreparedStatementSetter() {
+                            @Override
+                            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                                int row = start + i;
+                                ps.setString(1, ids[row]);
+                                ps.setString(2, "file-" + row + ".pdf");
+                                ps.setString(3, storageNames[row]);
+                                ps.setLong(4, 1024);
+                                ps.setString(5, "application/pdf");
+                                ps.setInt(6, 5);
+                                ps.setInt(7, 0);
+                                ps.setTimestamp(8, now);
+                                ps.setTimestamp(9, expiry);
+                                ps.setString(10, null);
+                                ps.setString(11, null);
+                                ps.setBoolean(12, false);
+                            }
+
+                            @Override
+                            public int getBatchSize() {
+                                return end - start;
+                            }
+                        });
+            }
+        });
+    }
+
+    // Same, with the embedded Tomcat on a random port, for load tests that go through HTTP.
+    // Extra "key=value" properties override the defaults (e.g. spring.threads.virtual.enabled=false).
+    static ConfigurableApplicationContext startServer(Path workDir, String... properties) {
+        return new SpringApplicationBuilder(DropZoneApplication.class)
+                .web(WebApplicationType.SERVLET)
+                .logStartupInfo(false)
+                .run(arguments(workDir, List.of("server.address=127.0.0.1", "server.port=0"), properties));
+    }
+
+    // As command-line arguments: those win over application.properties. (Default properties, what
+    // SpringApplicationBuilder.properties() sets, lose to it: the benchmarks used to run on ./dropzone.db.)
+    private static String[] arguments(Path workDir, List<String> extra, String... properties) {
+        List<String> arguments = new ArrayList<>(List.of(
+                "spring.datasource.url=jdbc:sqlite:" + workDir.resolve("bench.db"),
+                "app.storage.location=" + workDir.resolve("uploads"),
+                "spring.jpa.show-sql=false",
+                "spring.main.banner-mode=off",
+                "logging.level.root=WARN"));
+        arguments.addAll(extra);
+        arguments.addAll(List.of(properties));
+        return arguments.stream().map(property -> "--" + property).toArray(String[]::new);
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
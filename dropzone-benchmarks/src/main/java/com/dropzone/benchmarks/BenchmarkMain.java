@@ -0,0 +1,25 @@
+package com.dropzone.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Entry point of benchmarks.jar. Same options as JMH's own Main, but results always go to a JSON file
+// (jmh-result.json unless -rff says otherwise) so runs can be compared between releases.
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-rf")) {
+            options.add("-rf");
+            options.add("json");
+        }
+        if (!options.contains("-rff")) {
+            options.add("-rff");
+            options.add("jmh-result.json");
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
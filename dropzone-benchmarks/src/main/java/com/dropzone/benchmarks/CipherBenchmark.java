@@ -0,0 +1,85 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.service.CipherService;
+import com.dropzone.api.service.EncryptedFileResource;
+import com.dropzone.api.service.SegmentedCipherEngine;
+import com.dropzone.api.service.TransferMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encrypt / decrypt throughput of the segmented AES-GCM engine, across segment (buffer) sizes and file sizes.
+// Score is operations per second: MB/s = score * fileSizeMb.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherBenchmark {
+
+    @Param({"65536", "262144", "1048576", "4194304"})
+    public int segmentSize;
+
+    @Param({"1", "64"})
+    public int fileSizeMb;
+
+    private CipherService cipherService;
+    private SegmentedCipherEngine engine;
+    private SecretKey key;
+    private byte[] data;
+    private Path workDir;
+    private Path encryptTarget;
+    private Path decryptSource;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        cipherService = new CipherService();
+        engine = new SegmentedCipherEngine(cipherService, DataSize.ofBytes(segmentSize), 0, 2,
+                new TransferMetrics(new SimpleMeterRegistry()));
+        key = cipherService.generateKey();
+        data = new byte[fileSizeMb << 20];
+        new Random(42).nextBytes(data);
+
+        workDir = Files.createTempDirectory("dz-cipher-bench");
+        encryptTarget = workDir.resolve("encrypt.bin");
+        decryptSource = workDir.resolve("decrypt.bin");
+        try (FileChannel channel = FileChannel.open(decryptSource, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            engine.encrypt(new ByteArrayInputStream(data), channel, key, engine.newHeader());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        BenchmarkApplication.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public long encrypt() throws IOException {
+        try (FileChannel channel = FileChannel.open(encryptTarget, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return engine.encrypt(new ByteArrayInputStream(data), channel, key, engine.newHeader());
+        }
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException {
+        EncryptedFileResource resource = new EncryptedFileResource(decryptSource, key, cipherService, engine, data.length);
+        try (InputStream in = resource.getInputStream()) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Metadata lookups (findById, what every download starts with) on a 1M-row table while the janitor
+// is busy: a background thread keeps expiring 20k rows and deleting them the way FileCleanupService
+// does (find what is past its deadline, DELETE ... WHERE id IN (500 ids) per transaction), then puts
+// them back. Sampled, so the result shows the tail (p99, p99.9) and not just the mean.
+//
+// journalMode=WAL is the production setup; DELETE is SQLite's classic rollback journal, in which
+// every write transaction locks the readers out until it commits.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+@Fork(1)
+public class CleanupContentionBenchmark {
+
+    private static final int ROWS = 1_000_000;
+    private static final int CHURN = 20_000; // Rows the janitor deletes (and we re-insert) per pass
+    private static final int DELETE_BATCH = 500; // Same slice as FileCleanupService
+
+    @Param({"WAL", "DELETE"})
+    public String journalMode;
+
+    private Path workDir;
+    private ConfigurableApplicationContext context;
+    private FileRepository fileRepository;
+    private String[] liveIds;
+    private Thread janitor;
+    private volatile long deletedRows;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("dz-cleanup-bench");
+        context = BenchmarkApplication.start(workDir, "app.db.journal-mode=" + journalMode);
+        fileRepository = context.getBean(FileRepository.class);
+
+        int live = ROWS - CHURN;
+        liveIds = new String[live];
+        String[] storageNames = new String[live];
+        for (int i = 0; i < live; i++) {
+            liveIds[i] = String.format("%06x", i);
+            storageNames[i] = UUID.randomUUID().toString();
+        }
+        BenchmarkApplication.insertFiles(context, liveIds, storageNames, LocalDateTime.now().plusDays(1));
+
+        janitor = new Thread(this::churn, "bench-janitor");
+        janitor.setDaemon(true);
+        janitor.start();
+    }
+
+    // Insert CHURN already-expired rows, delete them like the janitor, repeat until interrupted
+    private void churn() {
+        String[] ids = new String[CHURN];
+        String[] storageNames = new String[CHURN];
+        long pass = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            for (int i = 0; i < CHURN; i++) {
+                ids[i] = "x" + pass + "-" + i;
+                storageNames[i] = UUID.randomUUID().toString();
+            }
+            BenchmarkApplication.insertFiles(context, ids, storageNames, LocalDateTime.now().minusMinutes(1));
+
+            List<String> expired = fileRepository.findByExpiryTimeBefore(LocalDateTime.now()).stream()
+                    .map(FileMetadata::getId).toList();
+            for (int from = 0; from < expired.size(); from += DELETE_BATCH) {
+                fileRepository.deleteAllByIdInBatch(expired.subList(from, Math.min(expired.size(), from + DELETE_BATCH)));
+            }
+            deletedRows += expired.size();
+            pass++;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        janitor.interrupt();
+        janitor.join(TimeUnit.MINUTES.toMillis(1));
+        System.out.println("Janitor deleted " + deletedRows + " rows during the run (" + journalMode + ")");
+        context.close();
+        BenchmarkApplication.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Optional<FileMetadata> findByIdDuringCleanup() {
+        return fileRepository.findById(liveIds[ThreadLocalRandom.current().nextInt(liveIds.length)]);
+    }
+}
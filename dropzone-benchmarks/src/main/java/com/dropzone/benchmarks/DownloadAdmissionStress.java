@@ -0,0 +1,94 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import com.dropzone.api.service.FileMetadataCache;
+import com.dropzone.api.service.StorageService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Concurrency stress check for download admission (not a JMH benchmark: it passes or fails).
+// Thousands of clients hit the same link at once; some of them abort and give their slot back.
+// A link must never be served more often than maxDownloads, and the DB must end up with exactly
+// the number of downloads that were served.
+//
+//   java -cp dropzone-benchmarks/target/benchmarks.jar com.dropzone.benchmarks.DownloadAdmissionStress [clients] [rounds]
+public class DownloadAdmissionStress {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Path workDir = Files.createTempDirectory("dz-admission-stress");
+        ConfigurableApplicationContext context = BenchmarkApplication.start(workDir);
+        ExecutorService pool = Executors.newFixedThreadPool(256);
+        int failures = 0;
+        try {
+            StorageService storageService = context.getBean(StorageService.class);
+            Path source = workDir.resolve("source.txt");
+            Files.writeString(source, "one-time secret");
+
+            for (int round = 0; round < rounds; round++) {
+                int maxDownloads = round % 2 == 0 ? 1 : 1 + round;
+                String id = storageService.store(new FileMultipartFile(source, "secret.txt", "text/plain"),
+                        maxDownloads, 10, null).getId();
+
+                int served = burst(pool, storageService, id, clients);
+
+                context.getBean(FileMetadataCache.class).flushDownloadCounts();
+                FileMetadata row = context.getBean(FileRepository.class).findById(id).orElseThrow();
+
+                boolean ok = served <= maxDownloads && row.getDownloadCount() == served;
+                System.out.printf("round %2d  maxDownloads=%2d  served=%2d  db=%2d  %s%n",
+                        round, maxDownloads, served, row.getDownloadCount(), ok ? "OK" : "FAIL");
+                if (!ok) failures++;
+            }
+        } finally {
+            pool.shutdownNow();
+            context.close();
+            BenchmarkApplication.deleteRecursively(workDir);
+        }
+
+        if (failures > 0) {
+            System.err.println(failures + " round(s) over-served or lost a download");
+            System.exit(1);
+        }
+        System.out.println("No over-serving in " + rounds + " rounds of " + clients + " concurrent clients");
+    }
+
+    // Every client retries until it either completes a download or is turned away.
+    // 30% of reserved transfers "break off" and release their slot, like a client closing the tab.
+    private static int burst(ExecutorService pool, StorageService storageService, String id, int clients)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger served = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                while (storageService.tryReserveDownload(id)) {
+                    if (ThreadLocalRandom.current().nextInt(10) < 3) {
+                        storageService.releaseDownload(id);
+                    } else {
+                        served.incrementAndGet();
+                        break;
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) future.get();
+        return served.get();
+    }
+}
@@ -0,0 +1,66 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// FileRepository lookups on SQLite as the table grows from 10k to 1M rows
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    private Path workDir;
+    private ConfigurableApplicationContext context;
+    private FileRepository fileRepository;
+    private String[] ids;
+    private String[] storageNames;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("dz-repo-bench");
+        context = BenchmarkApplication.start(workDir);
+        fileRepository = context.getBean(FileRepository.class);
+
+        ids = new String[rows];
+        storageNames = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = String.format("%06x", i);
+            storageNames[i] = UUID.randomUUID().toString();
+        }
+
+        BenchmarkApplication.insertFiles(context, ids, storageNames, LocalDateTime.now().plusDays(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        BenchmarkApplication.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Optional<FileMetadata> findById() {
+        return fileRepository.findById(ids[ThreadLocalRandom.current().nextInt(rows)]);
+    }
+
+    @Benchmark
+    public boolean existsByStorageName() {
+        return fileRepository.existsByStorageName(storageNames[ThreadLocalRandom.current().nextInt(rows)]);
+    }
+}
@@ -0,0 +1,67 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.service.ShortIdAllocator;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// ShortIdAllocator throughput, single-threaded and across threads, with the id set already holding
+// 'live' ids. Every operation allocates an id and gives it back, so the set stays at its size however
+// many millions of ids a run goes through. The allocator is the application's own bean.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortIdBenchmark {
+
+    @Param({"0", "1000000"})
+    public int live;
+
+    private Path workDir;
+    private ConfigurableApplicationContext context;
+    private ShortIdAllocator allocator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("dz-ids-bench");
+        context = BenchmarkApplication.start(workDir);
+        allocator = context.getBean(ShortIdAllocator.class);
+        while (allocator.size() < live) allocator.allocate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        BenchmarkApplication.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String allocate() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String allocateContended() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String allocateHighlyContended() {
+        return cycle();
+    }
+
+    private String cycle() {
+        String id = allocator.allocate();
+        allocator.release(id);
+        return id;
+    }
+}
@@ -0,0 +1,147 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.service.StorageService;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Load test: a classroom of slow phones pulling the same file, platform threads vs. virtual threads.
+//
+// 'clients' downloads read at 'kbPerSecond' each and hold their connection for 'seconds'. Meanwhile a
+// prober calls /verify and /getIp in a loop. Reported per mode: how many downloads were being served at
+// the same time, and p50/p99 latency (plus timeouts) of the metadata endpoints.
+// Sendfile is switched off so every download occupies a request thread, like encrypted files do.
+//
+//   java -cp dropzone-benchmarks/target/benchmarks.jar com.dropzone.benchmarks.SlowClientLoadTest [clients] [seconds] [kbPerSecond]
+public class SlowClientLoadTest {
+
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int kbPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        for (boolean virtual : new boolean[]{false, true}) {
+            run(virtual, clients, seconds, kbPerSecond);
+        }
+    }
+
+    private static void run(boolean virtual, int clients, int seconds, int kbPerSecond) throws Exception {
+        Path workDir = Files.createTempDirectory("dz-slow-clients");
+        ConfigurableApplicationContext context = BenchmarkApplication.startServer(workDir,
+                "spring.threads.virtual.enabled=" + virtual,
+                "app.download.sendfile=false");
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            String base = "http://127.0.0.1:" + port + "/api/files/";
+
+            // Big enough that the socket buffers fill up and the server blocks on every slow client
+            byte[] data = new byte[32 << 20];
+            new Random(42).nextBytes(data);
+            Path source = workDir.resolve("lecture.mp4");
+            Files.write(source, data);
+            String id = context.getBean(StorageService.class)
+                    .store(new FileMultipartFile(source, "lecture.mp4", "video/mp4"), Integer.MAX_VALUE, 60, null)
+                    .getId();
+
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger maxActive = new AtomicInteger();
+            AtomicInteger served = new AtomicInteger();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+            List<Long> verify = Collections.synchronizedList(new ArrayList<>());
+            List<Long> getIp = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger timeouts = new AtomicInteger();
+
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < clients; i++) {
+                    pool.submit(() -> slowDownload(base + id, kbPerSecond, deadline, active, maxActive, served));
+                }
+                Thread.sleep(2000); // Let the downloads pile up before probing
+
+                while (System.nanoTime() < deadline) {
+                    probe(base + id + "/verify", "POST", verify, timeouts);
+                    probe(base + "getIp", "GET", getIp, timeouts);
+                    Thread.sleep(50);
+                }
+            }
+
+            System.out.printf("%-9s threads | %4d/%d downloads served concurrently (max %d) | "
+                            + "verify p50 %s p99 %s | getIp p50 %s p99 %s | %d probe timeouts%n",
+                    virtual ? "virtual" : "platform", served.get(), clients, maxActive.get(),
+                    millis(verify, 0.50), millis(verify, 0.99), millis(getIp, 0.50), millis(getIp, 0.99),
+                    timeouts.get());
+        } finally {
+            context.close();
+            BenchmarkApplication.deleteRecursively(workDir);
+        }
+    }
+
+    // Reads the download at a trickle until the deadline, then hangs up like a phone leaving the Wi-Fi
+    private static Void slowDownload(String url, int kbPerSecond, long deadline,
+                                     AtomicInteger active, AtomicInteger maxActive, AtomicInteger served) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+            connection.setReadTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (connection.getResponseCode() != 200) return null;
+
+            served.incrementAndGet();
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[1024];
+                while (System.nanoTime() < deadline && in.read(buffer) >= 0) {
+                    Thread.sleep(1000L / kbPerSecond);
+                }
+            } finally {
+                active.decrementAndGet();
+            }
+        } catch (IOException e) {
+            // Never got a response before the deadline: the server had no thread for us
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+        return null;
+    }
+
+    private static void probe(String url, String method, List<Long> latencies, AtomicInteger timeouts) {
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.getResponseCode();
+            connection.getInputStream().readAllBytes();
+            connection.disconnect();
+            latencies.add(System.nanoTime() - start);
+        } catch (IOException e) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    private static String millis(List<Long> latencies, double percentile) {
+        if (latencies.isEmpty()) return "n/a";
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return String.format("%.1fms", sorted.get(Math.max(0, index)) / 1e6);
+    }
+}
@@ -0,0 +1,220 @@
+package com.dropzone.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Startup benchmark: how long after launching the JVM the app answers its first request
+// (GET /api/files/getIp, what the page needs for its QR code) and finishes its first upload (the first
+// request that needs the database), for each way of starting it:
+//   default         java -jar, default settings
+//   fast-start      + the fast-start profile (lazy JPA, Flyway skipped when up to date, ids loaded in the
+//                   background) and the bean definitions precomputed by Spring AOT
+//   fast-start+cds  + a CDS archive of the loaded classes, written by a training run first
+// Every start is a fresh JVM on the same database: migrated, and holding 'files' rows like a busy box.
+// Reported: median and worst of 'runs' starts per mode.
+//
+//   mvn -Pfast-start package -DskipTests        (in the project root: the app jar + target/lib)
+//   java -cp dropzone-benchmarks/target/benchmarks.jar com.dropzone.benchmarks.StartupBenchmark [jar] [runs] [files]
+public class StartupBenchmark {
+
+    private static final long START_TIMEOUT_MS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        Path jar = Path.of(args.length > 0 ? args[0] : "target/DropZone-1.0-SNAPSHOT.jar").toAbsolutePath();
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        if (!Files.exists(jar.resolveSibling("lib"))) {
+            System.err.println("No " + jar.resolveSibling("lib") + ": build the app with mvn -Pfast-start package first");
+            return;
+        }
+
+        Path workDir = Files.createTempDirectory("dz-startup");
+        try {
+            // One start to create and migrate the database, then the rows every measured start finds
+            Path db = workDir.resolve("startup.db");
+            start(jar, workDir, List.of(), List.of()).stop();
+            insertFiles(db, files);
+
+            Path archive = workDir.resolve("dropzone.jsa");
+            List<String> aot = List.of("-Dspring.aot.enabled=true");
+            List<String> profile = List.of("--spring.profiles.active=fast-start");
+            train(jar, workDir, archive, aot, profile);
+
+            measure("default", jar, workDir, runs, List.of(), List.of());
+            measure("fast-start", jar, workDir, runs, aot, profile);
+            List<String> cds = new ArrayList<>(aot);
+            cds.add("-XX:SharedArchiveFile=" + archive);
+            measure("fast-start+cds", jar, workDir, runs, cds, profile);
+        } finally {
+            BenchmarkApplication.deleteRecursively(workDir);
+        }
+    }
+
+    private static void measure(String mode, Path jar, Path workDir, int runs,
+                                List<String> jvmOptions, List<String> appArgs) throws Exception {
+        List<Long> firstRequest = new ArrayList<>();
+        List<Long> firstUpload = new ArrayList<>();
+        for (int run = 0; run < runs; run++) {
+            App app = start(jar, workDir, jvmOptions, appArgs);
+            try {
+                firstRequest.add(app.firstRequestNanos);
+                upload(app.base + "stream?filename=hello.txt&minutes=1");
+                firstUpload.add(System.nanoTime() - app.launched);
+            } finally {
+                app.stop();
+            }
+        }
+        System.out.printf("%-15s | first request p50 %s max %s | first upload p50 %s max %s%n",
+                mode, millis(firstRequest, 0.50), millis(firstRequest, 1.0),
+                millis(firstUpload, 0.50), millis(firstUpload, 1.0));
+    }
+
+    // Starts the app once with -XX:ArchiveClassesAtExit: Spring stops right after the context has been
+    // refreshed (spring.context.exit=onRefresh) and the JVM writes every class it loaded to 'archive'
+    private static void train(Path jar, Path workDir, Path archive, List<String> jvmOptions,
+                              List<String> appArgs) throws Exception {
+        List<String> options = new ArrayList<>(jvmOptions);
+        options.add("-XX:ArchiveClassesAtExit=" + archive);
+        options.add("-Dspring.context.exit=onRefresh");
+        Process process = launch(jar, workDir, options, appArgs, freePort());
+        if (!process.waitFor(START_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new IllegalStateException("CDS training run did not finish, see " + workDir.resolve("app.log"));
+        }
+        if (!Files.exists(archive)) throw new IllegalStateException("No CDS archive written, see " + workDir.resolve("app.log"));
+    }
+
+    // Launches the app and polls until it answers; the time to that answer is the first-request time
+    private static App start(Path jar, Path workDir, List<String> jvmOptions, List<String> appArgs) throws Exception {
+        int port = freePort();
+        long launched = System.nanoTime();
+        Process process = launch(jar, workDir, jvmOptions, appArgs, port);
+        String base = "http://127.0.0.1:" + port + "/api/files/";
+        long deadline = launched + TimeUnit.MILLISECONDS.toNanos(START_TIMEOUT_MS);
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) throw new IllegalStateException("App exited, see " + workDir.resolve("app.log"));
+            if (answers(base + "getIp")) return new App(process, base, launched, System.nanoTime() - launched);
+            Thread.sleep(5);
+        }
+        process.destroyForcibly();
+        throw new IllegalStateException("App did not answer within " + START_TIMEOUT_MS + "ms");
+    }
+
+    private static Process launch(Path jar, Path workDir, List<String> jvmOptions, List<String> appArgs,
+                                  int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-jar");
+        command.add(jar.toString());
+        command.add("--server.address=127.0.0.1");
+        command.add("--server.port=" + port);
+        command.add("--spring.datasource.url=jdbc:sqlite:" + workDir.resolve("startup.db"));
+        command.add("--app.storage.location=" + workDir.resolve("uploads"));
+        command.add("--spring.main.banner-mode=off");
+        command.add("--logging.level.root=WARN");
+        command.addAll(appArgs);
+        return new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(workDir.resolve("app.log").toFile()))
+                .start();
+    }
+
+    private static boolean answers(String url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+            connection.setConnectTimeout(200);
+            connection.setReadTimeout((int) START_TIMEOUT_MS);
+            boolean ok = connection.getResponseCode() == 200;
+            connection.disconnect();
+            return ok;
+        } catch (IOException e) {
+            return false; // Not listening yet
+        }
+    }
+
+    private static void upload(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "text/plain");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("hello from the startup benchmark".getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        connection.getInputStream().readAllBytes();
+        connection.disconnect();
+        if (status != 200) throw new IOException("First upload failed: " + status);
+    }
+
+    // Rows without blobs, like BenchmarkApplication.insertFiles, through plain JDBC (the app isn't running)
+    private static void insertFiles(Path db, int files) throws Exception {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        Timestamp expiry = Timestamp.valueOf(LocalDateTime.now().plusDays(1));
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db)) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement("""
+                    INSERT INTO files (id, original_filename, storage_name, size, content_type,
+                                       max_downloads, download_count, upload_time, expiry_time,
+                                       encryption_key, password, is_encrypted)
+                    VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                    """)) {
+                for (int row = 0; row < files; row++) {
+                    insert.setString(1, String.format("s%05d", row));
+                    insert.setString(2, "file-" + row + ".pdf");
+                    insert.setString(3, UUID.randomUUID().toString());
+                    insert.setLong(4, 1024);
+                    insert.setString(5, "application/pdf");
+                    insert.setInt(6, 5);
+                    insert.setInt(7, 0);
+                    insert.setTimestamp(8, now);
+                    insert.setTimestamp(9, expiry);
+                    insert.setString(10, null);
+                    insert.setString(11, null);
+                    insert.setBoolean(12, false);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String millis(List<Long> nanos, double percentile) {
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return String.format("%.0fms", sorted.get(Math.max(0, index)) / 1e6);
+    }
+
+    private record App(Process process, String base, long launched, long firstRequestNanos) {
+
+        void stop() throws InterruptedException {
+            process.destroy(); // SIGTERM: a graceful shutdown, so SQLite and the WAL are left clean
+            if (!process.waitFor(30, TimeUnit.SECONDS)) process.destroyForcibly().waitFor();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.dropzone.benchmarks;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import com.dropzone.api.service.StorageService;
+import com.dropzone.api.service.StorageVolumes;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The full store() and loadAsResource() paths of FileSystemStorageService against a temp directory.
+// "text/plain" goes through encryption, "video/mp4" takes the unencrypted fast lane.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"1", "64"})
+    public int fileSizeMb;
+
+    @Param({"text/plain", "video/mp4"})
+    public String contentType;
+
+    // How the client side reads the download: 8KB (servlet default), 64KB (our I/O size), 1MB
+    @Param({"8192", "65536", "1048576"})
+    public int readBufferSize;
+
+    private Path workDir;
+    private ConfigurableApplicationContext context;
+    private StorageService storageService;
+    private FileRepository fileRepository;
+    private StorageVolumes volumes;
+    private FileMultipartFile upload;
+    private String storedId;
+    private FileMetadata lastStored;
+    private byte[] readBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("dz-storage-bench");
+        context = BenchmarkApplication.start(workDir);
+        storageService = context.getBean(StorageService.class);
+        fileRepository = context.getBean(FileRepository.class);
+        volumes = context.getBean(StorageVolumes.class);
+
+        byte[] data = new byte[fileSizeMb << 20];
+        new Random(42).nextBytes(data);
+        Path source = workDir.resolve("source.bin");
+        Files.write(source, data);
+        upload = new FileMultipartFile(source, "bench.bin", contentType);
+
+        storedId = storageService.store(upload, Integer.MAX_VALUE, 24 * 60, null).getId();
+        readBuffer = new byte[readBufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        context.close();
+        BenchmarkApplication.deleteRecursively(workDir);
+    }
+
+    // Don't let stored copies pile up on disk between invocations
+    @TearDown(Level.Invocation)
+    public void dropLastStored() throws IOException {
+        if (lastStored != null) {
+            volumes.delete(lastStored.getStorageName());
+            fileRepository.delete(lastStored);
+            lastStored = null;
+        }
+    }
+
+    @Benchmark
+    public FileMetadata store() throws IOException {
+        lastStored = storageService.store(upload, 1, 10, null);
+        return lastStored;
+    }
+
+    @Benchmark
+    public long loadAsResource() throws IOException {
+        Resource resource = storageService.loadAsResource(storedId);
+        long total = 0;
+        try (InputStream in = resource.getInputStream()) {
+            int n;
+            while ((n = in.read(readBuffer)) > 0) total += n;
+        }
+        return total;
+    }
+}
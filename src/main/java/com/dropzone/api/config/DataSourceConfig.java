@@ -0,0 +1,91 @@
+package com.dropzone.api.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Map;
+
+// SQLite tuned for many readers and one writer:
+//   - WAL journal: readers see the last committed state and never wait for a writer (a janitor
+//     deleting thousands of rows no longer stalls every download lookup), commits are appends.
+//   - Two pools: one writer connection (SQLite only ever lets one write at a time; more connections
+//     would just spin on SQLITE_BUSY) and a few query-only readers.
+//   - Read-only transactions (all repository reads: findById, the janitor's queries...) go to the
+//     readers, everything else to the writer. The connection is picked at the first statement, once
+//     the transaction's read-only flag is known (LazyConnectionDataSourceProxy).
+// The schema itself is owned by Flyway (see com.dropzone.api.migration and db/migration).
+@Configuration
+public class DataSourceConfig {
+
+    private static final String WRITER = "writer";
+    private static final String READER = "reader";
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource writerDataSource(@Value("${spring.datasource.url}") String url,
+                                             @Value("${app.db.journal-mode:WAL}") String journalMode,
+                                             @Value("${app.db.busy-timeout:5s}") Duration busyTimeout) {
+        return pool("dz-writer", sqlite(url, journalMode, busyTimeout), 1, false);
+    }
+
+    @Bean(destroyMethod = "close")
+    public HikariDataSource readerDataSource(@Value("${spring.datasource.url}") String url,
+                                             @Value("${app.db.journal-mode:WAL}") String journalMode,
+                                             @Value("${app.db.busy-timeout:5s}") Duration busyTimeout,
+                                             @Value("${app.db.readers:4}") int readers) {
+        return pool("dz-reader", sqlite(url, journalMode, busyTimeout), readers, true);
+    }
+
+    // What JPA, Flyway and everything else use
+    @Bean
+    @Primary
+    public DataSource dataSource(@Qualifier("writerDataSource") DataSource writer,
+                                 @Qualifier("readerDataSource") DataSource reader) {
+        AbstractRoutingDataSource routing = new AbstractRoutingDataSource() {
+            @Override
+            protected Object determineCurrentLookupKey() {
+                return TransactionSynchronizationManager.isCurrentTransactionReadOnly() ? READER : WRITER;
+            }
+        };
+        routing.setTargetDataSources(Map.of(WRITER, writer, READER, reader));
+        routing.setDefaultTargetDataSource(writer); // No transaction (startup, Flyway): the writer
+        routing.afterPropertiesSet();
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+
+    private static SQLiteDataSource sqlite(String url, String journalMode, Duration busyTimeout) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.valueOf(journalMode.toUpperCase()));
+        // In WAL mode NORMAL is still crash-safe for the database; only the last commits before a
+        // power cut may be lost. FULL would fsync on every upload.
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout((int) busyTimeout.toMillis());
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        config.setCacheSize(-16384); // 16MB page cache per connection (negative = KiB)
+
+        SQLiteDataSource dataSource = new SQLiteDataSource(config);
+        dataSource.setUrl(url);
+        return dataSource;
+    }
+
+    private static HikariDataSource pool(String name, DataSource sqlite, int size, boolean queryOnly) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setDataSource(sqlite);
+        config.setMaximumPoolSize(size);
+        config.setMinimumIdle(size); // Opening a SQLite connection re-reads the schema: keep them
+        if (queryOnly) config.setConnectionInitSql("PRAGMA query_only = 1");
+        return new HikariDataSource(config);
+    }
+}
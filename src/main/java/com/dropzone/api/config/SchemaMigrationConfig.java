@@ -0,0 +1,53 @@
+package com.dropzone.api.config;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// How Flyway runs on startup (app.db.migrate):
+//   - always:      flyway.migrate() on every boot. It scans the classpath for migrations, checks the
+//                  checksum of every applied one against the history table, and usually finds nothing to do.
+//   - if-outdated: one query on the history table first. A database already at SCHEMA_VERSION skips
+//                  Flyway altogether; anything else (new, older, newer, a failed migration) migrates as usual.
+// The fast-start profile uses if-outdated: on a Raspberry Pi-class host the scan and checks are a
+// noticeable part of the time before the first request.
+@Configuration
+public class SchemaMigrationConfig {
+
+    // The newest migration in com.dropzone.api.migration and db/migration: bump it with every new one
+    static final String SCHEMA_VERSION = "3";
+
+    @Bean
+    public FlywayMigrationStrategy migrationStrategy(@Value("${app.db.migrate:always}") String mode) {
+        return flyway -> {
+            if ("if-outdated".equalsIgnoreCase(mode) && SCHEMA_VERSION.equals(appliedVersion(flyway))) {
+                System.out.println("🗄️ Schema is at version " + SCHEMA_VERSION + ": migrations skipped.");
+                return;
+            }
+            flyway.migrate();
+        };
+    }
+
+    // The last version applied, if it succeeded. null after a failed one, and without a history table
+    // (a new or pre-Flyway database).
+    private static String appliedVersion(Flyway flyway) {
+        DataSource dataSource = flyway.getConfiguration().getDataSource();
+        String table = flyway.getConfiguration().getTable();
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT version, success FROM \"" + table + "\""
+                     + " WHERE version IS NOT NULL ORDER BY installed_rank DESC LIMIT 1")) {
+            return rows.next() && rows.getBoolean(2) ? rows.getString(1) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+}
@@ -1,32 +1,114 @@
 package com.dropzone.api.controller;
 
+import com.dropzone.api.model.FileBundle;
 import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.model.LiveShare;
+import com.dropzone.api.model.LiveUpload;
+import com.dropzone.api.model.UploadSession;
+import com.dropzone.api.service.BandwidthShaper;
+import com.dropzone.api.service.ChunkedUploadService;
+import com.dropzone.api.service.CompressionService;
+import com.dropzone.api.service.DownloadSlotResource;
+import com.dropzone.api.service.DownloadSlotTokens;
+import com.dropzone.api.service.IntegrityScrubber;
+import com.dropzone.api.service.LiveRelayService;
+import com.dropzone.api.service.SegmentedCipherEngine;
 import com.dropzone.api.service.StorageService;
+import com.dropzone.api.service.StorageVolumes;
+import com.dropzone.api.service.TransferMetrics;
+import com.dropzone.api.service.UploadAdmission;
+import com.dropzone.api.service.ZipBundleService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseCookie;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Map;
+import java.util.Objects;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 
 @RestController
 @RequestMapping("/api/files")
 // @CrossOrigin(origins = "*") // Uncomment if you build a separate Frontend (React/Vue) later
 public class FileController {
 
+    // Tomcat's sendfile contract (see org.apache.coyote.Constants)
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Token of the download slot a response reserved (see DownloadSlotTokens)
+    private static final String SLOT_COOKIE = "dz-slot";
+    // Proves a live upload comes from whoever opened the share (see LiveUpload)
+    private static final String UPLOAD_SECRET = "X-Upload-Secret";
+
     private final StorageService storageService;
+    private final ChunkedUploadService chunkedUploadService;
+    private final ZipBundleService zipBundleService;
+    private final TransferMetrics metrics;
+    private final StorageVolumes volumes;
+    private final BandwidthShaper shaper;
+    private final LiveRelayService liveRelay;
+    private final IntegrityScrubber scrubber;
+    private final UploadAdmission admission;
+    private final DownloadSlotTokens slotTokens;
+    private final boolean sendfileEnabled;
+    private final long sendfileMinSize;
 
-    public FileController(StorageService storageService) {
+    public FileController(StorageService storageService, ChunkedUploadService chunkedUploadService,
+                          ZipBundleService zipBundleService,
+                          TransferMetrics metrics,
+                          StorageVolumes volumes,
+                          BandwidthShaper shaper,
+                          LiveRelayService liveRelay,
+                          IntegrityScrubber scrubber,
+                          UploadAdmission admission,
+                          DownloadSlotTokens slotTokens,
+                          @Value("${app.download.sendfile:true}") boolean sendfileEnabled,
+                          @Value("${app.download.sendfile-min-size:48KB}") DataSize sendfileMinSize) {
         this.storageService = storageService;
+        this.chunkedUploadService = chunkedUploadService;
+        this.zipBundleService = zipBundleService;
+        this.metrics = metrics;
+        this.volumes = volumes;
+        this.shaper = shaper;
+        this.liveRelay = liveRelay;
+        this.scrubber = scrubber;
+        this.admission = admission;
+        this.slotTokens = slotTokens;
+        this.sendfileEnabled = sendfileEnabled;
+        this.sendfileMinSize = sendfileMinSize.toBytes();
     }
 
     // 1. Upload Endpoint
@@ -41,7 +123,7 @@ public class FileController {
 
         String fileName = file.getOriginalFilename();
         assert fileName != null;
-        if (fileName.endsWith(".exe") || fileName.endsWith(".bat") || fileName.endsWith(".sh")) {
+        if (isBlocked(fileName)) {
             return ResponseEntity.badRequest().build();
         }
 
@@ -52,15 +134,220 @@ public class FileController {
         return ResponseEntity.ok(metadata);
     }
 
+    // 1a. Streaming upload: the raw file is the request body, nothing is spooled to a temp file
+    // PUT http://localhost:8080/api/files/stream?filename=notes.pdf&downloads=1&minutes=10
+    // Body: the file bytes. Content-Type: the file's type (optional, guessed from the name otherwise)
+    @PutMapping("/stream")
+    public ResponseEntity<FileMetadata> streamUpload(
+            @RequestParam("filename") String fileName,
+            @RequestParam(value = "downloads", defaultValue = "1") int maxDownloads,
+            @RequestParam(value = "minutes", defaultValue = "10") int expiryMinutes,
+            @RequestParam(value = "password", required = false) String password,
+            HttpServletRequest request) throws IOException {
+
+        if (isBlocked(fileName)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        // Let in only if the disk has room for its Content-Length (without one: reserved as it goes)
+        try (UploadAdmission.Reservation reservation = admission.admit(request.getContentLengthLong())) {
+            InputStream body = shaper.shapeUpload(request.getInputStream(), request.getRemoteAddr(), request.getContentLengthLong());
+            return ResponseEntity.ok(storageService.storeStream(reservation.track(body), fileName,
+                    request.getContentType(), maxDownloads, expiryMinutes, password));
+        } catch (UploadAdmission.Refused e) {
+            return refused(e);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // 1c. Batch upload: many files (a folder of photos...) behind one share id, downloaded as one ZIP
+    // POST http://localhost:8080/api/files/batch
+    // Body: form-data key="files" (once per file), key="downloads", key="minutes", key="password" (optional)
+    @PostMapping("/batch")
+    public ResponseEntity<FileBundle> uploadBatch(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam(value = "downloads", defaultValue = "1") int maxDownloads,
+            @RequestParam(value = "minutes", defaultValue = "10") int expiryMinutes,
+            @RequestParam(value = "password", required = false) String password) throws IOException {
+
+        if (files.isEmpty()) return ResponseEntity.badRequest().build();
+        for (MultipartFile file : files) {
+            String fileName = file.getOriginalFilename();
+            if (fileName == null || isBlocked(fileName) || file.isEmpty()) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+
+        List<FileMetadata> members = storageService.storeBatch(files, maxDownloads, expiryMinutes, password);
+        return ResponseEntity.ok(new FileBundle(members.get(0).getBundleId(), members));
+    }
+
+    // 1d. Live transfer: the link exists before the upload starts, and whoever opens it while the bytes are
+    // still coming in gets them as they arrive (laptop -> phone in the time of one transfer, not two)
+    // POST http://localhost:8080/api/files/live?filename=video.mp4&size=524288000&downloads=1&minutes=10
+    // persist=false (1-download shares only): nothing is stored, the bytes only pass through to the receiver
+    // Returns the share and its uploadSecret, which the PUT must send back (X-Upload-Secret)
+    @PostMapping("/live")
+    public ResponseEntity<LiveUpload> openLive(
+            @RequestParam("filename") String fileName,
+            @RequestParam(value = "size", defaultValue = "-1") long size,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestParam(value = "downloads", defaultValue = "1") int maxDownloads,
+            @RequestParam(value = "minutes", defaultValue = "10") int expiryMinutes,
+            @RequestParam(value = "password", required = false) String password,
+            @RequestParam(value = "persist", defaultValue = "true") boolean persist) {
+
+        if (isBlocked(fileName)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        try {
+            return ResponseEntity.ok(new LiveUpload(
+                    liveRelay.open(fileName, size, contentType, maxDownloads, expiryMinutes, password, persist)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // PUT http://localhost:8080/api/files/live/{id}
+    // Header X-Upload-Secret: the uploadSecret from opening the share (the id alone is the public link)
+    // Body: the file bytes. Returns the metadata once stored, or (persist=false) the share once delivered.
+    @PutMapping("/live/{id}")
+    public ResponseEntity<?> uploadLive(@PathVariable String id,
+                                        @RequestHeader(value = UPLOAD_SECRET, required = false) String uploadSecret,
+                                        HttpServletRequest request) throws IOException {
+        LiveShare share = liveRelay.get(id);
+        if (share == null) return ResponseEntity.notFound().build();
+        if (!share.isUploader(uploadSecret)) return ResponseEntity.status(403).build(); // A receiver, not the uploader
+
+        // A share that is never stored takes no disk space
+        long declared = share.isPersist() ? request.getContentLengthLong() : 0;
+        try (UploadAdmission.Reservation reservation = admission.admit(declared)) {
+            InputStream body = shaper.shapeUpload(request.getInputStream(), request.getRemoteAddr(), request.getContentLengthLong());
+            FileMetadata stored = liveRelay.upload(share, reservation.track(body), request.getContentLengthLong());
+            return ResponseEntity.ok(stored != null ? stored : share);
+        } catch (UploadAdmission.Refused e) {
+            return refused(e); // Turned away before the first byte: the share waits for another try
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(409).build(); // 409 CONFLICT (the share already has its upload)
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // GET http://localhost:8080/api/files/live/{id}
+    // Progress of a live share (state, bytes received so far); 404 once its upload is over
+    @GetMapping("/live/{id}")
+    public ResponseEntity<LiveShare> getLive(@PathVariable String id) {
+        LiveShare share = liveRelay.get(id);
+        if (share == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(share);
+    }
+
+    // 1b. Resumable (chunked) upload
+    // POST http://localhost:8080/api/files/uploads?filename=video.mp4&size=524288000
+    // Returns the uploadId, chunkSize and totalChunks the client should use
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadSession> initUpload(
+            @RequestParam("filename") String fileName,
+            @RequestParam("size") long size,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestParam(value = "downloads", defaultValue = "1") int maxDownloads,
+            @RequestParam(value = "minutes", defaultValue = "10") int expiryMinutes,
+            @RequestParam(value = "password", required = false) String password) throws IOException {
+
+        if (isBlocked(fileName)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        try {
+            return ResponseEntity.ok(chunkedUploadService.init(fileName, size, contentType, maxDownloads, expiryMinutes, password));
+        } catch (UploadAdmission.Refused e) {
+            return refused(e);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // GET http://localhost:8080/api/files/uploads/{uploadId}
+    // After a disconnect: tells the client which chunks the server already has
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<UploadSession> getUpload(@PathVariable String uploadId) {
+        UploadSession session = chunkedUploadService.getSession(uploadId);
+        if (session == null) return ResponseEntity.notFound().build();
+        return ResponseEntity.ok(session);
+    }
+
+    // PUT http://localhost:8080/api/files/uploads/{uploadId}/chunks/{index}
+    // Body: the raw bytes of chunk 'index'. Chunks may be sent in any order and in parallel.
+    @PutMapping("/uploads/{uploadId}/chunks/{index}")
+    public ResponseEntity<UploadSession> uploadChunk(@PathVariable String uploadId,
+                                                     @PathVariable int index,
+                                                     HttpServletRequest request) throws IOException {
+        if (chunkedUploadService.getSession(uploadId) == null) return ResponseEntity.notFound().build();
+
+        try {
+            InputStream body = shaper.shapeUpload(request.getInputStream(), request.getRemoteAddr(), request.getContentLengthLong());
+            return ResponseEntity.ok(chunkedUploadService.writeChunk(uploadId, index, body));
+        } catch (SegmentedCipherEngine.SegmentLost e) {
+            return ResponseEntity.status(410).build(); // 410 GONE (the upload was dropped, start a new one)
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(409).build(); // 409 CONFLICT (chunk already received or in progress)
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // POST http://localhost:8080/api/files/uploads/{uploadId}/complete
+    // Returns the same metadata as a normal upload once every chunk has arrived
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<FileMetadata> completeUpload(@PathVariable String uploadId) throws IOException {
+        if (chunkedUploadService.getSession(uploadId) == null) return ResponseEntity.notFound().build();
+
+        try {
+            return ResponseEntity.ok(chunkedUploadService.complete(uploadId));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(409).build(); // 409 CONFLICT (chunks still missing)
+        }
+    }
+
+    // DELETE http://localhost:8080/api/files/uploads/{uploadId}
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable String uploadId) throws IOException {
+        chunkedUploadService.abort(uploadId);
+        return ResponseEntity.noContent().build();
+    }
+
     // 2. Download Endpoint
     // GET http://localhost:8080/api/files/{id}
+    // Supports Range / If-Range: "bytes=0-1023", "bytes=-500", "bytes=0-99,200-299" (multipart/byteranges)
     @GetMapping("/{id}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String id, @RequestParam(value = "password", required = false) String inputPassword) throws IOException {
+    public ResponseEntity<?> downloadFile(@PathVariable String id,
+                                         @RequestParam(value = "password", required = false) String inputPassword,
+                                         @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+                                         @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                         @CookieValue(value = SLOT_COOKIE, required = false) String slotToken,
+                                         HttpMethod method,
+                                         HttpServletRequest request,
+                                         WebRequest webRequest) throws IOException {
+        long started = System.nanoTime(); // Time-to-first-byte counts from here
+
+        // 0. A live share still uploading: relayed as the bytes arrive, or (too late to join) served
+        // below once the upload is stored
+        LiveShare live = liveRelay.get(id);
+        if (live != null) {
+            ResponseEntity<?> relayed = downloadLive(live, inputPassword, method, request, started);
+            if (relayed != null) return relayed;
+        }
 
         // 1. Check metadata (Expiry logic)
         FileMetadata metadata = storageService.getMetadata(id);
+        if (metadata == null) return ResponseEntity.notFound().build(); // Never existed, or deleted
 
-        if (metadata.isExpired()) {
+        // A used-up file still answers the follow-up ranges of its last download (checked in 4.)
+        boolean timedOut = LocalDateTime.now().isAfter(metadata.getExpiryTime());
+        if (timedOut || (metadata.isExpired() && (rangeHeader == null || slotToken == null))) {
             return ResponseEntity.status(410).body(null); // 410 GONE (Self-destructed)
         }
 
@@ -72,20 +359,346 @@ public class FileController {
             }
         }
 
-        // 2. Load the actual resource
-        Resource resource = storageService.loadAsResource(id);
+        // 2. Which representation goes out, and its validators, from the metadata alone: a revalidation or
+        // an unsatisfiable range is answered before anything is opened (or decrypted).
+        // Files stored gzipped go out as they are to clients that take gzip (no inflating, fewer bytes
+        // on the wire); the rest get them decompressed.
+        boolean compressed = metadata.getContentEncoding() != null;
+        boolean sendEncoded = compressed && acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        long length = sendEncoded ? metadata.getEncodedSize() : metadata.getSize();
+
+        // Stored blobs never change, so a tag derived from them is a strong validator: the SHA-256 of the
+        // content when we have it, the storage name otherwise.
+        // The gzip form is a different representation, so it needs its own tag (Range, If-Range, caches).
+        String validator = metadata.getChecksum() != null ? metadata.getChecksum() : metadata.getStorageName();
+        String etag = "\"" + validator + (sendEncoded ? "-gzip" : "") + "\"";
+        ZonedDateTime lastModified = metadata.getUploadTime().atZone(ZoneId.systemDefault());
+
+        // A 304 sends no bytes, so it must not use up a download
+        if (method != HttpMethod.HEAD && webRequest.checkNotModified(etag, lastModified.toInstant().toEpochMilli())) {
+            return null;
+        }
+
+        // 3. Work out which bytes were asked for. A stale If-Range means "send me the whole file".
+        List<HttpRange> ranges = List.of();
+        if (rangeHeader != null && ifRangeMatches(ifRange, etag, lastModified)) {
+            try {
+                ranges = HttpRange.parseRanges(rangeHeader);
+            } catch (IllegalArgumentException e) {
+                ranges = List.of(); // Malformed Range header: ignore it, like any other server would
+            }
+        }
+
+        List<ResourceRegion> regions = List.of();
+        if (!ranges.isEmpty()) {
+            try {
+                regions = regionsOf(ranges, length);
+            } catch (IllegalArgumentException e) {
+                // 416: none of the ranges overlap the file
+                return ResponseEntity.status(416)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                        .build();
+            }
+        }
 
-        // 3. Increment download count (The "Self-Destruct" counter)
-        // Note: In a real app, this should be atomic/synchronized to prevent race conditions
-        // but for now, we just call a service method to update DB.
-        storageService.incrementDownloadCount(id); // (We need to add this method!)
+        // 4. Reserve a download slot (The "Self-Destruct" counter)
+        // Every GET needs one, whatever range it asks for. The only exception are follow-up ranges of a
+        // download that already holds a slot (seeking in a video, resuming an interrupted transfer): they
+        // present the slot's token, which the reserving response set as a cookie.
+        // The slot is taken atomically BEFORE anything is sent: of a burst of clicks on a 1-download
+        // link exactly one is served, the others get 410 like any expired link.
+        String slot = null;
+        if (method != HttpMethod.HEAD && (regions.isEmpty() || !slotTokens.redeem(id, slotToken))) {
+            if (!storageService.tryReserveDownload(id)) {
+                return ResponseEntity.status(410).body(null);
+            }
+            slot = slotTokens.issue(id);
+        }
 
-        // 4. Return the file stream with correct headers
-        return ResponseEntity.ok()
+        // 5. Load the actual resource (a slot reserved above is given back if that fails)
+        Resource resource;
+        try {
+            resource = sendEncoded ? storageService.loadEncoded(id) : storageService.loadAsResource(id);
+        } catch (IOException | RuntimeException e) {
+            if (slot != null) settle(id, slot, false);
+            throw e;
+        }
+        regions = onto(regions, resource);
+
+        // With sendfile we write the 206 ourselves; otherwise Spring upgrades the 200 when it sees the Range
+        boolean zeroCopy = canSendfile(resource, regions, request, method);
+        ResponseEntity.BodyBuilder response = (zeroCopy && !regions.isEmpty() ? ResponseEntity.status(206) : ResponseEntity.ok())
                 // "attachment" forces the browser to download instead of opening
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + metadata.getOriginalFilename() + "\"")
                 .header(HttpHeaders.CONTENT_TYPE, metadata.getContentType())
-                .body(resource);
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                // Kept by the browser but revalidated: fetching it again on the same device is a 304
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .eTag(etag)
+                .lastModified(lastModified);
+        if (slot != null) {
+            response.header(HttpHeaders.SET_COOKIE, ResponseCookie.from(SLOT_COOKIE, slot)
+                    .path("/api/files/" + id).httpOnly(true).sameSite("Lax").build().toString());
+        }
+        if (metadata.getChecksum() != null && !sendEncoded) {
+            // SHA-256 of the whole file (also on a 206), for the client to check what it got.
+            // Repr-Digest is RFC 9530; Digest the older RFC 3230 form. Not for gzip: we never hash those bytes.
+            String sha256 = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(metadata.getChecksum()));
+            response.header("Repr-Digest", "sha-256=:" + sha256 + ":");
+            response.header("Digest", "SHA-256=" + sha256);
+        }
+        if (compressed) {
+            response.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            if (sendEncoded) response.header(HttpHeaders.CONTENT_ENCODING, CompressionService.GZIP);
+        }
+
+        // 6. Zero-copy lane: plain files go disk -> socket through the container's sendfile()
+        // (the container owns the transfer from here on, so a sendfile download counts as done)
+        if (zeroCopy) {
+            if (slot != null) settle(id, slot, true);
+            return sendfile(response, resource, regions, request);
+        }
+
+        // Throttled (when a limit is set) inside the meter, so the metrics see the real transfer time
+        resource = shaper.shapeDownload(resource, request.getRemoteAddr(), id, length);
+        resource = metrics.meterDownload(resource, sendEncoded ? "gzip" : "stream", started);
+
+        // A streamed download that breaks off before its bytes are out gives its slot back
+        if (slot != null) {
+            String token = slot;
+            long start = regions.isEmpty() ? 0 : regions.get(0).getPosition();
+            long end = regions.isEmpty() ? length : start + regions.get(0).getCount();
+            resource = new DownloadSlotResource(resource, start, end,
+                    () -> settle(id, token, true),
+                    () -> settle(id, token, false));
+        }
+
+        // 7. Return the file stream with correct headers
+        // With a valid Range, Spring turns the resource into 206 Partial Content itself
+        // (single range -> Content-Range, several -> multipart/byteranges).
+        if (rangeHeader != null && regions.isEmpty()) {
+            // A Range we decided to ignore must not be re-applied by Spring: hand it a plain stream
+            return response.contentLength(length).body(new InputStreamResource(resource.getInputStream()));
+        }
+        return response.body(resource);
+    }
+
+    // The ranges as regions of a representation of 'length' bytes, worked out before it is opened.
+    // IllegalArgumentException if none of them can be served (416).
+    private static List<ResourceRegion> regionsOf(List<HttpRange> ranges, long length) {
+        Resource sized = new AbstractResource() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public String getDescription() {
+                return length + " bytes";
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                throw new UnsupportedOperationException("Only the length is known");
+            }
+        };
+        return HttpRange.toResourceRegions(ranges, sized);
+    }
+
+    // The same regions, of the opened resource
+    private static List<ResourceRegion> onto(List<ResourceRegion> regions, Resource resource) {
+        return regions.stream().map(region -> new ResourceRegion(resource, region.getPosition(), region.getCount())).toList();
+    }
+
+    // A slot's download went through (or broke off). A broken-off slot is only given back if no
+    // follow-up range has read from it in the meantime.
+    private void settle(String id, String token, boolean delivered) {
+        if (delivered || !slotTokens.release(token)) {
+            slotTokens.complete(token);
+            storageService.completeDownload(id);
+        } else {
+            storageService.releaseDownload(id);
+        }
+    }
+
+    // The whole file from byte 0, as it is being uploaded (Range is ignored: those bytes may not exist yet).
+    // null: this receiver missed the relay and the upload is now stored, serve it the normal way. Until it
+    // is, a late receiver gets 503 + Retry-After.
+    private ResponseEntity<?> downloadLive(LiveShare live, String inputPassword, HttpMethod method,
+                                           HttpServletRequest request, long started) throws IOException {
+        if (live.isPasswordProtected() && !live.getPassword().equals(inputPassword)) {
+            return ResponseEntity.status(403).body(null);
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + live.getOriginalFilename() + "\"")
+                .header(HttpHeaders.CONTENT_TYPE, live.getContentType())
+                .header(HttpHeaders.CACHE_CONTROL, "no-store");
+        long size = live.getSize();
+        if (size > 0) response.contentLength(size); // Unknown: sent chunked
+        if (method == HttpMethod.HEAD) return response.build();
+
+        InputStream stream = liveRelay.join(live);
+        if (stream == null) {
+            // Not stored: there is no second chance for these bytes
+            if (!live.isPersist()) return ResponseEntity.status(410).body(null);
+            // Missed the relay: the stored file once it is saved. The upload may go on until the share
+            // expires, so the receiver comes back for it rather than holding a request open meanwhile.
+            try {
+                if (liveRelay.stored(live) != null) return null;
+            } catch (IllegalStateException e) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.status(503)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(liveRelay.retryAfterSeconds()))
+                    .build();
+        }
+
+        // Throttled inside the meter like any other download. The stream settles its download slot when
+        // it is closed; a plain InputStreamResource also keeps Spring from applying a Range to it.
+        Resource resource = shaper.shapeDownload(new InputStreamResource(stream), request.getRemoteAddr(), live.getId(), size);
+        resource = metrics.meterDownload(resource, "live", started);
+        return response.body(new InputStreamResource(resource.getInputStream()));
+    }
+
+    // 2b. Bundle download: every file of a batch upload in one ZIP, built while it is sent
+    // GET http://localhost:8080/api/files/bundles/{bundleId}
+    @GetMapping("/bundles/{bundleId}")
+    public ResponseEntity<StreamingResponseBody> downloadBundle(@PathVariable String bundleId,
+                                                                @RequestParam(value = "password", required = false) String inputPassword,
+                                                                HttpMethod method,
+                                                                HttpServletRequest request) {
+        List<FileMetadata> members = storageService.getBundle(bundleId);
+        ResponseEntity<StreamingResponseBody> rejected = checkBundleAccess(members, inputPassword);
+        if (rejected != null) return rejected;
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"dropzone-" + bundleId + ".zip\"")
+                .contentType(MediaType.parseMediaType("application/zip"));
+        if (method == HttpMethod.HEAD) return response.build();
+
+        // Every member that is still alive takes a download slot, exactly like a single download of
+        // it would. Files that were used up on their own links are simply left out of the ZIP.
+        List<FileMetadata> reserved = new ArrayList<>();
+        for (FileMetadata member : members) {
+            if (!member.isExpired() && storageService.tryReserveDownload(member.getId())) reserved.add(member);
+        }
+        if (reserved.isEmpty()) return ResponseEntity.status(410).build();
+
+        // The ZIP is written after we return; slots are settled once it is out (or given back if not)
+        String clientIp = request.getRemoteAddr();
+        long totalSize = reserved.stream().mapToLong(FileMetadata::getSize).sum();
+        StreamingResponseBody body = out -> {
+            boolean complete = false;
+            try (TransferMetrics.Transfer transfer = metrics.download("zip")) {
+                transfer.success(zipBundleService.write(reserved, shaper.shapeDownload(out, clientIp, bundleId, totalSize)));
+                complete = true;
+            } finally {
+                for (FileMetadata member : reserved) {
+                    if (complete) storageService.completeDownload(member.getId());
+                    else storageService.releaseDownload(member.getId());
+                }
+            }
+        };
+        return response.body(body);
+    }
+
+    // POST http://localhost:8080/api/files/bundles/{bundleId}/verify
+    // Same gate as /{id}/verify, for the bundle page
+    @PostMapping("/bundles/{bundleId}/verify")
+    public ResponseEntity<?> verifyBundle(@PathVariable String bundleId,
+                                          @RequestParam(value = "password", required = false) String inputPassword) {
+        ResponseEntity<StreamingResponseBody> rejected = checkBundleAccess(storageService.getBundle(bundleId), inputPassword);
+        if (rejected != null) return rejected;
+        return ResponseEntity.ok().build();
+    }
+
+    // 404 when no member is left, 410 when they are all used up, 403 on a wrong password (all members
+    // share the password they were uploaded with). null: come in.
+    private <T> ResponseEntity<T> checkBundleAccess(List<FileMetadata> members, String inputPassword) {
+        if (members.isEmpty()) return ResponseEntity.notFound().build();
+        if (members.stream().allMatch(FileMetadata::isExpired)) return ResponseEntity.status(410).build();
+
+        String password = members.get(0).getPassword();
+        if (password != null && !password.isEmpty() && (inputPassword == null || !inputPassword.equals(password))) {
+            return ResponseEntity.status(403).build();
+        }
+        return null;
+    }
+
+    // Tomcat's NIO connector can transmit a file region with sendfile()/transferTo: no heap copies,
+    // no Java thread busy while the bytes move. It only works for unencrypted files on disk, and for a
+    // single region (multi-range needs multipart framing, which only the regular path writes).
+    // Bytes sent by the container can't be throttled, so it is off while a bandwidth limit is set.
+    private boolean canSendfile(Resource resource, List<ResourceRegion> regions,
+                                HttpServletRequest request, HttpMethod method) throws IOException {
+        return sendfileEnabled
+                && !shaper.isEnabled()
+                && method == HttpMethod.GET
+                && resource.isFile()
+                && regions.size() <= 1
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))
+                // A conditional GET may become a 304, and Tomcat would still try to send the file
+                && request.getHeader(HttpHeaders.IF_NONE_MATCH) == null
+                && request.getHeader(HttpHeaders.IF_MODIFIED_SINCE) == null
+                && (regions.isEmpty() ? resource.contentLength() : regions.get(0).getCount()) >= sendfileMinSize;
+    }
+
+    private ResponseEntity<?> sendfile(ResponseEntity.BodyBuilder response, Resource resource,
+                                       List<ResourceRegion> regions, HttpServletRequest request) throws IOException {
+        long length = resource.contentLength();
+        long start = regions.isEmpty() ? 0 : regions.get(0).getPosition();
+        long count = regions.isEmpty() ? length : regions.get(0).getCount();
+
+        // Tomcat only accepts the canonical path of the file
+        request.setAttribute(SENDFILE_FILENAME, resource.getFile().getCanonicalPath());
+        request.setAttribute(SENDFILE_START, start);
+        request.setAttribute(SENDFILE_END, start + count); // Exclusive
+        metrics.recordSendfile(count);
+
+        if (!regions.isEmpty()) {
+            response.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + count - 1) + "/" + length);
+        }
+        // No body: the container writes the bytes after we return
+        return response.contentLength(count).build();
+    }
+
+    // "Accept-Encoding: gzip, deflate, br" -> true; "gzip;q=0" or no header at all -> false
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(CompressionService.GZIP) && !name.equals("*")) continue;
+            double q = 1.0;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (q > 0) return true;
+        }
+        return false;
+    }
+
+    // If-Range holds either an ETag (strong comparison) or an HTTP date
+    private boolean ifRangeMatches(String ifRange, String etag, ZonedDateTime lastModified) {
+        if (ifRange == null) return true;
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        try {
+            ZonedDateTime since = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return lastModified.truncatedTo(ChronoUnit.SECONDS).toInstant().equals(since.toInstant());
+        } catch (DateTimeParseException e) {
+            return false;
+        }
     }
 
     // 2. All files view Endpoint
@@ -95,20 +708,54 @@ public class FileController {
         return storageService.getAllFiles();
     }
 
+    // Bandwidth limits, in bytes per second (0 = unlimited)
+    // GET http://localhost:8080/api/files/admin/bandwidth
+    @GetMapping("/admin/bandwidth")
+    public Map<String, Long> getBandwidth() {
+        return shaper.getLimits();
+    }
+
+    // Changes them on the fly; limits left out keep their value. Sizes like "20MB" mean 20MB/s.
+    // PUT http://localhost:8080/api/files/admin/bandwidth?global=40MB&perClient=10MB&perShare=0
+    @PutMapping("/admin/bandwidth")
+    public ResponseEntity<Map<String, Long>> setBandwidth(
+            @RequestParam(value = "global", required = false) String global,
+            @RequestParam(value = "perClient", required = false) String perClient,
+            @RequestParam(value = "perShare", required = false) String perShare) {
+        Map<String, Long> current = shaper.getLimits();
+        try {
+            shaper.setLimits(
+                    global != null ? DataSize.parse(global).toBytes() : current.get("globalLimit"),
+                    perClient != null ? DataSize.parse(perClient).toBytes() : current.get("perClientLimit"),
+                    perShare != null ? DataSize.parse(perShare).toBytes() : current.get("perShareLimit"));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(shaper.getLimits());
+    }
+
     //Debug endpoint
     // GET http://localhost:8080/api/files/{id}/debug
     @GetMapping("{id}/debug")
-    public String Debug(@PathVariable String id) throws IOException {
+    public String Debug(@PathVariable String id) throws IOException, InterruptedException {
         FileMetadata metadata = storageService.getMetadata(id);
+        if (metadata == null) return "No file with id " + id;
         long originalSize = metadata.getSize();
 
-        Path encryptedFilePath = Paths.get("./dropzone_uploads/" + metadata.getStorageName());
+        Path encryptedFilePath = volumes.locate(metadata.getStorageName());
         long storedOnDiskSize = Files.size(encryptedFilePath);
+
+        // Read it all back (decrypted, inflated) and hash it: the bytes a download would get right now
+        String served = scrubber.digest(metadata, false);
         return String.format(
-                "Experiment Result: User sent: %d bytes | Stored on disk: %d bytes (Difference: %d bytes)",
+                "Experiment Result: User sent: %d bytes | Stored on disk: %d bytes (Difference: %d bytes)"
+                        + " | SHA-256 at upload: %s | SHA-256 served: %s (%s)",
                 originalSize,
                 storedOnDiskSize,
-                (storedOnDiskSize - originalSize)
+                (storedOnDiskSize - originalSize),
+                metadata.getChecksum(),
+                served,
+                metadata.getChecksum() == null ? "nothing to compare" : Objects.equals(metadata.getChecksum(), served) ? "MATCH" : "MISMATCH"
         );
     }
 
@@ -117,6 +764,15 @@ public class FileController {
             @PathVariable String id,
             @RequestParam(value = "password", required = false) String inputPassword) {
 
+        // 0. A live share has no metadata until its upload is stored
+        LiveShare live = liveRelay.get(id);
+        if (live != null) {
+            if (live.isPasswordProtected() && !live.getPassword().equals(inputPassword)) {
+                return ResponseEntity.status(403).body("Incorrect Password");
+            }
+            return ResponseEntity.ok().build();
+        }
+
         // 1. Get Metadata directly (Do not use storageService.loadAsResource)
         FileMetadata metadata = storageService.getMetadata(id);
         // ^ Ensure you have a method in StorageService that just returns metadata/repo.findById
@@ -139,6 +795,18 @@ public class FileController {
         return ResponseEntity.ok().build();
     }
 
+    // No room for the upload: 507 (disk or quota too full for it) or 429 (room taken by uploads in flight),
+    // with the Retry-After the admission worked out
+    private static <T> ResponseEntity<T> refused(UploadAdmission.Refused e) {
+        return ResponseEntity.status(e.getStatus())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .build();
+    }
+
+    private boolean isBlocked(String fileName) {
+        return fileName.endsWith(".exe") || fileName.endsWith(".bat") || fileName.endsWith(".sh");
+    }
+
     @GetMapping("/getIp")
     private String getServerIp() {
         try {
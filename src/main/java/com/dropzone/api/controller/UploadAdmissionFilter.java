@@ -0,0 +1,62 @@
+package com.dropzone.api.controller;
+
+import com.dropzone.api.service.UploadAdmission;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// Admission for multipart uploads (POST /api/files/upload, /api/files/batch). It has to happen here, in
+// front of Spring MVC: the multipart parser spools the whole body to temp files before any controller
+// code runs, so a refusal there would come after the disk had already taken the bytes.
+// The reservation covers the stored copy and is held for the whole request; the parser's temp copy goes
+// to the container's temp directory, not to the storage volumes. A multipart body without a
+// Content-Length is refused (411): nothing here sees its bytes go by, so its reservation could not grow.
+// Raw-body uploads are admitted in FileController and chunked ones in ChunkedUploadService, where the
+// reservation can follow the bytes as they are written.
+@Component
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    private final UploadAdmission admission;
+
+    public UploadAdmissionFilter(UploadAdmission admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return !"POST".equals(request.getMethod())
+                || contentType == null
+                || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")
+                || !request.getRequestURI().startsWith("/api/files/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long declared = request.getContentLengthLong();
+        if (declared < 0) {
+            response.setStatus(HttpServletResponse.SC_LENGTH_REQUIRED);
+            return;
+        }
+        UploadAdmission.Reservation reservation;
+        try {
+            reservation = admission.admit(declared);
+        } catch (UploadAdmission.Refused e) {
+            // 507 / 429, same as the other upload endpoints. The body is never read.
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            response.setStatus(e.getStatus());
+            return;
+        }
+        try (reservation) {
+            chain.doFilter(request, response);
+        }
+    }
+}
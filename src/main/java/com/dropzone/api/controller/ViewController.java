@@ -11,4 +11,9 @@ public class ViewController {
     public String showDownloadPage(@PathVariable String id) {
         return "forward:/download.html";
     }
+
+    @GetMapping("/b/{id}") // Short URL for a "Bundle" of files (downloads as one ZIP)
+    public String showBundlePage(@PathVariable String id) {
+        return "forward:/download.html";
+    }
 }
\ No newline at end of file
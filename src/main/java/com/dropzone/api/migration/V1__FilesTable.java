@@ -0,0 +1,69 @@
+package com.dropzone.api.migration;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The 'files' table (FileMetadata). Databases from before migrations were created by Hibernate's
+// ddl-auto=update, as it was at the version that created them: the table is then already there and
+// only the columns added since are created. On a fresh database this creates the whole table.
+// Written in Java because SQLite has no "ADD COLUMN IF NOT EXISTS".
+public class V1__FilesTable extends BaseJavaMigration {
+
+    // Column -> definition, as Hibernate declared them (NOT NULL columns get a default, so ALTER can add them)
+    private static final Map<String, String> COLUMNS = new LinkedHashMap<>();
+
+    static {
+        COLUMNS.put("original_filename", "varchar(255)");
+        COLUMNS.put("storage_name", "varchar(255)");
+        COLUMNS.put("size", "bigint not null default 0");
+        COLUMNS.put("content_type", "varchar(255)");
+        COLUMNS.put("max_downloads", "integer not null default 1");
+        COLUMNS.put("download_count", "integer not null default 0");
+        COLUMNS.put("upload_time", "timestamp");
+        COLUMNS.put("expiry_time", "timestamp");
+        COLUMNS.put("encryption_key", "varchar(255)");
+        COLUMNS.put("password", "varchar(255)");
+        COLUMNS.put("is_encrypted", "boolean not null default 0");
+        COLUMNS.put("checksum", "varchar(255)");
+        COLUMNS.put("crc32", "bigint");
+        COLUMNS.put("bundle_id", "varchar(255)");
+        COLUMNS.put("content_encoding", "varchar(255)");
+        COLUMNS.put("encoded_size", "bigint");
+    }
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        Connection connection = context.getConnection();
+        try (Statement statement = connection.createStatement()) {
+            Set<String> existing = columns(statement);
+            if (existing.isEmpty()) {
+                StringBuilder create = new StringBuilder("CREATE TABLE files (id varchar(255) not null primary key");
+                COLUMNS.forEach((name, definition) -> create.append(", ").append(name).append(' ').append(definition));
+                statement.execute(create.append(')').toString());
+                return;
+            }
+            for (Map.Entry<String, String> column : COLUMNS.entrySet()) {
+                if (!existing.contains(column.getKey())) {
+                    statement.execute("ALTER TABLE files ADD COLUMN " + column.getKey() + " " + column.getValue());
+                }
+            }
+        }
+    }
+
+    private static Set<String> columns(Statement statement) throws SQLException {
+        Set<String> names = new HashSet<>();
+        try (ResultSet rows = statement.executeQuery("PRAGMA table_info(files)")) {
+            while (rows.next()) names.add(rows.getString("name").toLowerCase());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,25 @@
+package com.dropzone.api.model;
+
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// What a batch upload returns: one share id for all the files (downloaded together as a ZIP).
+// Not an entity: a bundle is just the files that carry its id.
+@Getter
+public class FileBundle {
+
+    private final String id; // The Short Code of the bundle (e.g., "Qp7x2B"), used in /b/{id}
+    private final List<FileMetadata> files;
+    private final long totalSize;
+    private final LocalDateTime expiryTime;
+
+    public FileBundle(String id, List<FileMetadata> files) {
+        this.id = id;
+        this.files = files;
+        this.totalSize = files.stream().mapToLong(FileMetadata::getSize).sum();
+        this.expiryTime = files.stream().map(FileMetadata::getExpiryTime)
+                .max(LocalDateTime::compareTo).orElse(null);
+    }
+}
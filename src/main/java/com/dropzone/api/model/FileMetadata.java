@@ -1,12 +1,22 @@
 package com.dropzone.api.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.PostLoad;
+import jakarta.persistence.PostPersist;
 import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
+import org.springframework.data.domain.Persistable;
 
 import java.nio.file.Path;
 import java.time.LocalDateTime;
@@ -17,7 +27,7 @@ import java.time.LocalDateTime;
 @Builder // Allows us to create objects cleanly
 @NoArgsConstructor // Required by JPA
 @AllArgsConstructor
-public class FileMetadata {
+public class FileMetadata implements Persistable<String> {
 
     @Id
     private String id; // The Short Code (e.g., "xh52ka") - This is the Primary Key
@@ -44,6 +54,38 @@ public class FileMetadata {
 
     private boolean isEncrypted;
 
+    private String checksum; // SHA-256 of the original bytes (hex), computed while the upload streams in
+    private Long crc32; // CRC-32 of the same bytes: lets a bundle ZIP store the file without deflating it
+
+    private String bundleId; // Set for files uploaded together in one batch (one share link, one ZIP)
+
+    // --- Compression (null = stored as uploaded) ---
+    private String contentEncoding; // "gzip": the blob holds gzip(file), 'size' is still the original size
+    private Long encodedSize; // Length of the gzip stream, i.e. what a gzip-accepting client is sent
+
+    // Our ids are assigned by us, so Spring Data can't tell a new row from an existing one by its id
+    // and would SELECT before every INSERT. Rows built in code are new until saved, loaded ones are not.
+    @Transient
+    @JsonIgnore
+    @Builder.Default
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean fresh = true;
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return fresh;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markStored() {
+        fresh = false;
+    }
+
     // Helper method to check if file is dead
     public boolean isExpired() {
         return (downloadCount >= maxDownloads) || LocalDateTime.now().isAfter(expiryTime);
@@ -0,0 +1,128 @@
+package com.dropzone.api.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A live share: its link is handed out before the upload starts, and whoever opens it while the bytes
+// are still coming in gets them as they arrive. A persisted share ends up as a normal stored file under
+// the same id; one that isn't (1-download shares only) just passes the bytes through to its receiver.
+@Getter
+public class LiveShare {
+
+    public enum State { WAITING, STREAMING, STORED, DELIVERED, FAILED }
+
+    private static final int CLOSED = -1; // The stored file's counter has taken over
+
+    private final String id; // The Short Code, same as the stored file will have (/f/{id})
+    private final String originalFilename;
+    private final String contentType;
+    private volatile long size; // -1 until known (from the open call or the upload's Content-Length)
+    private final boolean persist;
+    private final LocalDateTime expiryTime;
+    private volatile State state = State.WAITING;
+    private volatile long received; // Bytes uploaded so far (written by the upload thread only)
+
+    // --- Self-Destruct Rules ---
+    @JsonIgnore private final int maxDownloads;
+    @JsonIgnore private final String password;
+    // Only the uploader knows it (see LiveUpload): the share id is the public download link
+    @JsonIgnore private final String uploadSecret;
+
+    // Downloads served while live; moved over to the stored file by closeDownloads()
+    @Getter(AccessLevel.NONE) private final AtomicInteger downloads = new AtomicInteger();
+    // The stored file once it is saved (null for a share that is never stored)
+    @JsonIgnore private final CompletableFuture<FileMetadata> stored = new CompletableFuture<>();
+
+    public LiveShare(String id, String uploadSecret, String originalFilename, String contentType, long size,
+                     int maxDownloads, int expiryMinutes, String password, boolean persist) {
+        this.id = id;
+        this.uploadSecret = uploadSecret;
+        this.originalFilename = originalFilename;
+        this.contentType = contentType;
+        this.size = size > 0 ? size : -1;
+        this.maxDownloads = maxDownloads;
+        this.password = password;
+        this.persist = persist;
+        this.expiryTime = LocalDateTime.now().plusMinutes(expiryMinutes);
+    }
+
+    // The upload begins. false if one already did (or the share expired): a share takes exactly one upload.
+    public synchronized boolean start(long contentLength) {
+        if (state != State.WAITING) return false;
+        if (size < 0 && contentLength > 0) size = contentLength;
+        state = State.STREAMING;
+        return true;
+    }
+
+    // Nobody uploaded before the deadline. false if the upload is already under way.
+    public synchronized boolean expire() {
+        if (state != State.WAITING) return false;
+        failed(new IllegalStateException("Live share expired before its upload"));
+        return true;
+    }
+
+    public void addReceived(long bytes) {
+        received += bytes;
+    }
+
+    // Constant-time comparison: the answer must not tell how much of a guess was right
+    public boolean isUploader(String secret) {
+        return secret != null && MessageDigest.isEqual(
+                uploadSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @JsonIgnore
+    public boolean isPasswordProtected() {
+        return password != null && !password.isEmpty();
+    }
+
+    // --- Download slots while live ---
+
+    public boolean tryReserveDownload() {
+        int taken;
+        do {
+            taken = downloads.get();
+            if (taken == CLOSED || taken >= maxDownloads) return false;
+        } while (!downloads.compareAndSet(taken, taken + 1));
+        return true;
+    }
+
+    // false once the slots have moved to the stored file: give it back there instead
+    public boolean releaseDownload() {
+        int taken;
+        do {
+            taken = downloads.get();
+            if (taken == CLOSED) return false;
+        } while (!downloads.compareAndSet(taken, taken - 1));
+        return true;
+    }
+
+    // The stored file is about to be saved: returns the slots taken so far, none are handed out here after this
+    public int closeDownloads() {
+        return downloads.getAndSet(CLOSED);
+    }
+
+    // --- Outcome ---
+
+    public void stored(FileMetadata metadata) {
+        state = State.STORED;
+        stored.complete(metadata);
+    }
+
+    public void delivered() {
+        state = State.DELIVERED;
+        stored.complete(null);
+    }
+
+    public void failed(Throwable cause) {
+        state = State.FAILED;
+        stored.completeExceptionally(cause);
+    }
+}
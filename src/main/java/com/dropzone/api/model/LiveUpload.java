@@ -0,0 +1,18 @@
+package com.dropzone.api.model;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import lombok.Getter;
+
+// What opening a live share returns to its uploader: the share, plus the secret its upload must present.
+// Receivers only ever see the share (GET /api/files/live/{id}); the id in the link can't start the upload.
+@Getter
+public class LiveUpload {
+
+    @JsonUnwrapped private final LiveShare share;
+    private final String uploadSecret;
+
+    public LiveUpload(LiveShare share) {
+        this.share = share;
+        this.uploadSecret = share.getUploadSecret();
+    }
+}
@@ -0,0 +1,167 @@
+package com.dropzone.api.model;
+
+import com.dropzone.api.service.UploadAdmission;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import javax.crypto.SecretKey;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory state of one resumable (chunked) upload.
+// Chunks land directly in the final storage file; this only tracks which ones we already have.
+@Getter
+public class UploadSession {
+
+    private final String uploadId;
+    private final String originalFilename;
+    private final String contentType;
+    private final long size;
+    private final int chunkSize;
+    private final int totalChunks;
+
+    // --- Self-Destruct Rules (applied when the upload completes) ---
+    @JsonIgnore private final int maxDownloads;
+    @JsonIgnore private final int expiryMinutes;
+    @JsonIgnore private final String password;
+
+    // --- Storage (never sent to the client) ---
+    @JsonIgnore private final String storageName;
+    @JsonIgnore private final FileChannel channel;
+    @JsonIgnore private final SecretKey key; // null for the "Fast Lane" (unencrypted) types
+    @JsonIgnore private final byte[] header; // Seekable encryption header, null when unencrypted
+    @JsonIgnore private final UploadAdmission.Reservation reservation; // The disk space promised to the whole file
+
+    @JsonIgnore private final BitSet received;
+    @JsonIgnore private final BitSet writing; // Chunks being written right now (guarded by 'this')
+    // Encryption segments whose nonce has been used, by a finished chunk or one that broke off halfway
+    @JsonIgnore private final Set<Long> sealedSegments = ConcurrentHashMap.newKeySet();
+    private volatile LocalDateTime lastActivity;
+
+    // --- Inline checksum: SHA-256 over the chunks that arrived in order (guarded by 'this') ---
+    @Getter(AccessLevel.NONE) private MessageDigest digest;
+    @Getter(AccessLevel.NONE) private int digestedChunks;
+    @Getter(AccessLevel.NONE) private boolean digestClaimed; // A chunk is being hashed into a copy of 'digest' right now
+    @Getter(AccessLevel.NONE) private String checksum;
+
+    public UploadSession(String uploadId, String originalFilename, String contentType, long size, int chunkSize,
+                         int maxDownloads, int expiryMinutes, String password,
+                         String storageName, FileChannel channel, SecretKey key, byte[] header,
+                         UploadAdmission.Reservation reservation) {
+        this.uploadId = uploadId;
+        this.originalFilename = originalFilename;
+        this.contentType = contentType;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        this.maxDownloads = maxDownloads;
+        this.expiryMinutes = expiryMinutes;
+        this.password = password;
+        this.storageName = storageName;
+        this.channel = channel;
+        this.key = key;
+        this.header = header;
+        this.reservation = reservation;
+        this.received = new BitSet(totalChunks);
+        this.writing = new BitSet(totalChunks);
+        this.lastActivity = LocalDateTime.now();
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    @JsonIgnore
+    public boolean isEncrypted() {
+        return key != null;
+    }
+
+    // Plaintext offset where chunk 'index' starts
+    public long chunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    // Every chunk is 'chunkSize' bytes, except the last one which gets whatever is left
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, size - chunkOffset(index));
+    }
+
+    // Chunk 'index' may be written: it is neither stored yet nor being written by another request.
+    // Every chunk is written in full once; a claimed chunk is handed back with markReceived or releaseChunk.
+    public synchronized boolean claimChunk(int index) {
+        if (received.get(index) || writing.get(index)) return false;
+        writing.set(index);
+        return true;
+    }
+
+    // The claimed chunk broke off: it may be sent again
+    public synchronized void releaseChunk(int index) {
+        writing.clear(index);
+    }
+
+    // The claimed chunk is on disk
+    public synchronized void markReceived(int index) {
+        writing.clear(index);
+        received.set(index);
+        touch();
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == totalChunks;
+    }
+
+    // What the client needs to resume: the chunks it does NOT have to send again
+    public synchronized List<Integer> getReceivedChunks() {
+        List<Integer> list = new ArrayList<>(received.cardinality());
+        received.stream().forEach(list::add);
+        return list;
+    }
+
+    // A copy of the running digest if chunk 'index' is the next one to hash, else null (it arrived out
+    // of order, or its predecessor is still coming in). Hand it back with commitDigest/abandonDigest.
+    public synchronized MessageDigest claimDigest(int index) {
+        if (digestClaimed || index != digestedChunks) return null;
+        try {
+            MessageDigest copy = (MessageDigest) digest.clone();
+            digestClaimed = true;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            return null; // The provider can't copy a digest midway: no inline checksum for this upload
+        }
+    }
+
+    // The claimed chunk was written in full: its bytes are in 'advanced'
+    public synchronized void commitDigest(MessageDigest advanced) {
+        digest = advanced;
+        digestedChunks++;
+        digestClaimed = false;
+    }
+
+    // The chunk failed halfway: the copy holds a partial chunk and is dropped
+    public synchronized void abandonDigest() {
+        digestClaimed = false;
+    }
+
+    // Hex SHA-256 of the whole file, or null if not every chunk could be hashed in order
+    // (the integrity scrubber computes it later)
+    @JsonIgnore
+    public synchronized String getChecksum() {
+        if (digestedChunks != totalChunks) return null;
+        if (checksum == null) checksum = HexFormat.of().formatHex(digest.digest()); // digest() resets it: once
+        return checksum;
+    }
+
+    public void touch() {
+        this.lastActivity = LocalDateTime.now();
+    }
+}
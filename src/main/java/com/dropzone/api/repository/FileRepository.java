@@ -2,11 +2,15 @@ package com.dropzone.api.repository;
 
 import com.dropzone.api.model.FileMetadata;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Repository
 public interface FileRepository extends JpaRepository<FileMetadata, String> {
@@ -21,4 +25,57 @@ public interface FileRepository extends JpaRepository<FileMetadata, String> {
     List<FileMetadata> findByExpiryLimit();
 
     boolean existsByStorageName(String name);
+
+    // Startup load of the short id allocator: every id in use (see ShortIdAllocator)
+    @Query("SELECT f.id FROM FileMetadata f")
+    List<String> findAllIds();
+
+    @Query("SELECT DISTINCT f.bundleId FROM FileMetadata f WHERE f.bundleId IS NOT NULL")
+    List<String> findAllBundleIds();
+
+    // Total original size of the files on record (metrics gauge)
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM FileMetadata f")
+    long sumSizes();
+
+    // The files uploaded together under one bundle id (see StorageService.storeBatch)
+    List<FileMetadata> findByBundleIdOrderByOriginalFilename(String bundleId);
+
+    // Janitor: a bundle id goes back to the allocator once none of its members is left
+    boolean existsByBundleId(String bundleId);
+
+    // Reference counts of the shared blobs of the deduplicating store (see ContentAddressedStore).
+    // A range instead of LIKE 'cas-%': SQLite's LIKE is case-insensitive and can't use the index ('.' follows '-')
+    @Query("SELECT f.storageName, COUNT(f) FROM FileMetadata f WHERE f.storageName >= 'cas-' AND f.storageName < 'cas.' GROUP BY f.storageName")
+    List<Object[]> countContentAddressedReferences();
+
+    // Orphan sweep: every storage name in one pass over the table (needs a surrounding transaction)
+    @Query("SELECT f.storageName FROM FileMetadata f")
+    Stream<String> streamAllStorageNames();
+
+    // Startup load of the expiry scheduler: just the columns it needs, not whole entities
+    List<ExpiryView> findAllProjectedBy();
+
+    interface ExpiryView {
+        String getId();
+        LocalDateTime getExpiryTime();
+        int getDownloadCount();
+        int getMaxDownloads();
+    }
+
+    // Integrity scrubber (see IntegrityScrubber): the next slice of its lap over the table, and the
+    // files that have no checksum yet
+    List<FileMetadata> findTop100ByIdGreaterThanOrderByIdAsc(String id);
+
+    List<FileMetadata> findTop100ByChecksumIsNullOrderByIdAsc();
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileMetadata f SET f.checksum = :checksum WHERE f.id = :id")
+    int setChecksum(@Param("id") String id, @Param("checksum") String checksum);
+
+    // Write-behind flush of the in-memory download counters (see FileMetadataCache)
+    @Modifying
+    @Transactional
+    @Query("UPDATE FileMetadata f SET f.downloadCount = f.downloadCount + :delta WHERE f.id = :id")
+    int addDownloads(@Param("id") String id, @Param("delta") int delta);
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+package com.dropzone.api.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bandwidth shaping for transfers that go through a Java stream (downloads, streamed and chunked
+// uploads). Three token buckets, all in bytes per second, 0 = unlimited:
+//   - per client IP     (one laptop can't take the whole access point)
+//   - per share         (one popular link can't either)
+//   - global            (the whole server)
+// The global bucket is where fairness happens: when it runs dry, waiting transfers are served in
+// order of the bytes they have already moved, divided by their weight ("least attained service").
+// A phone fetching a 2MB PDF, or the first bytes of any download, gets ahead of the 500MB video that
+// has been streaming for a minute, and small transfers (<= 'smallTransfer') count 4x. Set the global
+// limit a little below what the network really does, so the queue forms here and not in the AP.
+//
+// Limits can be changed at runtime (PUT /api/files/admin/bandwidth). With every limit at 0 nothing is
+// wrapped and the transfers pay nothing. Multipart uploads can't be shaped: Tomcat has read the whole
+// request before our code runs. Sendfile downloads bypass Java, so they are off while a limit is set.
+@Service
+public class BandwidthShaper {
+
+    private static final int SMALL_WEIGHT = 4;
+    private static final int MAX_GRANT = 65536; // Tokens are taken in slices of at most 64KB
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final TransferMetrics metrics;
+    private final long smallTransfer;
+    private volatile long perClientLimit;
+    private volatile long perShareLimit;
+    private final FairLink global;
+
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> shares = new ConcurrentHashMap<>();
+
+    public BandwidthShaper(TransferMetrics metrics,
+                           @Value("${app.bandwidth.global-limit:0}") DataSize globalLimit,
+                           @Value("${app.bandwidth.per-client-limit:0}") DataSize perClientLimit,
+                           @Value("${app.bandwidth.per-share-limit:0}") DataSize perShareLimit,
+                           @Value("${app.bandwidth.small-transfer:8MB}") DataSize smallTransfer) {
+        this.metrics = metrics;
+        this.smallTransfer = smallTransfer.toBytes();
+        this.perClientLimit = perClientLimit.toBytes();
+        this.perShareLimit = perShareLimit.toBytes();
+        this.global = new FairLink(globalLimit.toBytes());
+
+        metrics.registerBandwidthLimit("global", () -> global.rate);
+        metrics.registerBandwidthLimit("client", () -> this.perClientLimit);
+        metrics.registerBandwidthLimit("share", () -> this.perShareLimit);
+    }
+
+    public boolean isEnabled() {
+        return global.rate > 0 || perClientLimit > 0 || perShareLimit > 0;
+    }
+
+    // --- Runtime configuration (bytes per second, 0 = unlimited) ---
+
+    public Map<String, Long> getLimits() {
+        return Map.of("globalLimit", global.rate, "perClientLimit", perClientLimit, "perShareLimit", perShareLimit);
+    }
+
+    public void setLimits(long globalLimit, long perClientLimit, long perShareLimit) {
+        this.perClientLimit = perClientLimit;
+        this.perShareLimit = perShareLimit;
+        for (TokenBucket bucket : clients.values()) bucket.setRate(perClientLimit);
+        for (TokenBucket bucket : shares.values()) bucket.setRate(perShareLimit);
+        global.setRate(globalLimit);
+    }
+
+    // --- Wrapping transfers ---
+
+    // A download body. Every stream opened on it is one flow.
+    public Resource shapeDownload(Resource resource, String clientIp, String shareId, long expectedSize) {
+        if (!isEnabled()) return resource;
+        return new ShapedResource(resource, clientIp, shareId, expectedSize);
+    }
+
+    // A response written by us (the bundle ZIP)
+    public OutputStream shapeDownload(OutputStream out, String clientIp, String shareId, long expectedSize) {
+        if (!isEnabled()) return out;
+        Flow flow = new Flow(clientIp, shareId, expectedSize);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                flow.consume(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int n = Math.min(len, MAX_GRANT);
+                    flow.consume(n);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        };
+    }
+
+    // An upload body read from the socket (streamed or chunked upload). 'shareId' is null: uploads
+    // have no link yet.
+    public InputStream shapeUpload(InputStream in, String clientIp, long expectedSize) {
+        if (!isEnabled()) return in;
+        return new ShapedInputStream(in, new Flow(clientIp, null, expectedSize));
+    }
+
+    // Buckets of clients and shares that went quiet are dropped (they'd start full again anyway)
+    @Scheduled(fixedRate = 60000)
+    public void dropIdleBuckets() {
+        long now = System.nanoTime();
+        clients.values().removeIf(bucket -> now - bucket.lastUsed > IDLE_NANOS);
+        shares.values().removeIf(bucket -> now - bucket.lastUsed > IDLE_NANOS);
+    }
+
+    // --- Flows ---
+
+    private final class Flow {
+
+        private final TokenBucket client;
+        private final TokenBucket share;
+        private final int weight;
+        private long attained; // Bytes moved so far
+
+        Flow(String clientIp, String shareId, long expectedSize) {
+            this.client = perClientLimit > 0 && clientIp != null
+                    ? clients.computeIfAbsent(clientIp, ip -> new TokenBucket(perClientLimit)) : null;
+            this.share = perShareLimit > 0 && shareId != null
+                    ? shares.computeIfAbsent(shareId, id -> new TokenBucket(perShareLimit)) : null;
+            this.weight = expectedSize >= 0 && expectedSize <= smallTransfer ? SMALL_WEIGHT : 1;
+        }
+
+        // Blocks until 'n' more bytes may pass
+        void consume(int n) throws IOException {
+            long clientWait = client != null ? client.reserve(n) : 0;
+            long shareWait = share != null ? share.reserve(n) : 0;
+            long wait = Math.max(clientWait, shareWait);
+            if (wait > 0) {
+                sleep(wait);
+                metrics.recordThrottle(clientWait >= shareWait ? "client" : "share", wait);
+            }
+            long started = System.nanoTime();
+            if (global.acquire(attained / weight, n)) metrics.recordThrottle("global", System.nanoTime() - started);
+            attained += n;
+        }
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos); // Parks a virtual thread, no carrier is held
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    // A plain token bucket: reserve now, pay by sleeping. The burst is one second of traffic.
+    private static final class TokenBucket {
+
+        private volatile long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private volatile long lastUsed = refilled;
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        synchronized void setRate(long rate) {
+            this.rate = rate;
+            tokens = Math.min(tokens, rate);
+        }
+
+        // Takes 'n' tokens (possibly into debt) and returns how long to wait before using them
+        synchronized long reserve(int n) {
+            long now = System.nanoTime();
+            lastUsed = now;
+            long currentRate = rate;
+            if (currentRate <= 0) return 0;
+            tokens = Math.min(currentRate, tokens + (now - refilled) * currentRate / 1e9);
+            refilled = now;
+            tokens -= n;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / currentRate);
+        }
+    }
+
+    // The global bucket, with a queue that decides who gets the next tokens when there aren't enough.
+    // A ReentrantLock, not synchronized: waiting must not pin the carrier of a virtual thread.
+    private static final class FairLink {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+                Comparator.comparingLong(Waiter::priority).thenComparingLong(Waiter::arrival));
+        private volatile long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private long arrivals;
+
+        FairLink(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        void setRate(long rate) {
+            lock.lock();
+            try {
+                this.rate = rate;
+                tokens = Math.min(tokens, rate);
+                changed.signalAll(); // Waiters re-check (and all go through if the limit is gone)
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Returns true if the caller had to wait
+        boolean acquire(long priority, int n) throws InterruptedIOException {
+            if (rate <= 0) return false;
+            lock.lock();
+            try {
+                refill();
+                if (queue.isEmpty() && tokens >= 0) {
+                    tokens -= n;
+                    return false;
+                }
+                Waiter me = new Waiter(priority, arrivals++);
+                queue.add(me);
+                try {
+                    while (true) {
+                        refill();
+                        long currentRate = rate;
+                        if (currentRate <= 0 || (queue.peek() == me && tokens >= 0)) {
+                            queue.remove(me);
+                            tokens -= n;
+                            changed.signalAll(); // The next one in line is up
+                            return true;
+                        }
+                        // The head sleeps until its tokens are there, everyone else until the head is served
+                        long wait = queue.peek() == me ? (long) (-tokens * 1e9 / currentRate) + 1 : TimeUnit.SECONDS.toNanos(1);
+                        changed.awaitNanos(wait);
+                    }
+                } catch (InterruptedException e) {
+                    queue.remove(me);
+                    changed.signalAll();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            long currentRate = rate;
+            if (currentRate > 0) tokens = Math.min(currentRate, tokens + (now - refilled) * currentRate / 1e9);
+            refilled = now;
+        }
+
+        private record Waiter(long priority, long arrival) {
+        }
+    }
+
+    // --- Stream wrappers ---
+
+    private final class ShapedResource extends AbstractResource {
+
+        private final Resource delegate;
+        private final String clientIp;
+        private final String shareId;
+        private final long expectedSize;
+
+        ShapedResource(Resource delegate, String clientIp, String shareId, long expectedSize) {
+            this.delegate = delegate;
+            this.clientIp = clientIp;
+            this.shareId = shareId;
+            this.expectedSize = expectedSize;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ShapedInputStream(delegate.getInputStream(), new Flow(clientIp, shareId, expectedSize));
+        }
+    }
+
+    private static final class ShapedInputStream extends FilterInputStream {
+
+        private final Flow flow;
+
+        ShapedInputStream(InputStream in, Flow flow) {
+            super(in);
+            this.flow = flow;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) flow.consume(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, Math.min(len, MAX_GRANT));
+            if (n > 0) flow.consume(n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.model.UploadSession;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resumable uploads: init -> PUT chunk N (any order, in parallel) -> complete.
+// Each chunk is written with positional writes straight into the final storage file,
+// so nothing is spooled to a temp file and a dropped connection only costs the chunks in flight.
+@Service
+public class ChunkedUploadService {
+
+    private final StorageVolumes volumes;
+    private final StorageService storageService; // Publishes the finished file like any other upload
+    private final CipherService cipherService;
+    private final SegmentedCipherEngine cipherEngine;
+    private final ShortIdAllocator idAllocator;
+    private final TransferMetrics metrics;
+    private final UploadAdmission admission;
+    private final int chunkSize;
+    private final long maxFileSize;
+    private final long sessionTimeoutMinutes;
+
+    // uploadId -> live session
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    public ChunkedUploadService(StorageVolumes volumes,
+                                @Value("${app.upload.chunk-size:8MB}") DataSize chunkSize,
+                                @Value("${spring.servlet.multipart.max-file-size}") DataSize maxFileSize,
+                                @Value("${app.upload.session-timeout-minutes:60}") long sessionTimeoutMinutes,
+                                StorageService storageService,
+                                CipherService cipherService,
+                                SegmentedCipherEngine cipherEngine,
+                                ShortIdAllocator idAllocator,
+                                TransferMetrics metrics,
+                                UploadAdmission admission) {
+        this.volumes = volumes;
+        // Chunks must hold whole encryption segments, so every chunk can be sealed on its own
+        int segment = cipherEngine.getSegmentSize();
+        this.chunkSize = (int) ((chunkSize.toBytes() + segment - 1) / segment * segment);
+        this.maxFileSize = maxFileSize.toBytes();
+        this.sessionTimeoutMinutes = sessionTimeoutMinutes;
+        this.storageService = storageService;
+        this.cipherService = cipherService;
+        this.cipherEngine = cipherEngine;
+        this.idAllocator = idAllocator;
+        this.metrics = metrics;
+        this.admission = admission;
+    }
+
+    // 1. Open a new upload: create the final file and (if needed) its encryption header.
+    // The whole size is reserved up front (UploadAdmission.Refused when there is no room for it).
+    public UploadSession init(String filename, long size, String contentType,
+                              int maxDownloads, int expiryMinutes, String password) throws IOException {
+        if (size <= 0) throw new IllegalArgumentException("Failed to store empty file.");
+        if (size > maxFileSize) throw new IllegalArgumentException("File exceeds the maximum upload size.");
+
+        String mimeType = FileSystemStorageService.resolveContentType(filename, contentType); // Same guess as stream uploads
+        boolean shouldEncrypt = FileSystemStorageService.shouldEncrypt(mimeType);
+
+        UploadAdmission.Reservation reservation = admission.admit(size);
+        String storageName = UUID.randomUUID().toString();
+        FileChannel channel = null;
+        try {
+            Path destinationFile = volumes.allocate(storageName, size); // The size is known up front here
+
+            SecretKey key = shouldEncrypt ? cipherService.generateKey() : null;
+            byte[] header = shouldEncrypt ? cipherEngine.newHeader() : null;
+
+            channel = FileChannel.open(destinationFile,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            if (header != null) {
+                ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+                while (headerBuffer.hasRemaining()) channel.write(headerBuffer, headerBuffer.position());
+            }
+
+            UploadSession session = new UploadSession(UUID.randomUUID().toString(), filename, mimeType, size, chunkSize,
+                    maxDownloads, expiryMinutes, password, storageName, channel, key, header, reservation);
+            sessions.put(session.getUploadId(), session);
+            return session;
+        } catch (IOException | RuntimeException e) {
+            reservation.close();
+            if (channel != null) channel.close();
+            volumes.delete(storageName);
+            throw e;
+        }
+    }
+
+    public UploadSession getSession(String uploadId) {
+        return sessions.get(uploadId);
+    }
+
+    // 2. Write one chunk at its own offset. Safe to call concurrently for different chunks.
+    // A chunk is only written once: a re-send of one we already have (or are writing) is an IllegalStateException.
+    // A chunk whose first attempt broke off may be sent again; encrypted ones must then carry the same bytes.
+    // If the first attempt left a sealed segment half-written, the upload is dropped (SegmentLost).
+    public UploadSession writeChunk(String uploadId, int index, InputStream body) throws IOException {
+        UploadSession session = requireSession(uploadId);
+        if (index < 0 || index >= session.getTotalChunks()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+        if (!session.claimChunk(index)) {
+            throw new IllegalStateException("Chunk " + index + " is already received or in progress");
+        }
+
+        long offset = session.chunkOffset(index);
+        long expected = session.chunkLength(index);
+
+        // The next chunk in line is hashed on its way to disk; one that is early can't be (SHA-256 is sequential)
+        MessageDigest digest = session.claimDigest(index);
+        boolean written = false;
+        try (TransferMetrics.Transfer transfer = metrics.upload("chunk")) {
+            writeChunk(session, index, digest != null ? new DigestInputStream(body, digest) : body, offset, expected);
+            transfer.success(expected);
+            written = true;
+        } catch (SegmentedCipherEngine.SegmentLost e) {
+            // The file can never be completed: drop it now instead of refusing every retry
+            if (sessions.remove(uploadId, session)) discard(session);
+            throw e;
+        } finally {
+            if (digest != null) {
+                if (written) session.commitDigest(digest);
+                else session.abandonDigest();
+            }
+            if (!written) session.releaseChunk(index);
+        }
+        // Its bytes are on disk now: they no longer count as reserved
+        session.markReceived(index);
+        session.getReservation().written(expected);
+        return session;
+    }
+
+    private void writeChunk(UploadSession session, int index, InputStream body, long offset, long expected)
+            throws IOException {
+        if (session.isEncrypted()) {
+            // Segments of this chunk are sealed in parallel and land at their final positions
+            cipherEngine.encryptRange(body, session.getChannel(), session.getKey(), session.getHeader(),
+                    offset, expected, session.getSize(), session.getSealedSegments());
+        } else {
+            byte[] buffer = new byte[65536]; // Same 64KB I/O size as the rest of the pipeline
+            long written = 0;
+            int n;
+            while (written < expected
+                    && (n = body.readNBytes(buffer, 0, (int) Math.min(buffer.length, expected - written))) > 0) {
+                ByteBuffer out = ByteBuffer.wrap(buffer, 0, n);
+                long filePosition = offset + written;
+                while (out.hasRemaining()) {
+                    filePosition += session.getChannel().write(out, filePosition);
+                }
+                written += n;
+                session.touch();
+            }
+            if (written != expected) {
+                throw new IllegalArgumentException("Chunk " + index + " must be exactly " + expected + " bytes");
+            }
+        }
+        if (body.read() != -1) {
+            throw new IllegalArgumentException("Chunk " + index + " must be exactly " + expected + " bytes");
+        }
+    }
+
+    // 3. All chunks are on disk: publish the file by creating its metadata row
+    public FileMetadata complete(String uploadId) throws IOException {
+        UploadSession session = requireSession(uploadId);
+        if (!session.isComplete()) {
+            throw new IllegalStateException("Upload is missing chunks: "
+                    + (session.getTotalChunks() - session.getReceivedChunks().size()));
+        }
+        if (sessions.remove(uploadId) == null) {
+            throw new IllegalStateException("Upload already completed: " + uploadId);
+        }
+
+        try {
+            session.getChannel().force(false);
+            session.getChannel().close();
+        } catch (IOException e) {
+            discard(session); // Never made it to disk in full
+            throw e;
+        } finally {
+            session.getReservation().close();
+        }
+
+        FileMetadata metadata = FileMetadata.builder()
+                .id(idAllocator.allocate())
+                .originalFilename(session.getOriginalFilename())
+                .storageName(session.getStorageName())
+                .size(session.getSize())
+                .contentType(session.getContentType())
+                .maxDownloads(session.getMaxDownloads())
+                .downloadCount(0)
+                .uploadTime(LocalDateTime.now())
+                .expiryTime(LocalDateTime.now().plusMinutes(session.getExpiryMinutes()))
+                .password(session.getPassword())
+                .encryptionKey(session.isEncrypted() ? cipherService.keyToString(session.getKey()) : null)
+                .isEncrypted(session.isEncrypted())
+                .checksum(session.getChecksum()) // null if chunks came out of order: the scrubber fills it in
+                .build();
+        // Saved, counted, cached and armed like every other upload (its id and blob go if the save fails)
+        return storageService.publish(metadata);
+    }
+
+    // 4. Client gave up: drop the session and its partial file
+    public void abort(String uploadId) throws IOException {
+        UploadSession session = sessions.remove(uploadId);
+        if (session != null) discard(session);
+    }
+
+    // The orphan janitor must not delete files that are still being uploaded
+    public boolean isUploading(String storageName) {
+        return sessions.values().stream().anyMatch(s -> s.getStorageName().equals(storageName));
+    }
+
+    // Sessions nobody touched for a while are abandoned: free their file handle and disk space
+    @Scheduled(fixedRate = 300000) // 5 Minutes
+    public void expireStaleSessions() {
+        LocalDateTime cutoff = LocalDateTime.now().minusMinutes(sessionTimeoutMinutes);
+        for (UploadSession session : sessions.values()) {
+            if (session.getLastActivity().isBefore(cutoff) && sessions.remove(session.getUploadId(), session)) {
+                try {
+                    discard(session);
+                    System.out.println("🧹 Dropped abandoned upload: " + session.getOriginalFilename());
+                } catch (IOException e) {
+                    System.err.println("⚠️ Failed to drop abandoned upload: " + session.getStorageName());
+                }
+            }
+        }
+    }
+
+    private UploadSession requireSession(String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null) throw new IllegalArgumentException("Upload session not found: " + uploadId);
+        return session;
+    }
+
+    private void discard(UploadSession session) throws IOException {
+        session.getReservation().close();
+        session.getChannel().close();
+        volumes.delete(session.getStorageName());
+    }
+}
@@ -3,14 +3,16 @@ package com.dropzone.api.service;
 import org.springframework.stereotype.Service;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
 @Service
@@ -18,6 +20,18 @@ public class CipherService {
 
     private static final String ALGORITHM = "AES";
 
+    // --- On-disk header for seekable files ---
+    // [ "DZCRYPT" (7 bytes) | version (1 byte) | version-specific fields (24 bytes) ] = 32 bytes
+    //   v2 (AES-GCM segments):  see SegmentedCipherEngine
+    // Legacy files (whole-file AES/ECB) have no header at all.
+    // (Version 1 was never released; it stays unused so no file can be mistaken for another format.)
+    public static final int HEADER_LENGTH = 32;
+    public static final int HEADER_FIELDS_OFFSET = 8;
+    public static final byte VERSION_GCM = 2;
+    private static final byte[] MAGIC = "DZCRYPT".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
     // 1. Generate a random AES Key
     // We will generate a unique key for EVERY file.
     public SecretKey generateKey() {
@@ -41,27 +55,42 @@ public class CipherService {
         return new SecretKeySpec(decodedKey, 0, decodedKey.length, ALGORITHM);
     }
 
-    // 2. The Encryptor (Wraps the Output Stream)
-    // Whatever we write to this stream gets encrypted before hitting the disk.
-    public OutputStream encryptStream(OutputStream outputStream, SecretKey key) {
+    // Legacy files are AES/ECB, where every 16-byte block decrypts on its own.
+    // Without the padding step we can therefore start decrypting at any block boundary.
+    public Cipher legacyBlockCipher(SecretKey key) {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            return new CipherOutputStream(outputStream, cipher);
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return cipher;
         } catch (Exception e) {
-            throw new RuntimeException("Error initializing encryption", e);
+            throw new RuntimeException("Error initializing decryption", e);
         }
     }
 
-    // 3. The Decryptor (Wraps the Input Stream)
-    // Whatever we read from the disk gets decrypted before the user sees it.
-    public InputStream decryptStream(InputStream inputStream, SecretKey key) {
-        try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            cipher.init(Cipher.DECRYPT_MODE, key);
-            return new CipherInputStream(inputStream, cipher);
-        } catch (Exception e) {
-            throw new RuntimeException("Error initializing decryption", e);
+    // 2. Build a header for a new file. The caller fills in the version-specific fields.
+    public byte[] newHeader(byte version) {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = version;
+        return header;
+    }
+
+    public SecureRandom random() {
+        return secureRandom;
+    }
+
+    // Reads the header of a stored file. Returns null for legacy (headerless) files.
+    public byte[] readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_LENGTH) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) return null;
+        }
+        byte[] header = buffer.array();
+        if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) return null;
+        if (header[MAGIC.length] != VERSION_GCM) {
+            throw new IOException("Unsupported encryption format version: " + header[MAGIC.length]);
         }
+        return header;
     }
-}
\ No newline at end of file
+}
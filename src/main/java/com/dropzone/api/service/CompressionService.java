@@ -0,0 +1,245 @@
+package com.dropzone.api.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+
+// Optional compression stage for text-like uploads (text, CSV, JSON, logs, old office formats...).
+// Runs before encryption, so what ends up on disk is encrypt(gzip(file)).
+//
+// Downloads hand the gzip stream as it is to clients that send "Accept-Encoding: gzip" (the browser
+// inflates it, and fewer bytes cross the LAN); everyone else gets it decompressed on the fly.
+//
+// Whether an upload is worth compressing is decided by a probe: the first 64KB are deflated at the
+// fastest level, and only uploads that shrink below 'maxRatio' are compressed. The results are kept per
+// MIME type, so a type that keeps failing the probe (e.g. PDFs that are already compressed inside)
+// stops being probed, apart from an occasional re-check.
+@Service
+public class CompressionService {
+
+    public static final String GZIP = "gzip";
+    private static final int PROBE_SIZE = 65536;
+    private static final int BUFFER_SIZE = 65536; // Same 64KB I/O size as the rest of the pipeline
+    private static final int RECHECK_EVERY = 16;
+
+    private final boolean enabled;
+    private final int level;
+    private final double maxRatio;
+
+    // MIME type -> running average of the probe ratio (compressed / original)
+    private final Map<String, Double> typeRatios = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> skipped = new ConcurrentHashMap<>();
+
+    public CompressionService(@Value("${app.compression.enabled:true}") boolean enabled,
+                              @Value("${app.compression.level:1}") int level,
+                              @Value("${app.compression.max-ratio:0.9}") double maxRatio) {
+        this.enabled = enabled;
+        this.level = level;
+        this.maxRatio = maxRatio;
+    }
+
+    // 1. Types that are worth probing at all. Media and archives are compressed already.
+    static boolean isCompressibleType(String mimeType) {
+        return mimeType.startsWith("text/")
+                || mimeType.startsWith("application/json") || mimeType.contains("+json")
+                || mimeType.startsWith("application/xml") || mimeType.contains("+xml")
+                || mimeType.startsWith("application/javascript") || mimeType.startsWith("application/x-ndjson")
+                || mimeType.startsWith("application/sql") || mimeType.startsWith("application/x-yaml")
+                || mimeType.startsWith("application/rtf") || mimeType.startsWith("application/x-tar")
+                || mimeType.startsWith("application/msword") || mimeType.startsWith("application/vnd.ms-")
+                || mimeType.startsWith("application/pdf") || mimeType.startsWith("application/octet-stream");
+    }
+
+    // 2. Decide for one upload. 'in' must support mark/reset: the probe sample is read and pushed back.
+    public boolean shouldCompress(String mimeType, BufferedInputStream in) throws IOException {
+        if (!enabled || !isCompressibleType(mimeType)) return false;
+
+        Double history = typeRatios.get(mimeType);
+        if (history != null && history > maxRatio
+                && skipped.computeIfAbsent(mimeType, t -> new AtomicInteger()).incrementAndGet() % RECHECK_EVERY != 0) {
+            return false; // This type hardly ever compresses
+        }
+
+        in.mark(PROBE_SIZE);
+        byte[] sample = in.readNBytes(PROBE_SIZE);
+        in.reset();
+        if (sample.length == 0) return false;
+
+        double ratio = probe(sample);
+        typeRatios.merge(mimeType, ratio, (old, now) -> old * 0.75 + now * 0.25);
+        return ratio <= maxRatio;
+    }
+
+    private double probe(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return (double) compressed / sample.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // 3. The gzip encoding of 'in', produced as it is read (feeds straight into the cipher engine)
+    public GzipEncodingInputStream encode(InputStream in) {
+        return new GzipEncodingInputStream(in, level);
+    }
+
+    // 4. The original bytes of a stored gzip representation. 'size' is the original length.
+    public Resource decode(Resource encoded, long size) {
+        return new GzipDecodingResource(encoded, size);
+    }
+
+    // gzip = 10-byte header | raw deflate stream | CRC32 + length of the original (little-endian)
+    public static final class GzipEncodingInputStream extends InputStream {
+
+        private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final CRC32 crc = new CRC32();
+        private final Deflater deflater;
+        private final InputStream body;
+        private final byte[] single = new byte[1]; // For the body's single-byte reads
+        private final byte[] one = new byte[1];    // For ours
+        private long originalCount;
+        private long encodedCount;
+        private byte[] pending = HEADER; // Header first, trailer last; null while the body streams
+        private int pendingPos;
+        private boolean bodyDone;
+
+        GzipEncodingInputStream(InputStream in, int level) {
+            this.deflater = new Deflater(level, true);
+            InputStream checked = new FilterInputStream(in) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        crc.update(b, off, n);
+                        originalCount += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public int read() throws IOException {
+                    int n = read(single, 0, 1);
+                    return n < 0 ? -1 : single[0] & 0xFF;
+                }
+            };
+            this.body = new DeflaterInputStream(checked, deflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (pending != null) {
+                    if (pendingPos < pending.length) {
+                        int n = Math.min(len, pending.length - pendingPos);
+                        System.arraycopy(pending, pendingPos, b, off, n);
+                        pendingPos += n;
+                        encodedCount += n;
+                        return n;
+                    }
+                    if (bodyDone) return -1; // Trailer sent
+                    pending = null;
+                }
+                int n = body.read(b, off, len);
+                if (n > 0) {
+                    encodedCount += n;
+                    return n;
+                }
+                if (n < 0) {
+                    bodyDone = true;
+                    pending = trailer();
+                    pendingPos = 0;
+                }
+            }
+        }
+
+        private byte[] trailer() {
+            long value = crc.getValue();
+            long size = originalCount & 0xFFFFFFFFL;
+            return new byte[]{
+                    (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)};
+        }
+
+        // Bytes of gzip produced so far (the full encoded length once the stream is drained)
+        public long getEncodedCount() {
+            return encodedCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                body.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    // Decompressing view of a stored gzip representation. skip() has to inflate what it skips, so
+    // Range requests on the decoded form work but cost the bytes before the range.
+    private static final class GzipDecodingResource extends AbstractResource {
+
+        private final Resource encoded;
+        private final long size;
+
+        GzipDecodingResource(Resource encoded, long size) {
+            this.encoded = encoded;
+            this.size = size;
+        }
+
+        @Override
+        public boolean exists() {
+            return encoded.exists();
+        }
+
+        @Override
+        public long contentLength() {
+            return size;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Decompressed " + encoded.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = encoded.getInputStream();
+            try {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Optional deduplicating storage (app.storage.dedup=true): identical uploads share one blob on disk.
+//
+// The upload is hashed first (SHA-256, no writes). If a blob with that content already exists, the new
+// file just takes a reference to it and the upload is done at hash speed. Otherwise the upload is read
+// a second time and written (encrypted or not) to a temp file that is moved into place.
+//
+// Blob names and keys are derived from the digest with a server secret (HMAC), never the bare digest:
+//   name = "cas-" + hex(HMAC(secret, "name:" | mode | digest))
+//   key  = HMAC(secret, "key:" | digest)    (AES-256, "convergent" key of the content)
+// Every row that points at a blob stores that blob's key, exactly like a row with its own file did,
+// so EncryptedFileResource and the download path do not know the difference. Without the secret the
+// names on disk reveal nothing about the content.
+//
+// Reference counts live in memory (loaded from the DB on startup) and the blob is deleted when the
+// last row pointing at it goes. Taking and dropping references is serialized per blob (a striped lock,
+// with the file I/O outside the map), so an upload can never attach to a blob the janitor is deleting.
+// With app.startup.lazy (fast-start profile) they are loaded in the background, and the first
+// store/release after a start waits for them.
+@Service
+public class ContentAddressedStore {
+
+    public static final String PREFIX = "cas-";
+    private static final String SECRET_FILE = ".dedup-secret";
+    private static final int BUFFER_SIZE = 65536; // Same 64KB I/O size as the rest of the pipeline
+    private static final int LOCK_STRIPES = 64;
+
+    private final boolean enabled;
+    private final StorageVolumes volumes;
+    private final String configuredSecret;
+    private final FileRepository fileRepository;
+    private final CipherService cipherService;
+    private final SegmentedCipherEngine cipherEngine;
+    private final boolean lazy;
+
+    // blob name -> number of rows pointing at it. Changed only under the name's lock (lockFor).
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    private final CompletableFuture<Void> referencesLoaded = new CompletableFuture<>();
+    private SecretKeySpec secret;
+
+    public ContentAddressedStore(@Value("${app.storage.dedup:false}") boolean enabled,
+                                 StorageVolumes volumes,
+                                 @Value("${app.storage.dedup-secret:}") String configuredSecret,
+                                 FileRepository fileRepository,
+                                 CipherService cipherService,
+                                 SegmentedCipherEngine cipherEngine,
+                                 @Value("${app.startup.lazy:false}") boolean lazy) {
+        this.enabled = enabled;
+        this.volumes = volumes;
+        this.configuredSecret = configuredSecret;
+        this.fileRepository = fileRepository;
+        this.cipherService = cipherService;
+        this.cipherEngine = cipherEngine;
+        this.lazy = lazy;
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+    }
+
+    // Loaded even with dedup switched off: rows written while it was on still share blobs
+    @PostConstruct
+    void init() throws IOException {
+        secret = new SecretKeySpec(loadSecret(), "HmacSHA256");
+        if (!lazy) {
+            loadReferences();
+            referencesLoaded.join(); // Fails the startup, as before
+            return;
+        }
+        Thread loader = new Thread(this::loadReferences, "dz-cas-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private void loadReferences() {
+        try {
+            for (Object[] row : fileRepository.countContentAddressedReferences()) {
+                references.put((String) row[0], ((Number) row[1]).intValue());
+            }
+            referencesLoaded.complete(null);
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ Could not load the shared blob references: " + e.getMessage());
+            referencesLoaded.completeExceptionally(e);
+        }
+    }
+
+    // Counting on a map that isn't filled yet would delete blobs other rows still use
+    private void awaitReferences() {
+        try {
+            referencesLoaded.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Shared blob references are unknown", e.getCause());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static boolean isContentAddressed(String storageName) {
+        return storageName.startsWith(PREFIX);
+    }
+
+    // The blob a stored file points at. 'key' is null for unencrypted blobs; 'checksum' is the
+    // hex SHA-256 of the content, 'crc32' its CRC-32. 'contentEncoding' / 'encodedSize' are set when
+    // the bytes were compressed before they were stored (shared blobs never are: see CompressionService).
+    public record Blob(String storageName, SecretKey key, String checksum, long crc32,
+                       String contentEncoding, Long encodedSize) {
+        public Blob(String storageName, SecretKey key, String checksum, long crc32) {
+            this(storageName, key, checksum, crc32, null, null);
+        }
+    }
+
+    // 1. Store an upload (or find it already stored) and take one reference to its blob.
+    // The caller must release() the reference if it ends up not saving a row for it.
+    public Blob store(MultipartFile file, boolean encrypt) throws IOException {
+        byte[] digest;
+        CRC32 crc = new CRC32();
+        try (InputStream in = file.getInputStream()) {
+            digest = sha256(in, crc);
+        }
+        String name = blobName(digest, encrypt);
+        SecretKey key = encrypt ? blobKey(digest) : null;
+
+        String checksum = HexFormat.of().formatHex(digest);
+        awaitReferences();
+
+        // Hit: same content already on disk. Not a single byte written.
+        if (attach(name)) {
+            return new Blob(name, key, checksum, crc.getValue());
+        }
+
+        // Miss: write a temp file next to the blob's place, then move it there
+        Path target = volumes.allocate(name, file.getSize());
+        Path temp = target.resolveSibling("upload-" + UUID.randomUUID() + ".part");
+        try {
+            try (InputStream in = file.getInputStream()) {
+                if (key != null) {
+                    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        cipherEngine.encrypt(in, channel, key, cipherEngine.newHeader());
+                    }
+                } else {
+                    try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)) {
+                        in.transferTo(out);
+                    }
+                }
+            }
+            publish(temp, target, name);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return new Blob(name, key, checksum, crc.getValue());
+    }
+
+    // 1b. Streamed uploads (PUT /api/files/stream) can't be read twice, so the content is only known
+    // once it has been written: it goes to a temp file, hashed on the way. A duplicate then costs one
+    // temp write instead of a second copy kept forever.
+    // Only unencrypted uploads: the blob key of encrypted content is derived from the digest, which
+    // does not exist yet when the first byte has to be encrypted. Returns null for those.
+    public Blob storeStream(MeteredInputStream in, boolean encrypt) throws IOException {
+        if (encrypt) return null;
+
+        Path temp = volumes.allocateTemp(0);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)) {
+                in.transferTo(out);
+            }
+            String name = blobName(in.digest(), false);
+            awaitReferences();
+            if (!attach(name)) {
+                publish(temp, volumes.onSameVolume(temp, name), name);
+            }
+            return new Blob(name, null, in.checksum(), in.crc32());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Takes one more reference to blob 'name' if it exists (false: not stored yet, or just deleted)
+    private boolean attach(String name) {
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
+        try {
+            Integer count = references.get(name);
+            if (count == null) return false;
+            references.put(name, count + 1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves a finished temp file into place ('target', on the temp file's volume) as blob 'name' and
+    // takes the first reference. Two uploads of the same new content may race here; both wrote valid
+    // blobs, the second move wins (or both copies stay, on two volumes), and both end up with a reference.
+    private void publish(Path temp, Path target, String name) throws IOException {
+        ReentrantLock lock = lockFor(name);
+        lock.lock();
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            references.merge(name, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 2. One row pointing at this blob is gone. The last one takes the blob with it.
+    public void release(String storageName) {
+        awaitReferences();
+        ReentrantLock lock = lockFor(storageName);
+        lock.lock();
+        try {
+            Integer count = references.get(storageName);
+            if (count != null && count > 1) {
+                references.put(storageName, count - 1);
+                return;
+            }
+            references.remove(storageName);
+            try {
+                volumes.delete(storageName); // Every copy, on every volume
+            } catch (IOException e) {
+                // The orphan sweep gets it: no row points at it anymore
+                System.err.println("⚠️ Failed to delete blob from disk: " + storageName);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Attaching, publishing and deleting a blob are serialized per name, so an upload can never attach
+    // to a blob that is being deleted. Striped: names that share a lock only wait on each other's file I/O.
+    private ReentrantLock lockFor(String name) {
+        return stripes[Math.floorMod(name.hashCode(), stripes.length)];
+    }
+
+    // --- Helpers ---
+
+    private String blobName(byte[] digest, boolean encrypt) {
+        return PREFIX + HexFormat.of().formatHex(hmac(encrypt ? "name:enc:" : "name:raw:", digest));
+    }
+
+    private SecretKey blobKey(byte[] digest) {
+        return new SecretKeySpec(hmac("key:", digest), "AES");
+    }
+
+    private byte[] hmac(String label, byte[] digest) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(label.getBytes(StandardCharsets.US_ASCII));
+            return mac.doFinal(digest);
+        } catch (Exception e) {
+            throw new RuntimeException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static byte[] sha256(InputStream in, CRC32 crc) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+                crc.update(buffer, 0, n);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    // The secret from the config, or one generated on first start and kept next to the blobs
+    // (hidden, so the orphan sweep leaves it alone). Losing it only stops new uploads from
+    // matching old blobs; existing rows carry their own keys.
+    private byte[] loadSecret() throws IOException {
+        if (!configuredSecret.isBlank()) return configuredSecret.getBytes(StandardCharsets.UTF_8);
+
+        Path file = volumes.primary().resolve(SECRET_FILE);
+        if (!Files.exists(file)) {
+            byte[] generated = new byte[32];
+            cipherService.random().nextBytes(generated);
+            try {
+                Files.writeString(file, Base64.getEncoder().encodeToString(generated), StandardOpenOption.CREATE_NEW);
+            } catch (java.nio.file.FileAlreadyExistsException e) {
+                // Another instance on the same folder was faster: use theirs
+            }
+        }
+        return Base64.getDecoder().decode(Files.readString(file).trim());
+    }
+}
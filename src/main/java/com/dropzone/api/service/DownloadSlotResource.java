@@ -0,0 +1,108 @@
+package com.dropzone.api.service;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Wraps the Resource of a download that holds a reserved download slot, and hands the slot back
+// if the bytes that made it count never reached the client.
+//
+// Spring opens one stream per body (or per region of a Range response) and always closes it, also
+// when the client hangs up halfway. The stream that starts at 'start' (the first byte the response
+// carries) decides, once: closed after delivering up to 'end' -> 'onComplete' runs; closed earlier -> 'onAbort' runs.
+public class DownloadSlotResource extends AbstractResource {
+
+    private final Resource delegate;
+    private final long start;
+    private final long end;
+    private final Runnable onComplete;
+    private final Runnable onAbort;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    public DownloadSlotResource(Resource delegate, long start, long end, Runnable onComplete, Runnable onAbort) {
+        this.delegate = delegate;
+        this.start = start;
+        this.end = end;
+        this.onComplete = onComplete;
+        this.onAbort = onAbort;
+    }
+
+    @Override
+    public boolean exists() {
+        return delegate.exists();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public String getFilename() {
+        return delegate.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Download slot for " + delegate.getDescription();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new TrackingInputStream(delegate.getInputStream());
+    }
+
+    private class TrackingInputStream extends FilterInputStream {
+
+        private long position;
+        private long firstRead = -1; // Offset of the first byte handed out, -1 before any read
+
+        TrackingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) advance(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) advance(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        private void advance(int n) {
+            if (firstRead < 0) firstRead = position;
+            position += n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // Streams for other regions have no say in whether this was a download
+                boolean startedAtStart = firstRead == start || (firstRead < 0 && position == start);
+                if (startedAtStart && settled.compareAndSet(false, true)) {
+                    if (position >= end) onComplete.run();
+                    else onAbort.run();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.dropzone.api.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Ties the follow-up Range requests of a download (seeking in a video, resuming a transfer) to the
+// download slot the first request reserved, so only they get bytes without taking a slot of their own.
+//
+// Every request that reserves a slot gets a random token (a cookie scoped to the file's URL). A ranged
+// request carrying the token of the same file rides on that slot while it is in flight, and for 'grace'
+// after it completed. Anything else, whatever range it asks for, reserves a slot like a full download.
+// A slot that was followed up on counts as used even if its first request is aborted: the client went on
+// to read the file through the follow-ups.
+// The janitor asks here before deleting a used-up file (redeemableFor): a file stays until the follow-ups
+// of its last download can no longer come.
+@Service
+public class DownloadSlotTokens {
+
+    private final long graceMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    // token -> slot. In-flight slots leave when settled, completed ones once their grace has passed.
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    public DownloadSlotTokens(@Value("${app.download.slot-grace:5m}") Duration grace) {
+        this.graceMillis = grace.toMillis();
+    }
+
+    // 1. A slot of file 'id' was just reserved: the token its follow-up requests will present
+    public String issue(String id) {
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        slots.put(token, new Slot(id));
+        return token;
+    }
+
+    // 2. True if 'token' belongs to a slot of file 'id' that is still in flight or completed within the grace
+    public boolean redeem(String id, String token) {
+        if (token == null) return false;
+        Slot slot = slots.get(token);
+        if (slot == null || !slot.id.equals(id)) return false;
+        synchronized (slot) {
+            if (slot.completedAt >= 0 && System.currentTimeMillis() - slot.completedAt > graceMillis) return false;
+            slot.followed = true;
+            return true;
+        }
+    }
+
+    // 3. The slot's download went through: follow-ups keep working for the grace period
+    public void complete(String token) {
+        Slot slot = slots.get(token);
+        if (slot == null) return;
+        synchronized (slot) {
+            if (slot.completedAt < 0) slot.completedAt = System.currentTimeMillis();
+        }
+    }
+
+    // 4. The slot's first request broke off. Returns true if the slot may be given back, false if
+    // follow-up requests already read from it (it counts as completed then).
+    public boolean release(String token) {
+        Slot slot = slots.get(token);
+        if (slot == null) return true;
+        synchronized (slot) {
+            if (slot.followed) {
+                if (slot.completedAt < 0) slot.completedAt = System.currentTimeMillis();
+                return false;
+            }
+            slots.remove(token);
+            return true;
+        }
+    }
+
+    // How much longer follow-up requests of file 'id' may come: the longest grace left among its slots
+    // (a whole grace for one still in flight). null once none can.
+    public Duration redeemableFor(String id) {
+        long now = System.currentTimeMillis();
+        long longest = -1;
+        for (Slot slot : slots.values()) {
+            if (!slot.id.equals(id)) continue;
+            synchronized (slot) {
+                long left = slot.completedAt < 0 ? graceMillis : slot.completedAt + graceMillis - now;
+                longest = Math.max(longest, left);
+            }
+        }
+        return longest > 0 ? Duration.ofMillis(longest) : null;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void dropExpired() {
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        slots.values().removeIf(slot -> {
+            synchronized (slot) {
+                return slot.completedAt >= 0 && slot.completedAt < cutoff;
+            }
+        });
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    private static final class Slot {
+
+        private final String id;
+        private long completedAt = -1; // Guarded by the slot; -1 while in flight
+        private boolean followed;
+
+        Slot(String id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.dropzone.api.service;
+
+import org.springframework.core.io.AbstractResource;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// An encrypted file on disk, exposed as a seekable Resource.
+// Every call to getInputStream() opens an independent decrypting stream, and skip() jumps straight
+// to the requested offset instead of decrypting everything before it. That is what lets Spring serve
+// Range requests (206 Partial Content) without reading the whole file first.
+//
+// Two on-disk layouts are understood:
+//   - v2 (DZCRYPT + AES-GCM segments): decrypted by SegmentedCipherEngine, segment by segment.
+//   - Legacy (no header, AES/ECB/PKCS5): blocks decrypt independently, so we start at the
+//     16-byte block that holds the offset and drop the bytes before it. Padding is cut off
+//     by never reading past the plaintext length.
+public class EncryptedFileResource extends AbstractResource {
+
+    private static final int BUFFER_SIZE = 65536; // Same 64KB read size as the legacy pipeline
+    private static final int BLOCK_SIZE = 16;
+
+    private final Path path;
+    private final SecretKey key;
+    private final CipherService cipherService;
+    private final SegmentedCipherEngine engine;
+    private final long plainLength;
+
+    public EncryptedFileResource(Path path, SecretKey key, CipherService cipherService,
+                                 SegmentedCipherEngine engine, long plainLength) {
+        this.path = path;
+        this.key = key;
+        this.cipherService = cipherService;
+        this.engine = engine;
+        this.plainLength = plainLength;
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    @Override
+    public long contentLength() {
+        return plainLength;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Encrypted file [" + path + "]";
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            byte[] header = cipherService.readHeader(channel);
+            if (header != null) {
+                return engine.decryptingStream(channel, key, header, plainLength);
+            }
+            return new LegacyDecryptingInputStream(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private class LegacyDecryptingInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer encrypted = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] plain = new byte[BUFFER_SIZE + BLOCK_SIZE];
+        private final byte[] single = new byte[1];
+
+        private long position;        // Plaintext offset of the next byte we hand out
+        private long filePosition;    // Where the next encrypted read starts on disk
+        private int plainStart;       // Decrypted bytes waiting in 'plain' are [plainStart, plainEnd)
+        private int plainEnd;
+        private int discard;          // Bytes of the first block that sit before 'position'
+        private Cipher cipher;
+
+        LegacyDecryptingInputStream(FileChannel channel) {
+            this.channel = channel;
+            seek(0);
+        }
+
+        private void seek(long newPosition) {
+            position = newPosition;
+            plainStart = plainEnd = 0;
+            long blockStart = newPosition - (newPosition % BLOCK_SIZE);
+            filePosition = blockStart;
+            cipher = cipherService.legacyBlockCipher(key);
+            discard = (int) (newPosition - blockStart);
+        }
+
+        // Decrypt the next buffer-full from disk. Returns false at end of file.
+        private boolean fill() throws IOException {
+            encrypted.clear();
+            int n = channel.read(encrypted, filePosition);
+            if (n <= 0) return false;
+            filePosition += n;
+            try {
+                plainStart = 0;
+                plainEnd = cipher.update(encrypted.array(), 0, n, plain, 0);
+            } catch (Exception e) {
+                throw new IOException("Decryption failed at offset " + position, e);
+            }
+            int dropped = Math.min(discard, plainEnd);
+            plainStart += dropped;
+            discard -= dropped;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            long remaining = plainLength - position;
+            if (remaining <= 0) return -1;
+
+            while (plainStart == plainEnd) {
+                if (!fill()) throw new IOException("Unexpected end of encrypted file at offset " + position);
+            }
+
+            int n = (int) Math.min(Math.min(len, plainEnd - plainStart), remaining);
+            System.arraycopy(plain, plainStart, b, off, n);
+            plainStart += n;
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) return 0;
+            long target = Math.min(plainLength, position + n);
+            long skipped = target - position;
+
+            // Small hops stay inside the bytes we already decrypted
+            if (skipped <= plainEnd - plainStart) {
+                plainStart += (int) skipped;
+                position = target;
+            } else {
+                seek(target);
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(plainEnd - plainStart, plainLength - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
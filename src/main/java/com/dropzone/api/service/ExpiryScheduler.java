@@ -0,0 +1,85 @@
+package com.dropzone.api.service;
+
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// Deadlines of every live file, ordered by time (a DelayQueue is a priority queue keyed on the deadline).
+// Fed by uploads (expiry time) and by downloads (last permitted download done), drained by the janitor
+// (FileCleanupService), which wakes up exactly when the earliest deadline passes instead of polling.
+//
+// A file may be queued more than once (time limit + download limit). The janitor re-checks every
+// file before deleting it, so stale entries are harmless. The same deadline of the same file is only
+// queued once: the janitor re-arms every file it leaves alive, which would otherwise pile up copies.
+@Service
+public class ExpiryScheduler {
+
+    private final DelayQueue<Expiry> queue = new DelayQueue<>();
+    private final Set<Expiry> queued = ConcurrentHashMap.newKeySet(); // What 'queue' holds, for the lookup
+
+    // 1. A file dies at this wall-clock time
+    public void schedule(String id, LocalDateTime when) {
+        Instant instant = when.atZone(ZoneId.systemDefault()).toInstant();
+        // Round up: waking a hair early would find the file still alive
+        long millis = instant.toEpochMilli() + (instant.getNano() % 1_000_000 == 0 ? 0 : 1);
+        add(new Expiry(id, millis));
+    }
+
+    // 2. A file dies 'delay' from now (e.g. right after its last permitted download)
+    public void scheduleAfter(String id, Duration delay) {
+        add(new Expiry(id, System.currentTimeMillis() + delay.toMillis()));
+    }
+
+    private void add(Expiry expiry) {
+        if (queued.add(expiry)) queue.add(expiry);
+    }
+
+    // 3. Blocks until at least one deadline has passed, then returns every file that is due.
+    // Deadlines that pass together (a burst of uploads with the same timer) come back as one batch.
+    public List<String> awaitDue() throws InterruptedException {
+        List<Expiry> due = new ArrayList<>();
+        due.add(queue.take());
+        queue.drainTo(due);
+
+        // Out of the queue: the same deadline may be queued again (it is being handled right now anyway)
+        List<String> ids = new ArrayList<>(due.size());
+        for (Expiry expiry : due) {
+            queued.remove(expiry);
+            ids.add(expiry.id());
+        }
+        return ids;
+    }
+
+    // Time until the earliest deadline (zero if it has passed), null if no file is waiting for one
+    public Duration untilNext() {
+        Expiry next = queue.peek();
+        return next != null ? Duration.ofMillis(Math.max(0, next.getDelay(TimeUnit.MILLISECONDS))) : null;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private record Expiry(String id, long deadlineMillis) implements Delayed {
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deadlineMillis, ((Expiry) other).deadlineMillis);
+        }
+    }
+}
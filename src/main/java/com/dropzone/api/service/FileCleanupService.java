@@ -2,97 +2,355 @@ package com.dropzone.api.service;
 
 import com.dropzone.api.model.FileMetadata;
 import com.dropzone.api.repository.FileRepository;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 @Service
 public class FileCleanupService {
 
+    // SQLite caps the number of bind parameters per statement, so big batches go out in slices
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    // Blobs this fresh are never treated as orphans: their upload may still be about to save its row
+    private static final Duration ORPHAN_MIN_AGE = Duration.ofMinutes(5);
+
     private final FileRepository fileRepository;
-    private final Path rootLocation;
+    private final FileMetadataCache metadataCache;
+    private final ExpiryScheduler expiryScheduler;
+    private final HotContentCache contentCache;
+    private final ShortIdAllocator idAllocator;
+    private final ContentAddressedStore contentStore;
+    private final ChunkedUploadService chunkedUploadService;
+    private final UploadAdmission admission; // Keeps its running total of stored bytes
+    private final DownloadSlotTokens slotTokens; // Follow-up ranges of a last download keep its file
+    private final TransferMetrics metrics;
+    private final StorageVolumes volumes;
+    private final TransactionTemplate readOnly;
+    private final int orphanBatchSize;
+    // UploadAdmission may start the reconcile and the orphan sweep early: never two of a kind at once
+    private final ReentrantLock reconciling = new ReentrantLock();
+    private final ReentrantLock sweeping = new ReentrantLock();
+    private Thread worker;
+    private volatile long orphanCursor; // Folder entries already covered in the current lap
 
     public FileCleanupService(FileRepository fileRepository,
-                              @Value("${app.storage.location}") String storageLocation) {
+                              FileMetadataCache metadataCache,
+                              ExpiryScheduler expiryScheduler,
+                              HotContentCache contentCache,
+                              ShortIdAllocator idAllocator,
+                              ContentAddressedStore contentStore,
+                              ChunkedUploadService chunkedUploadService,
+                              UploadAdmission admission,
+                              DownloadSlotTokens slotTokens,
+                              TransferMetrics metrics,
+                              StorageVolumes volumes,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${app.orphans.batch-size:10000}") int orphanBatchSize) {
         this.fileRepository = fileRepository;
-        this.rootLocation = Paths.get(storageLocation);
+        this.metadataCache = metadataCache;
+        this.expiryScheduler = expiryScheduler;
+        this.contentCache = contentCache;
+        this.idAllocator = idAllocator;
+        this.contentStore = contentStore;
+        this.chunkedUploadService = chunkedUploadService;
+        this.admission = admission;
+        this.slotTokens = slotTokens;
+        this.metrics = metrics;
+        this.volumes = volumes;
+        this.readOnly = new TransactionTemplate(transactionManager);
+        this.readOnly.setReadOnly(true); // Goes to a reader connection (DataSourceConfig)
+        this.orphanBatchSize = orphanBatchSize;
+    }
+
+    // 1. On startup: start the expiry worker, which first queues the deadline of every file we already
+    // have (on its own thread, so the first request doesn't wait for a scan of the table).
+    // From here on, uploads and downloads feed the ExpiryScheduler and nobody polls the table.
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void startExpiryWorker() {
+        if (worker != null) return;
+        worker = new Thread(this::runExpiryWorker, "dz-expiry");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void queueDeadlines() {
+        for (FileRepository.ExpiryView file : fileRepository.findAllProjectedBy()) {
+            if (file.getDownloadCount() >= file.getMaxDownloads()) {
+                expiryScheduler.scheduleAfter(file.getId(), Duration.ZERO);
+            } else {
+                expiryScheduler.schedule(file.getId(), file.getExpiryTime());
+            }
+        }
+        System.out.println("🧹 Janitor: watching " + expiryScheduler.size() + " file deadlines.");
+    }
+
+    @PreDestroy
+    public synchronized void stopExpiryWorker() {
+        if (worker != null) worker.interrupt();
+    }
+
+    // Sleeps until the earliest deadline, deletes everything that is due in one batch, repeat
+    private void runExpiryWorker() {
+        try {
+            queueDeadlines();
+        } catch (RuntimeException e) {
+            // Files keep their deadlines on disk: the reconciliation below deletes them, just less punctually
+            System.err.println("⚠️ Janitor could not load the file deadlines: " + e.getMessage());
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<String> due = expiryScheduler.awaitDue();
+                long started = System.nanoTime();
+                metrics.recordJanitorPass("expiry", started, deleteExpired(due));
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // The reconciliation below picks up whatever this batch left behind
+                System.err.println("⚠️ Janitor failed to delete a batch: " + e.getMessage());
+            }
+        }
     }
 
-    // Runs every 60 seconds (60000 ms)
-    @Scheduled(fixedRate = 60000)
-    @Transactional // Ensures DB delete and File delete happen together (mostly)
+    // 2. Safety net: a cheap sweep for anything the scheduler missed (e.g. a failed batch).
+    // Runs every 10 minutes by default; files normally go at their exact deadline.
+    @Scheduled(fixedDelayString = "${app.expiry.reconcile-ms:600000}", initialDelayString = "${app.expiry.reconcile-ms:600000}")
     public void cleanupExpiredFiles() {
+        if (!reconciling.tryLock()) return; // Already running (started early)
+        try {
+            System.out.println("🧹 Janitor is working... Checking for expired files.");
+            long started = System.nanoTime();
 
-        System.out.println("🧹 Janitor is working... Checking for expired files.");
+            // 0. Download counters live in memory: write them out so the limit query sees them
+            metadataCache.flushDownloadCounts();
 
-        // 1. Find files that are PAST their expiry time
-        List<FileMetadata> timeExpiredFiles = fileRepository.findByExpiryTimeBefore(LocalDateTime.now());
-        List<FileMetadata> limitExpiredFiles = fileRepository.findByExpiryLimit();
+            // 1. Find files that are PAST their expiry time, or out of downloads
+            Set<String> ids = new LinkedHashSet<>();
+            for (FileMetadata file : fileRepository.findByExpiryTimeBefore(LocalDateTime.now())) ids.add(file.getId());
+            for (FileMetadata file : fileRepository.findByExpiryLimit()) ids.add(file.getId());
 
-        // 2. Loop through and delete them
-        for (FileMetadata file : timeExpiredFiles) {
-            deleteFile(file);
+            // 2. Delete them in batches
+            metrics.recordJanitorPass("reconcile", started, deleteExpired(ids));
+        } finally {
+            reconciling.unlock();
         }
+    }
 
-        for (FileMetadata file : limitExpiredFiles) {
-            deleteFile(file);
+    // Deletes the given files if they are really dead: one SELECT and one DELETE per batch, then the blobs.
+    // Ids may be stale or duplicated (a file queued for both its time and its download limit).
+    // Returns how many files were deleted.
+    int deleteExpired(Collection<String> ids) {
+        if (ids.isEmpty()) return 0;
+
+        List<FileMetadata> dead = new ArrayList<>();
+        for (FileMetadata file : fileRepository.findAllById(ids)) {
+            if (!isDead(file)) {
+                // Not yet (e.g. a released download slot): every file still dies at its expiry time
+                expiryScheduler.schedule(file.getId(), file.getExpiryTime());
+                continue;
+            }
+            // Used up, but its last download may still seek or resume: wait until its token runs out
+            Duration followUps = isTimedOut(file) ? null : slotTokens.redeemableFor(file.getId());
+            if (followUps != null) {
+                expiryScheduler.scheduleAfter(file.getId(), followUps);
+            } else {
+                dead.add(file);
+            }
         }
+
+        for (int from = 0; from < dead.size(); from += DELETE_BATCH_SIZE) {
+            List<FileMetadata> batch = dead.subList(from, Math.min(dead.size(), from + DELETE_BATCH_SIZE));
+
+            // A. Delete from Database first: a row without its blob is worse than a blob without its row
+            // (the orphan janitor removes the latter)
+            fileRepository.deleteAllByIdInBatch(batch.stream().map(FileMetadata::getId).toList());
+            admission.deleted(batch.stream().mapToLong(FileMetadata::getSize).sum()); // Off the quota's total
+
+            for (FileMetadata file : batch) {
+                // B. Drop it from the caches, so nobody is served a dead row (or its content)
+                metadataCache.evict(file.getId());
+                contentCache.evict(file.getStorageName());
+                idAllocator.release(file.getId()); // The link is dead: its id may be handed out again
+                // C. Delete from Hard Drive
+                deleteBlob(file);
+            }
+        }
+
+        // D. A bundle's id is free again once its last member is gone
+        Set<String> bundleIds = new LinkedHashSet<>();
+        for (FileMetadata file : dead) {
+            if (file.getBundleId() != null) bundleIds.add(file.getBundleId());
+        }
+        for (String bundleId : bundleIds) {
+            if (!fileRepository.existsByBundleId(bundleId)) idAllocator.release(bundleId);
+        }
+        return dead.size();
     }
 
-    private void deleteFile(FileMetadata file) {
-        try {
-            // A. Delete from Hard Drive
-            Path filePath = rootLocation.resolve(file.getStorageName());
-            Files.deleteIfExists(filePath);
+    // Out of time, or every permitted download completed. A download still streaming keeps its file:
+    // the row says "used up" as soon as the last slot is reserved, but an aborted slot comes back.
+    private boolean isDead(FileMetadata file) {
+        return isTimedOut(file) || metadataCache.isUsedUp(file);
+    }
 
-            // B. Delete from Database
-            fileRepository.delete(file);
+    private static boolean isTimedOut(FileMetadata file) {
+        return !LocalDateTime.now().isBefore(file.getExpiryTime());
+    }
 
+    private void deleteBlob(FileMetadata file) {
+        // Shared blobs go when their last row goes
+        if (ContentAddressedStore.isContentAddressed(file.getStorageName())) {
+            contentStore.release(file.getStorageName());
+            System.out.println("❌ Deleted expired file: " + file.getOriginalFilename());
+            return;
+        }
+        try {
+            volumes.delete(file.getStorageName());
             System.out.println("❌ Deleted expired file: " + file.getOriginalFilename());
-
         } catch (IOException e) {
             System.err.println("⚠️ Failed to delete file from disk: " + file.getStorageName());
         }
     }
 
-    // Run this once on startup, or periodically (e.g., every hour)
+    // 3. Orphan sweep: blobs on disk that no DB row points at (a crash between writing the blob and
+    // saving its row, a failed delete...). Streams the shard folders of every volume and checks names
+    // against one snapshot of the table, instead of one query per file. Big folders are covered over
+    // several runs: each run handles at most 'orphanBatchSize' entries and resumes where the last stopped.
     @Scheduled(fixedRate = 3600000) // 1 Hour
     public void cleanOrphanFiles() {
+        if (!sweeping.tryLock()) return; // Already running (started early)
+        try {
+            sweepOrphans();
+        } finally {
+            sweeping.unlock();
+        }
+    }
+
+    private void sweepOrphans() {
         System.out.println("🧹 Janitor: Checking for orphan files...");
+        long started = System.nanoTime();
+
+        // Anything younger than the snapshot (minus a margin) may be an upload whose row is not saved yet
+        Instant cutoff = Instant.now().minus(ORPHAN_MIN_AGE);
+        // Streaming the names needs a transaction, the walk below doesn't: a read transaction left open
+        // for the whole sweep would hold back WAL checkpoints until it ends
+        StorageNameSet known = readOnly.execute(status -> {
+            try (Stream<String> names = fileRepository.streamAllStorageNames()) {
+                return StorageNameSet.of(names);
+            }
+        });
+
+        long skip = orphanCursor;
+        int scanned = 0, orphans = 0, removed = 0;
+        boolean endOfFolder = true;
+        sweep:
+        for (Path volume : volumes.getVolumes()) {
+            // Depth 1: flat files from before the fan-out (and temp files), depth 3: <volume>/ab/cd/<blob>
+            try (Stream<Path> folder = Files.find(volume, 3, (path, attributes) -> attributes.isRegularFile())) {
+                for (Path path : (Iterable<Path>) folder::iterator) {
+                    if (skip > 0) {
+                        skip--; // Covered by an earlier run
+                        continue;
+                    }
+                    if (scanned == orphanBatchSize) {
+                        endOfFolder = false;
+                        break sweep;
+                    }
+                    scanned++;
 
-        File folder = new File(String.valueOf(rootLocation)); // Your upload folder path
-        File[] physicalFiles = folder.listFiles();
+                    String filename = path.getFileName().toString();
 
-        if (physicalFiles == null) return;
+                    // Skip hidden system files (like .DS_Store on Mac)
+                    if (filename.startsWith(".")) continue;
 
-        for (File file : physicalFiles) {
-            // Assuming your file names on disk MATCH the ID in the database
-            // or the 'storageName' in the database.
-            String filename = file.getName();
+                    // Skip chunked uploads that are still in progress (no DB record yet, on purpose)
+                    if (chunkedUploadService.isUploading(filename)) continue;
 
-            // Skip hidden system files (like .DS_Store on Mac)
-            if (filename.startsWith(".")) continue;
+                    // CHECK: Does the database know about this file? (may say yes for an orphan, never no for a live file)
+                    if (known.contains(filename)) continue;
 
-            // CHECK: Does the database know about this file?
-            boolean existsInDb = fileRepository.existsByStorageName(filename);
+                    if (!isSettledBlob(path, cutoff)) continue;
 
-            if (!existsInDb) {
-                System.out.println("🗑️ Found Orphan File (No DB Record): " + filename);
-                if (file.delete()) {
-                    System.out.println("   -> Deleted.");
-                } else {
-                    System.err.println("   -> Failed to delete.");
+                    orphans++;
+                    System.out.println("🗑️ Found Orphan File (No DB Record): " + filename);
+                    try {
+                        Files.delete(path);
+                        removed++;
+                    } catch (IOException e) {
+                        System.err.println("   -> Failed to delete.");
+                    }
                 }
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("⚠️ Janitor could not read the storage folder: " + e.getMessage());
+                return;
+            }
+        }
+
+        // Deleted entries shift the positions behind them; anything skipped that way is seen next lap
+        orphanCursor = endOfFolder ? 0 : orphanCursor + scanned;
+        metrics.recordJanitorPass("orphans", started, removed);
+        System.out.println("🧹 Janitor: scanned " + scanned + " files, found " + orphans + " orphans, removed "
+                + removed + (endOfFolder ? " (folder done)" : " (continues next run)"));
+    }
+
+    // A regular file nobody has written to since before the cutoff (gone in the meantime -> false)
+    private boolean isSettledBlob(Path path, Instant cutoff) {
+        try {
+            return Files.isRegularFile(path) && Files.getLastModifiedTime(path).toInstant().isBefore(cutoff);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // The storage names of one table snapshot as sorted 64-bit hashes: 8 bytes per row instead of
+    // a String in a HashSet. A hash collision can only make an orphan look known (it is then caught
+    // on a later lap, once its twin is gone); a live file never looks like an orphan.
+    private static final class StorageNameSet {
+
+        private final long[] hashes;
+
+        private StorageNameSet(long[] hashes) {
+            this.hashes = hashes;
+        }
+
+        static StorageNameSet of(Stream<String> names) {
+            long[] hashes = names.mapToLong(StorageNameSet::hash).sorted().toArray();
+            return new StorageNameSet(hashes);
+        }
+
+        boolean contains(String name) {
+            return Arrays.binarySearch(hashes, hash(name)) >= 0;
+        }
+
+        // 64-bit FNV-1a
+        private static long hash(String name) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                h ^= name.charAt(i);
+                h *= 0x100000001b3L;
             }
+            return h;
         }
     }
-}
\ No newline at end of file
+}
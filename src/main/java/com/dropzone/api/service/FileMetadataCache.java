@@ -0,0 +1,218 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bounded in-memory copy of the 'files' table, keyed by short id.
+// A download used to hit SQLite three or four times (verify, metadata, resource, counter); with the
+// cache warm it hits it zero times. Download counters are bumped in memory and written back in batches.
+//
+// Download admission is decided here, lock-free: every file has one AtomicInteger counter, and a
+// download slot is taken with a compare-and-set against maxDownloads before the first byte is sent.
+// The counter is the source of truth while the app runs; FileMetadata.downloadCount mirrors it and
+// the DB lags behind by at most one flush interval (and is caught up on shutdown).
+@Service
+public class FileMetadataCache {
+
+    private static final int TOMBSTONES = 4096;
+
+    private final FileRepository fileRepository;
+    private final int maxEntries;
+
+    // id -> metadata, least recently used first. Guarded by 'this'.
+    private final LinkedHashMap<String, FileMetadata> entries;
+
+    // id -> download counter. Not subject to LRU eviction (only to evict()), so a file always has
+    // exactly one counter even when its metadata is dropped and reloaded mid-download.
+    private final Map<String, AtomicInteger> downloadCounts = new ConcurrentHashMap<>();
+
+    // id -> downloads not yet written to the DB (negative for released slots)
+    private final Map<String, Integer> pendingDownloads = new ConcurrentHashMap<>();
+
+    // id -> slots reserved but not settled yet (the transfer is still going). The counter includes them.
+    private final Map<String, AtomicInteger> inFlightDownloads = new ConcurrentHashMap<>();
+
+    // Evictions so far, and the id -> eviction number of recently evicted ids (tombstones). Guarded by 'this'.
+    // A lookup that started before an id's eviction must not insert the row it read.
+    private long evictions;
+    private final LinkedHashMap<String, Long> evictedAt;
+
+    public FileMetadataCache(FileRepository fileRepository,
+                             @Value("${app.cache.metadata.max-entries:10000}") int maxEntries) {
+        this.fileRepository = fileRepository;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+                // Evicting is safe: the counters live in their own map and are re-applied on reload
+                return size() > FileMetadataCache.this.maxEntries;
+            }
+        };
+        this.evictedAt = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                // Only lookups in flight need a tombstone; a bounded window of the latest is plenty
+                return size() > TOMBSTONES;
+            }
+        };
+    }
+
+    // 1. Lookup by short id: memory first, SQLite only on a miss. Returns null if the file is unknown.
+    public FileMetadata get(String id) {
+        long generation;
+        synchronized (this) {
+            FileMetadata cached = entries.get(id);
+            if (cached != null) return cached;
+            generation = evictions;
+        }
+
+        FileMetadata loaded = fileRepository.findById(id).orElse(null);
+        if (loaded == null) return null;
+
+        synchronized (this) {
+            // Someone else loaded it while we were in the DB: keep theirs, it may already carry new downloads
+            FileMetadata raced = entries.get(id);
+            if (raced != null) return raced;
+
+            // The janitor deleted it while we were in the DB: what we read is already gone
+            if (evictedAt.getOrDefault(id, Long.MIN_VALUE) > generation) return null;
+            if (evictions - generation <= TOMBSTONES) {
+                // The row does not know about downloads still waiting for the next flush; the counter does
+                loaded.setDownloadCount(counter(loaded).get());
+                entries.put(id, loaded);
+                return loaded;
+            }
+        }
+        // More evictions than tombstones kept while we were in the DB: can't tell, read it again
+        return get(id);
+    }
+
+    // 2. Freshly saved rows go straight in, so the first download is already a hit
+    public synchronized void put(FileMetadata metadata) {
+        entries.put(metadata.getId(), metadata);
+        downloadCounts.put(metadata.getId(), new AtomicInteger(metadata.getDownloadCount()));
+    }
+
+    // 2b. A live share's file is about to be saved: 'slots' downloads were taken on the share, and every
+    // one of them settles here (completeDownload / releaseDownload) once the row exists. They are in
+    // flight from the start, so the file isn't deleted under a receiver and an aborted one comes back.
+    public void handOver(FileMetadata metadata, int slots) {
+        inFlight(metadata).addAndGet(slots);
+    }
+
+    // 3. The janitor deleted the row: forget it, including downloads we never wrote back.
+    // The id is marked, so a lookup that read the row just before the delete doesn't put it back.
+    public synchronized void evict(String id) {
+        entries.remove(id);
+        downloadCounts.remove(id);
+        pendingDownloads.remove(id);
+        inFlightDownloads.remove(id);
+        evictedAt.remove(id); // Re-inserted at the young end of the window
+        evictedAt.put(id, ++evictions);
+    }
+
+    // 4. Take one download slot. Returns false if the limit is already used up: of any number of
+    // concurrent callers on a 1-download file, exactly one gets true. Written to the DB by the next flush.
+    // The slot is in flight until completeDownload() or releaseDownload() settles it.
+    public boolean tryReserveDownload(FileMetadata metadata) {
+        // In flight before it is counted, so isUsedUp() never sees the count without it
+        AtomicInteger running = inFlight(metadata);
+        running.incrementAndGet();
+        AtomicInteger counter = counter(metadata);
+        int current;
+        do {
+            current = counter.get();
+            if (current >= metadata.getMaxDownloads()) {
+                settle(running);
+                return false;
+            }
+        } while (!counter.compareAndSet(current, current + 1));
+
+        pendingDownloads.merge(metadata.getId(), 1, Integer::sum);
+        metadata.setDownloadCount(counter.get());
+        return true;
+    }
+
+    // 5. Give back a slot whose transfer failed or was aborted before the file was delivered
+    public void releaseDownload(FileMetadata metadata) {
+        AtomicInteger counter = counter(metadata);
+        counter.decrementAndGet();
+        pendingDownloads.merge(metadata.getId(), -1, Integer::sum);
+        metadata.setDownloadCount(counter.get());
+        settle(inFlight(metadata)); // Uncounted before it leaves flight: isUsedUp() never sees it counted alone
+    }
+
+    // 6. A slot's transfer went through: it stays counted and is no longer in flight
+    public void completeDownload(FileMetadata metadata) {
+        settle(inFlight(metadata));
+    }
+
+    // True once every permitted download has been handed out (counter, not the possibly stale row)
+    public boolean isExhausted(FileMetadata metadata) {
+        AtomicInteger counter = downloadCounts.get(metadata.getId());
+        int count = counter != null ? counter.get() : metadata.getDownloadCount();
+        return count >= metadata.getMaxDownloads();
+    }
+
+    // True once every permitted download has been completed: exhausted, and no slot still in flight.
+    // Only then may the file be deleted for its download limit; an aborted slot must be able to come back.
+    public boolean isUsedUp(FileMetadata metadata) {
+        if (!isExhausted(metadata)) return false; // Counter first: a slot is in flight before it is counted
+        AtomicInteger running = inFlightDownloads.get(metadata.getId());
+        return running == null || running.get() == 0;
+    }
+
+    private AtomicInteger inFlight(FileMetadata metadata) {
+        return inFlightDownloads.computeIfAbsent(metadata.getId(), id -> new AtomicInteger());
+    }
+
+    // Never below zero, whatever a caller settles twice
+    private static void settle(AtomicInteger running) {
+        running.updateAndGet(n -> Math.max(0, n - 1));
+    }
+
+    // The mirrored downloadCount on FileMetadata is only a hint (isExpired() for the early 410);
+    // admission itself always goes through the counter.
+    private AtomicInteger counter(FileMetadata metadata) {
+        return downloadCounts.computeIfAbsent(metadata.getId(), id -> new AtomicInteger(metadata.getDownloadCount()));
+    }
+
+    // Write-behind: every pending counter goes out in one transaction, as a relative UPDATE,
+    // so nothing read from the DB in the meantime can be overwritten.
+    @Scheduled(fixedDelayString = "${app.cache.download-flush-ms:5000}")
+    @Transactional
+    public void flushDownloadCounts() {
+        if (pendingDownloads.isEmpty()) return;
+
+        Map<String, Integer> batch = new HashMap<>();
+        for (String id : pendingDownloads.keySet()) {
+            // remove() hands us the value atomically; a download racing with us starts a fresh entry
+            Integer delta = pendingDownloads.remove(id);
+            if (delta != null && delta != 0) batch.put(id, delta);
+        }
+
+        try {
+            batch.forEach(fileRepository::addDownloads);
+        } catch (RuntimeException e) {
+            // Put them back for the next round rather than losing them
+            batch.forEach((id, delta) -> pendingDownloads.merge(id, delta, Integer::sum));
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushDownloadCounts();
+    }
+}
@@ -0,0 +1,316 @@
+package com.dropzone.api.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decrypted content of small, popular files, kept off-heap (direct buffers), keyed by storage name.
+// A link posted in a group chat gets fetched by dozens of phones within seconds; without this every
+// one of them reopens the file, sets up a cipher and decrypts it again. With it, repeat downloads are
+// a copy out of memory (Range requests included).
+//
+// Admission is by frequency, not recency (the TinyLFU idea): every request is counted in a small
+// count-min sketch that halves itself now and then, so counts are "recent popularity". A file is only
+// loaded once it has been asked for 'minHits' times, and it only pushes out older entries that are
+// asked for less often than itself. A burst of one-off downloads can't flush the hot set.
+//
+// Only encrypted files are cached: plain ones already go disk -> socket through sendfile and the
+// OS page cache. Compressed files are kept as stored (gzip), which is also what gzip clients get.
+// Entries go when their file expires or uses up its downloads (evict()). Memory counts against
+// -XX:MaxDirectMemorySize (by default as large as the heap limit).
+@Service
+public class HotContentCache {
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final int minHits;
+    private final TransferMetrics metrics;
+    private final FrequencySketch sketch = new FrequencySketch(4096);
+
+    // storage name -> content, least recently used first. Guarded by 'lock'.
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: no pinned virtual threads
+    private volatile long usedBytes; // Written under 'lock'. Includes the room reserved for loads in progress
+
+    // Loads in progress: of a burst of first requests, one decrypts and the others wait for it
+    // (null if it was not admitted: they all serve the file from its source then)
+    private final Map<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+
+    public HotContentCache(TransferMetrics metrics,
+                           @Value("${app.cache.content.max-size:64MB}") DataSize maxSize,
+                           @Value("${app.cache.content.max-file-size:2MB}") DataSize maxFileSize,
+                           @Value("${app.cache.content.min-hits:2}") int minHits) {
+        this.metrics = metrics;
+        this.maxBytes = maxSize.toBytes();
+        this.maxFileSize = Math.min(maxFileSize.toBytes(), Integer.MAX_VALUE);
+        this.minHits = minHits;
+        metrics.registerContentCache(() -> usedBytes, entries::size);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    // 1. The cached content of a blob of 'length' bytes, or null. Counts as one request for it.
+    public Resource get(String storageName, long length) {
+        if (!isEnabled() || length <= 0 || length > maxFileSize) return null;
+        sketch.increment(storageName);
+
+        ByteBuffer content;
+        lock.lock();
+        try {
+            content = entries.get(storageName);
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordContentCache(content != null);
+        return content != null ? new BufferResource(content, storageName) : null;
+    }
+
+    // 2. After a miss: 'source' (the decrypting resource) is read into memory if the blob is popular
+    // enough and wins its place in the cache, and the in-memory copy is returned. Otherwise 'source'
+    // itself comes back untouched: nothing is read ahead of the download.
+    public Resource offer(String storageName, Resource source) throws IOException {
+        long length = source.contentLength();
+        if (!isEnabled() || length <= 0 || length > maxFileSize) return source;
+        if (sketch.frequency(storageName) < minHits) return source;
+
+        CompletableFuture<ByteBuffer> task = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = loading.putIfAbsent(storageName, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.complete(loadAdmitted(storageName, source, (int) length));
+            } catch (IOException | RuntimeException e) {
+                task.completeExceptionally(e);
+            } finally {
+                loading.remove(storageName, task);
+            }
+        }
+        ByteBuffer content = await(storageName, running);
+        return content != null ? new BufferResource(content, storageName) : source;
+    }
+
+    // 3. The blob expired, used up its downloads or was deleted
+    public void evict(String storageName) {
+        lock.lock();
+        try {
+            ByteBuffer removed = entries.remove(storageName);
+            if (removed != null) usedBytes -= removed.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reserves the room first, and only then allocates and reads: null (nothing read) if not admitted
+    private ByteBuffer loadAdmitted(String storageName, Resource source, int length) throws IOException {
+        if (!reserve(storageName, length)) return null;
+        boolean cached = false;
+        try {
+            ByteBuffer content = read(source, length);
+            lock.lock();
+            try {
+                entries.put(storageName, content); // Its bytes were counted by reserve()
+            } finally {
+                lock.unlock();
+            }
+            cached = true;
+            return content;
+        } finally {
+            if (!cached) unreserve(length);
+        }
+    }
+
+    private ByteBuffer await(String storageName, CompletableFuture<ByteBuffer> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + storageName);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IOException("Failed to load " + storageName, e.getCause());
+        }
+    }
+
+    private static ByteBuffer read(Resource source, int length) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect(length);
+        byte[] chunk = new byte[Math.min(length, 65536)];
+        try (InputStream in = source.getInputStream()) {
+            while (content.hasRemaining()) {
+                int n = in.read(chunk, 0, Math.min(chunk.length, content.remaining()));
+                if (n < 0) throw new IOException("Stored content is shorter than its recorded length");
+                content.put(chunk, 0, n);
+            }
+        }
+        return content.flip().asReadOnlyBuffer();
+    }
+
+    // Makes room by dropping least recently used entries, but only ones asked for less often than
+    // the newcomer, and counts the newcomer's bytes as used. If that is not enough (or it is cached
+    // already), the newcomer stays out, nothing is dropped and false comes back.
+    private boolean reserve(String storageName, int size) {
+        if (size > maxBytes) return false;
+        int frequency = sketch.frequency(storageName);
+
+        lock.lock();
+        try {
+            if (entries.containsKey(storageName)) return false;
+            long needed = usedBytes + size - maxBytes;
+            if (needed > 0) {
+                long freed = 0;
+                for (Map.Entry<String, ByteBuffer> victim : entries.entrySet()) {
+                    if (freed >= needed) break;
+                    if (sketch.frequency(victim.getKey()) >= frequency) return false; // The hotter one stays
+                    freed += victim.getValue().capacity();
+                }
+                if (freed < needed) return false;
+                Iterator<Map.Entry<String, ByteBuffer>> victims = entries.entrySet().iterator();
+                while (usedBytes + size > maxBytes) {
+                    usedBytes -= victims.next().getValue().capacity();
+                    victims.remove();
+                }
+            }
+            usedBytes += size;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The load after reserve() failed
+    private void unreserve(int size) {
+        lock.lock();
+        try {
+            usedBytes -= size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Count-min sketch of recent request counts: 4 rows of 4-bit-ish counters (capped at 15).
+    // After 10 x width increments every counter is halved, so old popularity fades.
+    // Updates are racy on purpose: a lost increment only makes an estimate one lower.
+    private static final class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final int[][] rows;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int width) {
+            this.rows = new int[SEEDS.length][width];
+            this.mask = width - 1; // 'width' is a power of two
+            this.resetAfter = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < MAX_COUNT) rows[i][index]++;
+            }
+            if (++additions >= resetAfter) halve();
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void halve() {
+            additions = 0;
+            for (int[] row : rows) {
+                for (int i = 0; i < row.length; i++) row[i] >>>= 1;
+            }
+        }
+    }
+
+    // Content in memory as a Resource. Every stream reads its own view of the shared buffer; a stream
+    // still open when its entry is evicted keeps reading (the memory goes once nobody holds it).
+    private static final class BufferResource extends AbstractResource {
+
+        private final ByteBuffer content;
+        private final String storageName;
+
+        BufferResource(ByteBuffer content, String storageName) {
+            this.content = content;
+            this.storageName = storageName;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return content.limit();
+        }
+
+        @Override
+        public String getDescription() {
+            return "Cached content [" + storageName + "]";
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer view = content.duplicate();
+            view.position(0);
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return view.hasRemaining() ? view.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) return 0;
+                    if (!view.hasRemaining()) return -1;
+                    int n = Math.min(len, view.remaining());
+                    view.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int skipped = (int) Math.max(0, Math.min(n, view.remaining()));
+                    view.position(view.position() + skipped);
+                    return skipped;
+                }
+
+                @Override
+                public int available() {
+                    return view.remaining();
+                }
+            };
+        }
+    }
+}
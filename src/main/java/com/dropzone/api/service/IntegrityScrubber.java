@@ -0,0 +1,164 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.AEADBadTagException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Background integrity check: every stored file is read back the way a download gets it (decrypted,
+// inflated) and its SHA-256 compared with the one taken while it was uploaded. Catches bit rot and
+// tampering on disk, which for unencrypted files (media, archives) nothing else would notice; encrypted
+// ones would fail their GCM tag, but only in front of the person downloading them.
+//
+// Low priority: it reads at most 'rate' bytes per second, gives up the current file and pass as soon as
+// anybody is uploading or downloading (the next pass picks up where it stopped), and never goes through
+// the hot-file cache. Files without a checksum (chunked uploads whose chunks came out of order, rows from
+// older versions) are done first and get their checksum here. A file that no longer matches is expired.
+@Service
+public class IntegrityScrubber {
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final String SIZE_MISMATCH = "size:";
+
+    private final FileRepository fileRepository;
+    private final StorageService storageService;
+    private final FileMetadataCache metadataCache;
+    private final ExpiryScheduler expiryScheduler;
+    private final TransferMetrics metrics;
+    private final long rate; // Bytes per second, 0 = off
+
+    private volatile String cursor = ""; // Last id checked in the current lap over the table
+    private final Set<String> unreadable = ConcurrentHashMap.newKeySet(); // Not retried for a checksum every pass
+
+    public IntegrityScrubber(FileRepository fileRepository,
+                             StorageService storageService,
+                             FileMetadataCache metadataCache,
+                             ExpiryScheduler expiryScheduler,
+                             TransferMetrics metrics,
+                             @Value("${app.scrub.rate:16MB}") DataSize rate) {
+        this.fileRepository = fileRepository;
+        this.storageService = storageService;
+        this.metadataCache = metadataCache;
+        this.expiryScheduler = expiryScheduler;
+        this.metrics = metrics;
+        this.rate = rate.toBytes();
+    }
+
+    @Scheduled(initialDelayString = "${app.scrub.interval-ms:300000}", fixedDelayString = "${app.scrub.interval-ms:300000}")
+    public void scrub() {
+        if (rate <= 0) return;
+        long started = System.nanoTime();
+        int corrupt = 0;
+        try {
+            // 1. Files with no checksum yet come first
+            for (FileMetadata file : fileRepository.findTop100ByChecksumIsNullOrderByIdAsc()) {
+                if (unreadable.contains(file.getId())) continue;
+                if (metrics.activeTransfers() > 0) return;
+                if (check(file)) corrupt++;
+            }
+
+            // 2. Then the next slice of the lap; an empty slice means the lap is over and the next starts
+            List<FileMetadata> slice = fileRepository.findTop100ByIdGreaterThanOrderByIdAsc(cursor);
+            if (slice.isEmpty()) {
+                cursor = "";
+                return;
+            }
+            for (FileMetadata file : slice) {
+                if (metrics.activeTransfers() > 0) return;
+                if (check(file)) corrupt++;
+                cursor = file.getId();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.recordJanitorPass("scrub", started, corrupt);
+        }
+    }
+
+    // One file. true if it turned out corrupt (and was taken offline).
+    private boolean check(FileMetadata file) throws InterruptedException {
+        String actual;
+        try {
+            actual = digest(file, true);
+        } catch (NoSuchFileException e) {
+            return false; // Deleted while we were on it
+        } catch (IOException | RuntimeException e) {
+            if (causedBy(e, AEADBadTagException.class)) return corrupt(file, "failed its authentication tag");
+            System.err.println("⚠️ Scrubber could not read " + file.getId() + ": " + e.getMessage());
+            unreadable.add(file.getId());
+            metrics.recordScrub("unreadable");
+            return false;
+        }
+        if (actual == null) return false; // Gave way to a transfer: checked again next pass
+        if (actual.startsWith(SIZE_MISMATCH)) return corrupt(file, "has the wrong length (" + actual + ")");
+
+        if (file.getChecksum() == null) {
+            fileRepository.setChecksum(file.getId(), actual);
+            FileMetadata cached = metadataCache.get(file.getId());
+            if (cached != null) cached.setChecksum(actual);
+            metrics.recordScrub("filled");
+            return false;
+        }
+        if (!file.getChecksum().equals(actual)) return corrupt(file, "no longer matches its SHA-256");
+        metrics.recordScrub("ok");
+        return false;
+    }
+
+    private boolean corrupt(FileMetadata file, String problem) {
+        System.err.println("❌ Stored file " + file.getId() + " (" + file.getStorageName() + ") " + problem + ": taking it offline");
+        expiryScheduler.scheduleAfter(file.getId(), Duration.ZERO);
+        metrics.recordScrub("corrupt");
+        return true;
+    }
+
+    // Hex SHA-256 of what a download of 'file' would deliver. With 'throttled', read at 'rate' and
+    // abandoned (null) as soon as a transfer starts. A length that differs from the recorded size
+    // comes back as "size:<length>", which no checksum matches.
+    public String digest(FileMetadata file, boolean throttled) throws IOException, InterruptedException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        long started = System.nanoTime();
+        try (InputStream in = storageService.openOriginal(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha256.update(buffer, 0, n);
+                total += n;
+                if (!throttled) continue;
+                if (metrics.activeTransfers() > 0) return null;
+                // Ahead of 'rate': sleep until the bytes read so far are due
+                long due = started + total * 1_000_000_000L / rate;
+                long ahead = due - System.nanoTime();
+                if (ahead > 0) Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000));
+            }
+        }
+        if (total != file.getSize()) return SIZE_MISMATCH + total;
+        return HexFormat.of().formatHex(sha256.digest());
+    }
+
+    private static boolean causedBy(Throwable e, Class<? extends Throwable> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,271 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.model.LiveShare;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Live transfers: open -> hand out the link -> upload, while receivers already download.
+// For "laptop -> phone, right now" the normal path is upload, encrypt to disk, then read and decrypt
+// again for the download: two transfers back to back. Here the upload is teed into a RelayBuffer on
+// its way to storage, and receivers that open the link in time read from that buffer as the bytes
+// arrive. The whole thing takes about as long as one transfer.
+//
+// Receivers that come too late for the relay (its start is already overwritten) are told to come back
+// (503 + Retry-After) and get the stored file once the upload is done. A share opened with persist=false (1-download shares only) is
+// never stored: the bytes go through memory to its one receiver and nowhere else.
+@Service
+public class LiveRelayService {
+
+    private final StorageService storageService;
+    private final ShortIdAllocator idAllocator;
+    private final TransferMetrics metrics;
+    private final int bufferSize;
+    private final Duration receiverWait;
+    private final Duration stallTimeout;
+    private final Duration retryAfter;
+
+    private final SecureRandom random = new SecureRandom();
+
+    // id -> share whose upload hasn't finished yet
+    private final Map<String, Relay> relays = new ConcurrentHashMap<>();
+
+    public LiveRelayService(StorageService storageService,
+                            ShortIdAllocator idAllocator,
+                            TransferMetrics metrics,
+                            @Value("${app.relay.buffer-size:8MB}") DataSize bufferSize,
+                            @Value("${app.relay.receiver-wait:30s}") Duration receiverWait,
+                            @Value("${app.relay.stall-timeout:30s}") Duration stallTimeout,
+                            @Value("${app.relay.retry-after:5s}") Duration retryAfter) {
+        this.storageService = storageService;
+        this.idAllocator = idAllocator;
+        this.metrics = metrics;
+        this.bufferSize = (int) Math.min(bufferSize.toBytes(), Integer.MAX_VALUE - 8);
+        this.receiverWait = receiverWait;
+        this.stallTimeout = stallTimeout;
+        this.retryAfter = retryAfter;
+    }
+
+    // 1. Open a share: the id (and so the link) exists before the first byte is sent
+    public LiveShare open(String filename, long size, String contentType, int maxDownloads, int expiryMinutes,
+                          String password, boolean persist) {
+        if (!persist && maxDownloads != 1) {
+            throw new IllegalArgumentException("Only 1-download shares can skip storage");
+        }
+        String mimeType = FileSystemStorageService.resolveContentType(filename, contentType);
+        LiveShare share = new LiveShare(idAllocator.allocate(), newUploadSecret(), filename, mimeType, size,
+                maxDownloads, expiryMinutes, password, persist);
+
+        // A stored share waits a little for its first receiver, one that isn't stored waits until it expires
+        Duration holdStart = persist ? receiverWait : Duration.ofMinutes(Math.max(1, expiryMinutes));
+        relays.put(share.getId(), new Relay(share, new RelayBuffer(bufferSize, !persist, holdStart, stallTimeout)));
+        return share;
+    }
+
+    // Random, unrelated to the id: whoever has the link can download, only the opener can upload
+    private String newUploadSecret() {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // null once the upload has finished (or for any id that was never live)
+    public LiveShare get(String id) {
+        Relay relay = relays.get(id);
+        return relay != null ? relay.share() : null;
+    }
+
+    // 2. The upload. Returns the stored file, or null for a share that is not stored (once its receiver
+    // has every byte). IllegalStateException if the share already had an upload.
+    public FileMetadata upload(LiveShare share, InputStream body, long contentLength) throws IOException {
+        Relay relay = relays.get(share.getId());
+        if (relay == null || !share.start(contentLength)) {
+            throw new IllegalStateException("Live share " + share.getId() + " is not waiting for an upload");
+        }
+        RelayBuffer buffer = relay.buffer();
+        buffer.start();
+        InputStream tee = new TeeInputStream(body, buffer, share);
+        try {
+            FileMetadata stored;
+            if (share.isPersist()) {
+                // Stored exactly like a streamed upload, only under the share's id; receivers read along
+                stored = storageService.storeLive(share, tee);
+                share.stored(stored);
+            } else {
+                try (TransferMetrics.Transfer transfer = metrics.upload("live")) {
+                    transfer.success(tee.transferTo(OutputStream.nullOutputStream()));
+                    buffer.awaitDelivered();
+                }
+                stored = null;
+                share.delivered();
+                idAllocator.release(share.getId()); // Nothing is kept under it
+            }
+            System.out.println("📡 Live share " + share.getId() + " done: " + share.getReceived() + " bytes");
+            return stored;
+        } catch (IOException | RuntimeException e) {
+            buffer.fail(e instanceof IOException io ? io : new IOException(e.getMessage(), e));
+            share.failed(e);
+            idAllocator.release(share.getId());
+            throw e;
+        } finally {
+            relays.remove(share.getId());
+        }
+    }
+
+    // 3. A receiver, from byte 0. Takes one of the share's download slots: closing the stream settles
+    // it (used if every byte was read, given back otherwise). null if no slot is left, or if the relay
+    // has moved past its start: see stored().
+    public InputStream join(LiveShare share) {
+        Relay relay = relays.get(share.getId());
+        if (relay == null || !share.tryReserveDownload()) return null;
+        InputStream stream = relay.buffer().join();
+        if (stream == null) {
+            settle(share, false);
+            return null;
+        }
+        return new SlotInputStream(stream, share);
+    }
+
+    private void settle(LiveShare share, boolean complete) {
+        // Not stored: the relay itself notices a receiver that hung up (and there is no file to delete)
+        if (!share.isPersist()) return;
+        if (!complete && share.releaseDownload()) return;
+        // The slot went over to the stored file: settle it there once it is saved
+        String id = share.getId();
+        share.getStored().thenRun(() -> {
+            if (complete) storageService.completeDownload(id);
+            else storageService.releaseDownload(id);
+        });
+    }
+
+    // For receivers that missed the relay, without waiting: the stored file once the upload is saved,
+    // null while it is still going (come back after retryAfter()). Throws if it failed or ran out of time.
+    public FileMetadata stored(LiveShare share) {
+        CompletableFuture<FileMetadata> stored = share.getStored();
+        if (!stored.isDone()) return null;
+        FileMetadata metadata = stored.isCompletedExceptionally() ? null : stored.join();
+        if (metadata == null) throw new IllegalStateException("Live upload " + share.getId() + " was not stored");
+        return metadata;
+    }
+
+    public long retryAfterSeconds() {
+        return Math.max(1, retryAfter.toSeconds());
+    }
+
+    // Shares that never got their upload go when they expire
+    @Scheduled(fixedRate = 60000)
+    public void dropExpired() {
+        LocalDateTime now = LocalDateTime.now();
+        relays.values().removeIf(relay -> {
+            LiveShare share = relay.share();
+            if (!share.getExpiryTime().isBefore(now) || !share.expire()) return false;
+            relay.buffer().fail(new IOException("Live share expired before its upload"));
+            idAllocator.release(share.getId());
+            return true;
+        });
+    }
+
+    private record Relay(LiveShare share, RelayBuffer buffer) {
+    }
+
+    // A receiver's stream: settles its download slot once, when closed
+    private final class SlotInputStream extends FilterInputStream {
+
+        private final LiveShare share;
+        private boolean complete;
+        private boolean closed;
+
+        SlotInputStream(InputStream in, LiveShare share) {
+            super(in);
+            this.share = share;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) complete = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) complete = true;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                settle(share, complete);
+            }
+        }
+    }
+
+    // Everything read from the upload is also written into the relay, in order
+    private static final class TeeInputStream extends FilterInputStream {
+
+        private final RelayBuffer buffer;
+        private final LiveShare share;
+
+        TeeInputStream(InputStream in, RelayBuffer buffer, LiveShare share) {
+            super(in);
+            this.buffer = buffer;
+            this.share = share;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                buffer.write(b, off, n);
+                share.addReceived(n);
+            } else if (n < 0) {
+                buffer.finish(); // Receivers can finish before the stored copy is sealed and saved
+            }
+            return n;
+        }
+
+        // Skipped bytes would be missing from the relay: read them instead
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+                if (read < 0) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.dropzone.api.service;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+
+// An upload body on its way to disk: counts the bytes, hashes them (SHA-256 + the CRC-32 a ZIP entry
+// needs) and enforces the size limit as they pass, so size and checksums are known the moment the
+// copy ends, without a second read.
+public class MeteredInputStream extends FilterInputStream {
+
+    private final MessageDigest digest;
+    private final CRC32 crc = new CRC32();
+    private final long maxBytes;
+    private long count;
+    private byte[] result;
+
+    public MeteredInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.maxBytes = maxBytes;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            digest.update((byte) b);
+            crc.update(b);
+            advance(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            digest.update(b, off, n);
+            crc.update(b, off, n);
+            advance(n);
+        }
+        return n;
+    }
+
+    // Skipped bytes would be missing from the checksum
+    @Override
+    public long skip(long n) {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void advance(int n) {
+        count += n;
+        if (count > maxBytes) throw new MaxUploadSizeExceededException(maxBytes);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // SHA-256 of everything read so far. Call once the stream is consumed.
+    public byte[] digest() {
+        if (result == null) result = digest.digest();
+        return result;
+    }
+
+    public String checksum() {
+        return HexFormat.of().formatHex(digest());
+    }
+
+    public long crc32() {
+        return crc.getValue();
+    }
+}
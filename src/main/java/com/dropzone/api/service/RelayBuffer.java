@@ -0,0 +1,260 @@
+package com.dropzone.api.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The ring between the upload of a live share (one writer) and the receivers downloading it at the same
+// time (readers, each at its own position). The writer never gets more than 'capacity' bytes ahead of the
+// slowest reader: memory stays fixed whatever the file size, and the upload goes at its receivers' pace.
+//
+// A reader can only join while byte 0 is still in the ring. Until the first one has joined, the writer
+// keeps the start for 'holdStart' once the ring is full. After that a shared (persisted) upload goes on
+// to disk alone; a single-reader relay (nothing stored) fails, there is nobody else to give the bytes to.
+// A reader that stops reading for 'stall' is dropped, so one paused phone can't hold up the upload.
+// In single-reader mode, losing the reader fails the whole relay.
+final class RelayBuffer {
+
+    private final int capacity;
+    private final boolean singleReader;
+    private final long holdNanos;
+    private final long stallNanos;
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized: no pinned virtual threads
+    private final Condition changed = lock.newCondition();
+
+    // Guarded by 'lock'
+    private byte[] ring; // Allocated when the upload starts, not when the share is opened
+    private final List<Reader> readers = new ArrayList<>();
+    private long written;
+    private long holdDeadline; // nanoTime until which byte 0 is kept for the first reader
+    private boolean holding = true;
+    private boolean joined;
+    private boolean finished;
+    private IOException failure;
+
+    RelayBuffer(int capacity, boolean singleReader, Duration holdStart, Duration stall) {
+        this.capacity = capacity;
+        this.singleReader = singleReader;
+        this.holdNanos = holdStart.toNanos();
+        this.stallNanos = stall.toNanos();
+    }
+
+    // The upload begins: from here on the writer waits at most 'holdStart' for the first reader
+    void start() {
+        lock.lock();
+        try {
+            ring = new byte[capacity];
+            holdDeadline = System.nanoTime() + holdNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- Writer ---
+
+    void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (len > 0) {
+                if (failure != null) throw new IOException(failure.getMessage(), failure);
+                int free = free();
+                if (free == 0) {
+                    awaitRoom();
+                    continue;
+                }
+                int at = (int) (written % capacity);
+                int n = Math.min(Math.min(len, free), capacity - at);
+                System.arraycopy(b, off, ring, at, n);
+                written += n;
+                off += n;
+                len -= n;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The upload is complete: readers get EOF once they have everything
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void fail(IOException cause) {
+        lock.lock();
+        try {
+            if (failure == null) failure = cause;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Single-reader mode, after finish(): returns once the reader has taken the last byte
+    void awaitDelivered() throws IOException {
+        lock.lock();
+        try {
+            while (failure == null && (!joined || !readers.isEmpty())) {
+                if (!joined) {
+                    long left = holdDeadline - System.nanoTime();
+                    if (left <= 0) throw new IOException("Nobody came to receive the live transfer");
+                    await(left);
+                } else {
+                    awaitSlowest();
+                }
+            }
+            if (failure != null) throw new IOException(failure.getMessage(), failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Room before the writer would overwrite bytes somebody still needs
+    private int free() {
+        long keepFrom;
+        if (!readers.isEmpty()) keepFrom = slowestPosition();
+        else if (holding) keepFrom = 0;
+        else return capacity; // Nobody reading and nobody to wait for: old bytes can go
+        return (int) (capacity - (written - keepFrom));
+    }
+
+    private void awaitRoom() throws IOException {
+        if (!readers.isEmpty()) {
+            awaitSlowest();
+            return;
+        }
+        // Full, and the first reader hasn't come yet
+        long left = holdDeadline - System.nanoTime();
+        if (left > 0) {
+            await(left);
+        } else if (singleReader) {
+            throw new IOException("Nobody came to receive the live transfer");
+        } else {
+            holding = false; // Carry on alone: whoever comes later gets the stored file
+        }
+    }
+
+    // Waits for the slowest reader to move on. One that hasn't moved for 'stallNanos' is dropped.
+    private void awaitSlowest() throws IOException {
+        long slowest = slowestPosition();
+        long deadline = System.nanoTime() + stallNanos;
+        while (failure == null && !readers.isEmpty() && slowestPosition() == slowest) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                drop(slowest);
+                return;
+            }
+            await(left);
+        }
+    }
+
+    private void drop(long position) {
+        readers.removeIf(reader -> {
+            if (reader.position != position) return false;
+            reader.dropped = true;
+            return true;
+        });
+        if (singleReader && failure == null) failure = new IOException("The receiver stopped reading");
+        changed.signalAll();
+    }
+
+    private long slowestPosition() {
+        long slowest = Long.MAX_VALUE;
+        for (Reader reader : readers) slowest = Math.min(slowest, reader.position);
+        return slowest;
+    }
+
+    private void await(long nanos) throws InterruptedIOException {
+        try {
+            changed.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while relaying");
+        }
+    }
+
+    // --- Readers ---
+
+    // A stream of the upload from byte 0, or null if that is not possible any more
+    InputStream join() {
+        lock.lock();
+        try {
+            if (failure != null || (singleReader && joined) || written > capacity) return null;
+            Reader reader = new Reader();
+            readers.add(reader);
+            joined = true;
+            holding = false;
+            changed.signalAll();
+            return reader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Reader extends InputStream {
+
+        private long position; // Guarded by 'lock'
+        private boolean dropped;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            lock.lock();
+            try {
+                while (true) {
+                    if (dropped) throw new IOException("Dropped from the live transfer: too slow");
+                    if (closed) throw new IOException("Stream closed");
+                    if (position < written) {
+                        int at = (int) (position % capacity);
+                        int n = (int) Math.min(Math.min(len, written - position), capacity - at);
+                        System.arraycopy(ring, at, b, off, n);
+                        position += n;
+                        changed.signalAll(); // The writer may be waiting for this room
+                        return n;
+                    }
+                    if (failure != null) throw new IOException("The live upload failed", failure);
+                    if (finished) return -1;
+                    // Waits as long as the upload does: a stuck upload fails on its own read timeout
+                    await(TimeUnit.SECONDS.toNanos(1));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                readers.remove(this);
+                // Nobody else gets these bytes: a receiver leaving early ends the relay
+                boolean complete = finished && position == written;
+                if (singleReader && !complete && failure == null) failure = new IOException("The receiver hung up");
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
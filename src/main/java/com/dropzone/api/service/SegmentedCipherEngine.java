@@ -0,0 +1,502 @@
+package com.dropzone.api.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The v2 encryption format: AES-256-GCM over fixed-size segments (1MB by default).
+//
+// Every segment is sealed on its own, so segments are encrypted and decrypted in parallel on a
+// small worker pool, and a download can start at any segment without touching the ones before it.
+// With AES-NI + CLMUL the JDK's GCM intrinsics run at well over 1 GB/s per core; the target for this
+// engine is >= 1000 MB/s per core end-to-end (see dropzone-benchmarks), i.e. disk- or network-bound.
+//
+// Layout:  [ header (32 bytes) | segment 0 + tag | segment 1 + tag | ... | last segment + tag ]
+//   header fields (after "DZCRYPT" + version 2):  segment size (4 bytes) | nonce prefix (7 bytes)
+//   nonce of segment i = nonce prefix (7) | i (4, big-endian) | 1 if last segment else 0 (1)
+//   every segment authenticates the whole header as AAD
+// The "last" flag makes truncation detectable: dropping trailing segments breaks the tag check.
+@Service
+public class SegmentedCipherEngine {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int SEGMENT_SIZE_OFFSET = CipherService.HEADER_FIELDS_OFFSET;
+    private static final int NONCE_PREFIX_OFFSET = SEGMENT_SIZE_OFFSET + 4;
+
+    private final CipherService cipherService;
+    private final TransferMetrics metrics;
+    private final int segmentSize;
+    private final int window; // Segments in flight per transfer
+    private final ExecutorService workers;
+
+    // One decryption cipher and one direct buffer per worker thread. Direct buffers let the GCM
+    // intrinsics and FileChannel work on the same native memory, without an extra heap copy.
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(SegmentedCipherEngine::newCipher);
+    private final ThreadLocal<ByteBuffer> directBuffers = new ThreadLocal<>();
+
+    public SegmentedCipherEngine(CipherService cipherService,
+                                 @Value("${app.crypto.segment-size:1MB}") DataSize segmentSize,
+                                 @Value("${app.crypto.threads:0}") int threads,
+                                 @Value("${app.crypto.read-ahead:2}") int readAhead,
+                                 TransferMetrics metrics) {
+        this.cipherService = cipherService;
+        this.metrics = metrics;
+        this.segmentSize = (int) segmentSize.toBytes();
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.window = Math.max(2, Math.max(readAhead, poolSize));
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "dz-crypto-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // 1. A fresh v2 header: segment size + random nonce prefix
+    public byte[] newHeader() {
+        byte[] header = cipherService.newHeader(CipherService.VERSION_GCM);
+        ByteBuffer.wrap(header).putInt(SEGMENT_SIZE_OFFSET, segmentSize);
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        cipherService.random().nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, NONCE_PREFIX_OFFSET, NONCE_PREFIX_LENGTH);
+        return header;
+    }
+
+    // 2. Encrypt a whole stream into 'out' (header included). Returns the plaintext length.
+    // The caller's thread reads; workers encrypt and write each segment at its final position.
+    public long encrypt(InputStream in, FileChannel out, SecretKey key, byte[] header) throws IOException {
+        writeFully(out, ByteBuffer.wrap(header), 0);
+        int segment = segmentSize(header);
+
+        Batch batch = new Batch(segment);
+        long total = 0;
+        long index = 0;
+        byte[] current = batch.takeBuffer();
+        int n = in.readNBytes(current, 0, segment);
+        while (true) {
+            // We only know a segment is the last one once we tried to read the next
+            byte[] next = null;
+            int m = 0;
+            if (n == segment) {
+                next = batch.takeBuffer();
+                m = in.readNBytes(next, 0, segment);
+            }
+            boolean last = n < segment || m == 0;
+            batch.encrypt(out, key, header, index, current, n, last, null);
+            total += n;
+            if (last) {
+                if (next != null) batch.returnBuffer(next);
+                break;
+            }
+            current = next;
+            n = m;
+            index++;
+        }
+        batch.await();
+        return total;
+    }
+
+    // 3. Encrypt one slice of a file whose total plaintext length is already known (chunked uploads).
+    // 'plainOffset' must be segment-aligned; the slice is 'length' bytes read from 'in'.
+    // 'sealed' holds the indexes of every segment of this file that was ever sealed (added here): a nonce
+    // is used once. A segment sealed before (a retried chunk whose first attempt broke off) is only
+    // accepted if it holds exactly the bytes already on disk, and is then left as it is. One whose first
+    // attempt never got it to disk can't be sealed again under its nonce: SegmentLost, the file is lost.
+    // Returns (or throws) only once no segment of this call is still being written.
+    public void encryptRange(InputStream in, FileChannel out, SecretKey key, byte[] header,
+                             long plainOffset, long length, long totalLength, Set<Long> sealed) throws IOException {
+        int segment = segmentSize(header);
+        if (plainOffset % segment != 0) throw new IllegalArgumentException("Offset is not segment-aligned");
+        long lastIndex = segmentCount(totalLength, segment) - 1;
+
+        Batch batch = new Batch(segment);
+        boolean written = false;
+        try {
+            long done = 0;
+            long index = plainOffset / segment;
+            while (done < length) {
+                int want = (int) Math.min(segment, length - done);
+                byte[] buffer = batch.takeBuffer();
+                int n = in.readNBytes(buffer, 0, want);
+                if (n < want) {
+                    batch.returnBuffer(buffer);
+                    throw new IllegalArgumentException("Chunk ended after " + (done + n) + " of " + length + " bytes");
+                }
+                if (sealed.contains(index)) {
+                    boolean same = matchesStored(out, key, header, index, buffer, n, index == lastIndex);
+                    batch.returnBuffer(buffer);
+                    if (!same) {
+                        throw new IllegalArgumentException("Segment " + index + " was already sealed with different bytes");
+                    }
+                } else {
+                    batch.encrypt(out, key, header, index, buffer, n, index == lastIndex, sealed);
+                }
+                done += n;
+                index++;
+            }
+            batch.await();
+            written = true;
+        } finally {
+            // A broken chunk is released for a retry as soon as we return: none of its segments may still land
+            if (!written) batch.drain();
+        }
+    }
+
+    // True if segment 'index' on disk opens (tag intact) to exactly plain[0, length), false if it holds
+    // other bytes. SegmentLost if it never got to disk in full.
+    private boolean matchesStored(FileChannel channel, SecretKey key, byte[] header, long index,
+                                  byte[] plain, int length, boolean last) throws IOException {
+        long position = segmentPosition(index, segmentSize(header));
+        if (channel.size() < position + length + TAG_LENGTH) throw new SegmentLost(index);
+        ByteBuffer stored = ByteBuffer.allocate(length + TAG_LENGTH);
+        readFully(channel, stored, position);
+        stored.flip();
+        try {
+            Cipher cipher = newCipher();
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(header, index, last));
+            cipher.updateAAD(header);
+            byte[] opened = cipher.doFinal(stored.array(), 0, stored.limit());
+            return Arrays.equals(opened, 0, opened.length, plain, 0, length);
+        } catch (AEADBadTagException e) {
+            throw new SegmentLost(index); // The first attempt's write failed partway
+        } catch (Exception e) {
+            throw new IOException("Decryption failed for segment " + index, e);
+        }
+    }
+
+    // 4. A decrypting stream over a v2 file, with read-ahead of the next segments on the worker pool.
+    // skip() jumps straight to the segment holding the target offset.
+    public InputStream decryptingStream(FileChannel in, SecretKey key, byte[] header, long plainLength) throws IOException {
+        return new DecryptingInputStream(in, key, header, plainLength);
+    }
+
+    // --- Layout helpers ---
+
+    public static long segmentCount(long plainLength, int segment) {
+        return Math.max(1, (plainLength + segment - 1) / segment);
+    }
+
+    public static long encryptedLength(long plainLength, int segment) {
+        return CipherService.HEADER_LENGTH + plainLength + segmentCount(plainLength, segment) * TAG_LENGTH;
+    }
+
+    private static long segmentPosition(long index, int segment) {
+        return CipherService.HEADER_LENGTH + index * (segment + TAG_LENGTH);
+    }
+
+    private static int segmentSize(byte[] header) {
+        return ByteBuffer.wrap(header).getInt(SEGMENT_SIZE_OFFSET);
+    }
+
+    private static GCMParameterSpec nonce(byte[] header, long index, boolean last) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(header, NONCE_PREFIX_OFFSET, nonce, 0, NONCE_PREFIX_LENGTH);
+        ByteBuffer.wrap(nonce).putInt(NONCE_PREFIX_LENGTH, (int) index);
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (Exception e) {
+            throw new RuntimeException("AES-GCM not available", e);
+        }
+    }
+
+    private ByteBuffer directBuffer(int capacity) {
+        ByteBuffer buffer = directBuffers.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            directBuffers.set(buffer);
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("Encrypted file is truncated");
+            position += n;
+        }
+    }
+
+    // Segments of one encryption call that are in flight on the worker pool.
+    // The buffer queue doubles as backpressure: the reader blocks once 'window' segments are pending.
+    private class Batch {
+        private final int segment;
+        private final BlockingQueue<byte[]> free;
+        private final List<Future<?>> pending = new ArrayList<>();
+        private int allocated;
+
+        Batch(int segment) {
+            this.segment = segment;
+            this.free = new ArrayBlockingQueue<>(window + 1);
+        }
+
+        byte[] takeBuffer() throws IOException {
+            byte[] buffer = free.poll();
+            if (buffer != null) return buffer;
+            if (allocated <= window) {
+                allocated++;
+                return new byte[segment];
+            }
+            try {
+                return free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while encrypting");
+            }
+        }
+
+        void returnBuffer(byte[] buffer) {
+            free.offer(buffer);
+        }
+
+        // 'sealedIndexes' (null for whole-file encryption) records the segment index before its nonce is used
+        void encrypt(FileChannel out, SecretKey key, byte[] header, long index, byte[] plain, int length, boolean last,
+                     Set<Long> sealedIndexes) throws IOException {
+            pending.removeIf(future -> future.isDone() && succeeded(future));
+            pending.add(workers.submit(() -> {
+                try {
+                    // A fresh cipher per segment: a cipher instance is never re-initialized with a nonce
+                    Cipher cipher = newCipher();
+                    cipher.init(Cipher.ENCRYPT_MODE, key, nonce(header, index, last));
+                    cipher.updateAAD(header);
+                    ByteBuffer sealed = directBuffer(length + TAG_LENGTH);
+                    if (sealedIndexes != null) sealedIndexes.add(index);
+                    long started = System.nanoTime();
+                    cipher.doFinal(ByteBuffer.wrap(plain, 0, length), sealed);
+                    metrics.recordSeal(System.nanoTime() - started, length);
+                    sealed.flip();
+                    writeFully(out, sealed, segmentPosition(index, segment));
+                    return null;
+                } finally {
+                    returnBuffer(plain);
+                }
+            }));
+        }
+
+        // A finished task that failed stays in the list so await() reports it
+        private boolean succeeded(Future<?> future) {
+            try {
+                future.get();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        void await() throws IOException {
+            IOException failure = null;
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while encrypting");
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = new IOException("Encryption failed", e.getCause());
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        // Waits for whatever is still in flight, failed or not (the caller is already failing)
+        void drain() {
+            boolean interrupted = false;
+            for (Future<?> future : pending) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true; // A segment is seconds at worst: finish waiting, then pass it on
+                    } catch (ExecutionException e) {
+                        break;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // A segment's nonce was used, but its sealed bytes never got to disk in full (the write failed).
+    // It can't be sealed again, so the file it belongs to can't be completed: start a new one.
+    public static final class SegmentLost extends IOException {
+
+        SegmentLost(long index) {
+            super("Segment " + index + " was sealed but never stored; the upload must start over");
+        }
+    }
+
+    private class DecryptingInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final SecretKey key;
+        private final byte[] header;
+        private final int segment;
+        private final long plainLength;
+        private final long lastIndex;
+
+        private final ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<>();
+        private final ArrayDeque<byte[]> spare = new ArrayDeque<>();
+        private final byte[] single = new byte[1];
+
+        private long position;      // Plaintext offset of the next byte we hand out
+        private long nextToFetch;   // Next segment index to hand to the workers
+        private byte[] current;     // Decrypted bytes of segment 'currentIndex'
+        private long currentIndex = -1;
+
+        DecryptingInputStream(FileChannel channel, SecretKey key, byte[] header, long plainLength) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.header = header;
+            this.segment = segmentSize(header);
+            this.plainLength = plainLength;
+            // Count segments from the file itself, so a wrong 'last' flag (truncation) fails the tag check
+            long body = channel.size() - CipherService.HEADER_LENGTH;
+            this.lastIndex = Math.max(0, (body + segment + TAG_LENGTH - 1) / (segment + TAG_LENGTH) - 1);
+        }
+
+        private Future<byte[]> fetch(long index) {
+            byte[] target = spare.isEmpty() ? new byte[segment] : spare.pop();
+            return workers.submit(() -> {
+                long start = segmentPosition(index, segment);
+                int sealedLength = (int) Math.min(segment + TAG_LENGTH, channel.size() - start);
+                if (sealedLength < TAG_LENGTH) throw new IOException("Encrypted file is truncated");
+
+                ByteBuffer sealed = directBuffer(sealedLength);
+                readFully(channel, sealed, start);
+                sealed.flip();
+
+                Cipher cipher = ciphers.get();
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(header, index, index == lastIndex));
+                cipher.updateAAD(header);
+                long started = System.nanoTime();
+                int opened = cipher.doFinal(sealed, ByteBuffer.wrap(target));
+                metrics.recordOpen(System.nanoTime() - started, opened);
+                return target;
+            });
+        }
+
+        // Make sure 'current' holds the segment that contains 'position'
+        private void load() throws IOException {
+            long wanted = position / segment;
+            if (wanted == currentIndex) return;
+            if (wanted != nextToFetch - ahead.size()) {
+                dropReadAhead();
+                nextToFetch = wanted;
+            }
+            while (ahead.size() <= window / 2 && nextToFetch <= lastIndex) {
+                ahead.add(fetch(nextToFetch++));
+            }
+            if (ahead.isEmpty()) throw new IOException("Encrypted file is shorter than its recorded size");
+            try {
+                byte[] segmentBytes = ahead.pop().get();
+                if (current != null) spare.push(current);
+                current = segmentBytes;
+                currentIndex = wanted;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decrypting");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof AEADBadTagException) {
+                    throw new IOException("Integrity check failed for segment " + wanted, e.getCause());
+                }
+                throw new IOException("Decryption failed for segment " + wanted, e.getCause());
+            }
+            // Keep the pipeline full while the caller consumes this segment
+            if (nextToFetch <= lastIndex) ahead.add(fetch(nextToFetch++));
+        }
+
+        private void dropReadAhead() {
+            for (Future<byte[]> future : ahead) future.cancel(false);
+            ahead.clear();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            long remaining = plainLength - position;
+            if (remaining <= 0) return -1;
+
+            load();
+            int inSegment = (int) (position - currentIndex * segment);
+            int n = (int) Math.min(Math.min(len, segment - inSegment), remaining);
+            System.arraycopy(current, inSegment, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) return 0;
+            long target = Math.min(plainLength, position + n);
+            long skipped = target - position;
+            position = target; // load() notices a segment change and re-aims the read-ahead
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            if (current == null || position / segment != currentIndex) return 0;
+            return (int) Math.min(segment - (position - currentIndex * segment), plainLength - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            dropReadAhead();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Hands out the short ids of shares ("xh52ka" in /d/xh52ka) and bundles: random, unguessable, and
+// never one that is already in use.
+//
+//   - Random: SecureRandom, drawn 1024 values at a time into a shared batch that threads take values
+//     from with one atomic increment. Whoever finds the batch empty draws the next one.
+//   - Unique: an id is the base-62 number below 62^length. Every id in use sits in an in-memory set
+//     of those numbers (filled from the table on startup), and an id is only handed out once
+//     adding it to that set succeeded. Two uploads can't get the same id, and no upload can take
+//     the id of an existing share. (Before, an id was just drawn and hoped for.)
+//   - Uniform: values are drawn by rejection, not with a bare '%', so no id is likelier than another.
+// Ids go back into the pool when the janitor deletes their file (a bundle id: its last member).
+//
+// With app.startup.lazy (fast-start profile) the ids in use are read on a background thread instead of
+// during startup; allocate() waits for them, so only an upload in the first moments after a start could
+// ever wait for them.
+@Service
+public class ShortIdAllocator {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_ATTEMPTS = 1000; // Only reached if the id space is (nearly) full
+
+    private final int length;
+    private final long space; // 62^length
+    private final long limit; // Largest multiple of 'space' in 63 bits: draws above it are rejected
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicReference<Batch> batch = new AtomicReference<>(new Batch(new long[0]));
+    private final Set<Long> inUse = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Void> loaded; // Done once every id of the table is in 'inUse'
+
+    @Autowired
+    public ShortIdAllocator(FileRepository fileRepository,
+                            @Value("${app.ids.length:6}") int length,
+                            @Value("${app.startup.lazy:false}") boolean lazy) {
+        this(length, new CompletableFuture<>());
+        // Everything already handed out, so a restart can't reuse it
+        Runnable load = () -> {
+            try {
+                fileRepository.findAllIds().forEach(this::reserve);
+                fileRepository.findAllBundleIds().forEach(this::reserve);
+                loaded.complete(null);
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Could not load the short ids in use: " + e.getMessage());
+                loaded.completeExceptionally(e);
+            }
+        };
+        if (!lazy) {
+            load.run();
+            loaded.join(); // Fails the startup, as before
+            return;
+        }
+        Thread loader = new Thread(load, "dz-ids-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private ShortIdAllocator(int length, CompletableFuture<Void> loaded) {
+        if (length < 4 || length > 10) throw new IllegalArgumentException("app.ids.length must be 4-10: " + length);
+        this.loaded = loaded;
+        this.length = length;
+        long space = 1;
+        for (int i = 0; i < length; i++) space *= ALPHABET.length();
+        this.space = space;
+        this.limit = Long.MAX_VALUE - (Long.MAX_VALUE % space);
+    }
+
+    // 1. A fresh id, reserved until release()
+    public String allocate() {
+        awaitLoaded();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long value = next();
+            if (inUse.add(value)) return encode(value);
+        }
+        throw new IllegalStateException("No free short id after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    // 2. The file behind it is gone (or was never saved)
+    public void release(String id) {
+        long value = decode(id);
+        if (value >= 0) inUse.remove(value);
+    }
+
+    // Marks an existing id as taken. Ids of another length or alphabet can't collide and are ignored.
+    public void reserve(String id) {
+        long value = decode(id);
+        if (value >= 0) inUse.add(value);
+    }
+
+    public int size() {
+        return inUse.size();
+    }
+
+    private void awaitLoaded() {
+        try {
+            loaded.join(); // Returns at once after the first few moments
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Short ids in use are unknown: not handing out any", e.getCause());
+        }
+    }
+
+    // A uniform random number below 'space'
+    private long next() {
+        while (true) {
+            Batch current = batch.get();
+            int index = current.cursor.getAndIncrement();
+            if (index < current.values.length) {
+                long value = current.values[index] >>> 1; // 63 random bits
+                if (value < limit) return value % space;
+                continue; // Would favor the low ids: draw again (a 1 in 10^8 event for 6 characters)
+            }
+            // Empty: draw the next batch. If another thread got there first, theirs is used and ours dropped.
+            batch.compareAndSet(current, draw());
+        }
+    }
+
+    private Batch draw() {
+        byte[] bytes = new byte[BATCH_SIZE * Long.BYTES];
+        random.nextBytes(bytes);
+        long[] values = new long[BATCH_SIZE];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(values);
+        return new Batch(values);
+    }
+
+    private String encode(long value) {
+        char[] id = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            id[i] = ALPHABET.charAt((int) (value % ALPHABET.length()));
+            value /= ALPHABET.length();
+        }
+        return new String(id);
+    }
+
+    // -1 for anything that is not one of our ids
+    private long decode(String id) {
+        if (id == null || id.length() != length) return -1;
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = ALPHABET.indexOf(id.charAt(i));
+            if (digit < 0) return -1;
+            value = value * ALPHABET.length() + digit;
+        }
+        return value;
+    }
+
+    private static final class Batch {
+
+        private final long[] values;
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        Batch(long[] values) {
+            this.values = values;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.dropzone.api.service;
 
 import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.model.LiveShare;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 public interface StorageService {
@@ -12,13 +14,47 @@ public interface StorageService {
     // 1. Save the file and return the Metadata (so the controller can give the user the URL)
     FileMetadata store(MultipartFile file, int maxDownloads, int expiryMinutes, String password) throws IOException;
 
+    // 1b. Same, straight from a raw request body (no multipart spool). Size and checksum come from the stream.
+    FileMetadata storeStream(InputStream body, String filename, String contentType,
+                             int maxDownloads, int expiryMinutes, String password) throws IOException;
+
+    // 1c. Many files under one share id (the bundle id); the bundle downloads as one ZIP
+    List<FileMetadata> storeBatch(List<MultipartFile> files, int maxDownloads, int expiryMinutes,
+                                  String password) throws IOException;
+
+    // 1d. The upload of a live share (see LiveRelayService): stored like 1b, under the id its link already
+    // shows, with its deadline, and with the downloads it served while live already counted
+    FileMetadata storeLive(LiveShare share, InputStream body) throws IOException;
+
+    // 1e. A file whose blob is already written (the chunks of a resumable upload): saved, cached and
+    // scheduled to expire like any other upload. Its id is released and its blob deleted if the save fails.
+    FileMetadata publish(FileMetadata metadata) throws IOException;
+
     // 2. Load the actual file bytes for downloading
     Resource loadAsResource(String id) throws IOException;
 
-    // 3. Just get the info (for checking expiry before download)
+    // 2b. The stored compressed form (as sent with "Content-Encoding: gzip"), or null if the file was
+    // stored uncompressed
+    Resource loadEncoded(String id) throws IOException;
+
+    // 2c. The original bytes read straight from disk (decrypted, inflated), past every cache: for
+    // integrity checks, which must see what is really stored
+    InputStream openOriginal(FileMetadata metadata) throws IOException;
+
+    // 3. Just get the info (for checking expiry before download). null if there is no such file (never
+    // was, or already deleted)
     FileMetadata getMetadata(String id);
 
-    void incrementDownloadCount(String id);
+    // 3b. The members of a bundle that are still around (empty once they have all expired)
+    List<FileMetadata> getBundle(String bundleId);
+
+    // 4. Download limit: take a slot atomically before streaming, give it back if the transfer fails
+    boolean tryReserveDownload(String id);
+
+    void releaseDownload(String id);
+
+    // 5. A download went out in full: if it was the last permitted one, the file is scheduled to go
+    void completeDownload(String id);
 
     List<FileMetadata> getAllFiles();
 }
\ No newline at end of file
@@ -0,0 +1,245 @@
+package com.dropzone.api.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Where blobs live on disk: one or more root folders ("volumes", ideally on different disks), each
+// with a two-level fan-out below it, so no folder ever holds more than a sliver of the files:
+//   <volume>/55/0e/550e8400-e29b-41d4-a716-446655440000
+//   <volume>/3f/a1/cas-3fa1...                          (shared blobs: the part after "cas-")
+//
+// New blobs go to a volume picked at random, weighted by its free space, among the volumes that
+// have room for them: concurrent uploads stripe over all disks and fuller disks get fewer files.
+// A blob is found again by looking on every volume (one stat() per volume; usually just one).
+//
+// Blobs from before the fan-out sit flat in the first volume. They are still found there, and are
+// moved into their shard in the background after startup (see migrateFlatBlobs).
+@Service
+public class StorageVolumes {
+
+    private static final String HEX = "0123456789abcdef";
+    // Old names are kept this long after their blob got its new one (a download may have just looked them up)
+    private static final Duration MIGRATION_GRACE = Duration.ofSeconds(30);
+
+    private final List<Path> volumes = new ArrayList<>();
+    private final List<FileStore> stores = new ArrayList<>();
+    private final long minFree;
+
+    public StorageVolumes(@Value("${app.storage.location}") String storageLocation,
+                          @Value("${app.storage.volumes:}") List<String> extraVolumes,
+                          @Value("${app.storage.min-free:1GB}") DataSize minFree) {
+        this.minFree = minFree.toBytes();
+        List<String> locations = new ArrayList<>();
+        locations.add(storageLocation); // The first volume: also home of the flat legacy files and .dedup-secret
+        for (String location : extraVolumes) {
+            if (!location.isBlank()) locations.add(location.trim());
+        }
+        try {
+            for (String location : locations) {
+                Path volume = Paths.get(location).toAbsolutePath().normalize();
+                Files.createDirectories(volume);
+                volumes.add(volume);
+                stores.add(Files.getFileStore(volume));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize storage location", e);
+        }
+    }
+
+    public List<Path> getVolumes() {
+        return volumes;
+    }
+
+    public Path primary() {
+        return volumes.get(0);
+    }
+
+    // 1. Path for a new blob of (about) 'expectedSize' bytes, on a volume with room for it.
+    // Its shard folders exist when this returns. Pass 0 when the size is not known yet.
+    public Path allocate(String storageName, long expectedSize) throws IOException {
+        Path path = shardPath(pickVolume(expectedSize), storageName);
+        Files.createDirectories(path.getParent());
+        return path;
+    }
+
+    // 1b. A temp file name for a blob whose name is only known once it is written (see onSameVolume)
+    public Path allocateTemp(long expectedSize) {
+        return pickVolume(expectedSize).resolve("upload-" + UUID.randomUUID() + ".part");
+    }
+
+    // Where blob 'storageName' goes on the volume 'file' is on (so a move between them is atomic)
+    public Path onSameVolume(Path file, String storageName) throws IOException {
+        for (Path volume : volumes) {
+            if (file.toAbsolutePath().startsWith(volume)) {
+                Path path = shardPath(volume, storageName);
+                Files.createDirectories(path.getParent());
+                return path;
+            }
+        }
+        throw new IllegalArgumentException("Not on a storage volume: " + file);
+    }
+
+    // 2. Where an existing blob is. Falls back to the place it would have on the first volume, so
+    // callers get a path that simply does not exist for a missing blob.
+    public Path locate(String storageName) {
+        for (Path volume : volumes) {
+            Path path = shardPath(volume, storageName);
+            if (Files.exists(path)) return path;
+        }
+        Path flat = primary().resolve(storageName);
+        if (Files.exists(flat)) return flat; // Not migrated yet
+        return shardPath(primary(), storageName);
+    }
+
+    // 3. Deletes every copy of a blob: its shard on each volume and a not-yet-migrated flat file
+    public void delete(String storageName) throws IOException {
+        for (Path volume : volumes) {
+            Files.deleteIfExists(shardPath(volume, storageName));
+        }
+        Files.deleteIfExists(primary().resolve(storageName));
+    }
+
+    // 4. What each volume can still take before it drops below 'minFree' (0 for a full or unreadable disk)
+    public long[] room() {
+        long[] room = new long[volumes.size()];
+        for (int i = 0; i < room.length; i++) {
+            try {
+                room[i] = Math.max(0, stores.get(i).getUsableSpace() - minFree);
+            } catch (IOException e) {
+                room[i] = 0;
+            }
+        }
+        return room;
+    }
+
+    // --- Layout ---
+
+    static Path shardPath(Path volume, String storageName) {
+        String key = ContentAddressedStore.isContentAddressed(storageName)
+                ? storageName.substring(ContentAddressedStore.PREFIX.length())
+                : storageName;
+        String shard = isHexPrefix(key) ? key.substring(0, 4).toLowerCase() : hashShard(storageName);
+        return volume.resolve(shard.substring(0, 2)).resolve(shard.substring(2, 4)).resolve(storageName);
+    }
+
+    private static boolean isHexPrefix(String key) {
+        if (key.length() < 5) return false;
+        for (int i = 0; i < 4; i++) {
+            if (HEX.indexOf(Character.toLowerCase(key.charAt(i))) < 0) return false;
+        }
+        return true;
+    }
+
+    // Names that don't start with random hex still spread evenly
+    private static String hashShard(String storageName) {
+        int hash = 0x811c9dc5; // FNV-1a
+        for (int i = 0; i < storageName.length(); i++) {
+            hash = (hash ^ storageName.charAt(i)) * 0x01000193;
+        }
+        return String.format("%04x", hash & 0xFFFF);
+    }
+
+    // Weighted by free space, among the volumes that keep 'minFree' after this blob
+    private Path pickVolume(long expectedSize) {
+        if (volumes.size() == 1) return volumes.get(0);
+
+        long[] usable = new long[volumes.size()];
+        long total = 0;
+        int roomiest = 0;
+        for (int i = 0; i < volumes.size(); i++) {
+            try {
+                usable[i] = stores.get(i).getUsableSpace();
+            } catch (IOException e) {
+                usable[i] = 0; // Unreadable disk: don't put anything new there
+            }
+            if (usable[i] > usable[roomiest]) roomiest = i;
+            if (usable[i] - expectedSize < minFree) usable[i] = 0;
+            total += usable[i];
+        }
+        // Every disk is (nearly) full: the roomiest one gets it, and the write itself reports the error
+        if (total == 0) return volumes.get(roomiest);
+
+        long ticket = ThreadLocalRandom.current().nextLong(total);
+        for (int i = 0; i < usable.length; i++) {
+            ticket -= usable[i];
+            if (ticket < 0) return volumes.get(i);
+        }
+        return volumes.get(roomiest);
+    }
+
+    // --- Online migration of the flat layout ---
+
+    // Moves blobs from the top of the first volume into their shard, in the background.
+    // Each blob gets its new name as a hard link first; the old name goes after a short grace, so a
+    // download that located the blob by its old name a moment ago can still open it.
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateFlatBlobs() {
+        Thread migration = new Thread(this::runMigration, "dz-migrate");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private void runMigration() {
+        List<Path> linked = new ArrayList<>();
+        try (DirectoryStream<Path> folder = Files.newDirectoryStream(primary(), Files::isRegularFile)) {
+            for (Path flat : folder) {
+                String name = flat.getFileName().toString();
+                // Hidden files (.dedup-secret...) and unfinished temp files stay where they are
+                if (name.startsWith(".") || name.endsWith(".part")) continue;
+
+                Path target = shardPath(primary(), name);
+                try {
+                    Files.createDirectories(target.getParent());
+                    try {
+                        Files.createLink(target, flat);
+                        linked.add(flat);
+                    } catch (UnsupportedOperationException | FileSystemException e) {
+                        if (Files.exists(target)) {
+                            linked.add(flat); // Linked by an earlier, interrupted run
+                        } else {
+                            // No hard links here: a plain rename (the tiny race is the best we can do)
+                            Files.move(flat, target, StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("⚠️ Could not move " + name + " into its shard: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("⚠️ Storage migration could not read the storage folder: " + e.getMessage());
+            return;
+        }
+        if (linked.isEmpty()) return;
+
+        try {
+            Thread.sleep(MIGRATION_GRACE.toMillis());
+        } catch (InterruptedException e) {
+            return; // The next start finishes the job
+        }
+        for (Path flat : linked) {
+            try {
+                Files.deleteIfExists(flat);
+            } catch (IOException e) {
+                System.err.println("⚠️ Could not remove old name " + flat.getFileName() + ": " + e.getMessage());
+            }
+        }
+        System.out.println("📦 Storage: moved " + linked.size() + " files into the sharded layout.");
+    }
+}
@@ -0,0 +1,338 @@
+package com.dropzone.api.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Every metric of the transfer hot paths, exported through Actuator (/actuator/prometheus).
+//
+// Kept off the byte-copy loops: a transfer counts its bytes in a plain field and records everything
+// once, when it ends. Meters are looked up once per tag combination and reused, so recording is a
+// few atomic adds. Per 1MB cipher segment there is one timer update, which is noise next to the AES.
+//
+//   dropzone.upload / dropzone.download          timers, tag lane (uploads: multipart, stream, chunk, batch, live;
+//                                                downloads: stream, gzip, zip, live) and outcome (success, failure)
+//   dropzone.upload.bytes / download.bytes       bytes per transfer (sendfile downloads: only these)
+//   dropzone.transfer.mbps                       MB/s of each transfer of 1MB or more, tag direction
+//   dropzone.download.ttfb                       request handled -> first byte of the file read
+//   dropzone.transfers.active                    transfers in progress, tag direction
+//   dropzone.storage.load                        time to open a file for download (lookup, key, headers)
+//   dropzone.crypto.segment                      AES-GCM time per segment, tag op (seal, open): the
+//                                                encryption overhead, without the I/O around it
+//   dropzone.crypto.bytes                        bytes through the cipher, tag op
+//   dropzone.janitor.pass / janitor.deleted      janitor runs per task (expiry, reconcile, orphans)
+//   dropzone.files.live / files.live.bytes       files on record and their total (original) size
+//   dropzone.bandwidth.limit                     configured limit in bytes/s (0 = none), tag scope
+//                                                (global, client, share)
+//   dropzone.bandwidth.wait                      time transfers spent throttled, tag scope
+//   dropzone.cache.content.requests              lookups in the hot-file cache, tag result (hit, miss)
+//   dropzone.cache.content.bytes / .entries      off-heap memory held by the hot-file cache
+//   dropzone.scrub.files                         files checked by the integrity scrubber, tag result
+//                                                (ok, filled, corrupt, unreadable)
+//   dropzone.storage.reserved                    bytes promised to uploads in flight, not written yet
+//   dropzone.uploads.refused                     uploads turned away by admission control, tag status (507, 429)
+// Repository calls are timed by Spring Boot itself (spring.data.repository.invocations).
+@Service
+public class TransferMetrics {
+
+    private static final double MB = 1024 * 1024;
+
+    private final MeterRegistry registry;
+    private final AtomicInteger activeUploads = new AtomicInteger();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Timer storageLoad;
+    private final Timer ttfb;
+    private final Timer sealSegment;
+    private final Timer openSegment;
+    private final Counter sealedBytes;
+    private final Counter openedBytes;
+    private final Counter contentHits;
+    private final Counter contentMisses;
+
+    public TransferMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Gauge.builder("dropzone.transfers.active", activeUploads, AtomicInteger::get)
+                .tag("direction", "upload").register(registry);
+        Gauge.builder("dropzone.transfers.active", activeDownloads, AtomicInteger::get)
+                .tag("direction", "download").register(registry);
+
+        this.storageLoad = Timer.builder("dropzone.storage.load").register(registry);
+        this.ttfb = Timer.builder("dropzone.download.ttfb").register(registry);
+        this.sealSegment = Timer.builder("dropzone.crypto.segment").tag("op", "seal").register(registry);
+        this.openSegment = Timer.builder("dropzone.crypto.segment").tag("op", "open").register(registry);
+        this.sealedBytes = Counter.builder("dropzone.crypto.bytes").baseUnit("bytes").tag("op", "seal").register(registry);
+        this.openedBytes = Counter.builder("dropzone.crypto.bytes").baseUnit("bytes").tag("op", "open").register(registry);
+        this.contentHits = Counter.builder("dropzone.cache.content.requests").tag("result", "hit").register(registry);
+        this.contentMisses = Counter.builder("dropzone.cache.content.requests").tag("result", "miss").register(registry);
+    }
+
+    // Files on record and their size, read when scraped (a COUNT/SUM on an indexed table, every 15s or so)
+    public void registerLiveFiles(Supplier<Number> files, Supplier<Number> bytes) {
+        Gauge.builder("dropzone.files.live", files).register(registry);
+        Gauge.builder("dropzone.files.live.bytes", bytes).baseUnit("bytes").register(registry);
+    }
+
+    // --- Transfers ---
+
+    // An upload in progress. Use with try-with-resources and call success() before it closes;
+    // closed without it, the upload is recorded as a failure.
+    public Transfer upload(String lane) {
+        return new Transfer("upload", lane, activeUploads);
+    }
+
+    public Transfer download(String lane) {
+        return new Transfer("download", lane, activeDownloads);
+    }
+
+    // Wraps a download body: bytes, duration and time-to-first-byte are taken from the stream(s) Spring
+    // opens on it. 'started' is System.nanoTime() when the request was handled.
+    public Resource meterDownload(Resource resource, String lane, long started) {
+        return new MeteredResource(resource, lane, started);
+    }
+
+    // A sendfile download: the container moves the bytes after we return, so only the amount is known
+    public void recordSendfile(long bytes) {
+        summary("dropzone.download.bytes", "lane", "sendfile").record(bytes);
+    }
+
+    // --- Storage & crypto ---
+
+    public Timer storageLoad() {
+        return storageLoad;
+    }
+
+    public void recordSeal(long nanos, int bytes) {
+        sealSegment.record(nanos, TimeUnit.NANOSECONDS);
+        sealedBytes.increment(bytes);
+    }
+
+    public void recordOpen(long nanos, int bytes) {
+        openSegment.record(nanos, TimeUnit.NANOSECONDS);
+        openedBytes.increment(bytes);
+    }
+
+    // --- Janitor ---
+
+    public void recordJanitorPass(String task, long started, int deleted) {
+        timers.computeIfAbsent("janitor:" + task, k -> Timer.builder("dropzone.janitor.pass")
+                .tag("task", task).register(registry)).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        if (deleted > 0) {
+            counters.computeIfAbsent(task, k -> Counter.builder("dropzone.janitor.deleted")
+                    .tag("task", task).register(registry)).increment(deleted);
+        }
+    }
+
+    // Uploads and downloads in progress: background work backs off while there are any
+    public int activeTransfers() {
+        return activeUploads.get() + activeDownloads.get();
+    }
+
+    // --- Integrity scrubber ---
+
+    public void recordScrub(String result) {
+        counters.computeIfAbsent("scrub:" + result, k -> Counter.builder("dropzone.scrub.files")
+                .tag("result", result).register(registry)).increment();
+    }
+
+    // --- Upload admission ---
+
+    public void registerReservedBytes(Supplier<Number> bytes) {
+        Gauge.builder("dropzone.storage.reserved", bytes).baseUnit("bytes").register(registry);
+    }
+
+    public void recordRefusedUpload(int status) {
+        String tag = String.valueOf(status);
+        counters.computeIfAbsent("refused:" + tag, k -> Counter.builder("dropzone.uploads.refused")
+                .tag("status", tag).register(registry)).increment();
+    }
+
+    // --- Bandwidth ---
+
+    public void registerBandwidthLimit(String scope, Supplier<Number> limit) {
+        Gauge.builder("dropzone.bandwidth.limit", limit).baseUnit("bytes").tag("scope", scope).register(registry);
+    }
+
+    public void recordThrottle(String scope, long nanos) {
+        timers.computeIfAbsent("bandwidth:" + scope, k -> Timer.builder("dropzone.bandwidth.wait")
+                .tag("scope", scope).register(registry)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // --- Hot-file cache ---
+
+    public void registerContentCache(Supplier<Number> bytes, Supplier<Number> entries) {
+        Gauge.builder("dropzone.cache.content.bytes", bytes).baseUnit("bytes").register(registry);
+        Gauge.builder("dropzone.cache.content.entries", entries).register(registry);
+    }
+
+    public void recordContentCache(boolean hit) {
+        (hit ? contentHits : contentMisses).increment();
+    }
+
+    // --- Helpers ---
+
+    private void finish(String direction, String lane, long started, long bytes, boolean success) {
+        long nanos = System.nanoTime() - started;
+        timer("dropzone." + direction, lane, success ? "success" : "failure").record(nanos, TimeUnit.NANOSECONDS);
+        if (!success) return;
+        summary("dropzone." + direction + ".bytes", "lane", lane).record(bytes);
+        // Tiny transfers are all latency: their "speed" would only blur the histogram
+        if (bytes >= MB && nanos > 0) {
+            summary("dropzone.transfer.mbps", "direction", direction).record((bytes / MB) / (nanos / 1e9));
+        }
+    }
+
+    private Timer timer(String name, String lane, String outcome) {
+        return timers.computeIfAbsent(name + ":" + lane + ":" + outcome, k -> Timer.builder(name)
+                .tag("lane", lane).tag("outcome", outcome).register(registry));
+    }
+
+    private DistributionSummary summary(String name, String tag, String value) {
+        return summaries.computeIfAbsent(name + ":" + value, k -> DistributionSummary.builder(name)
+                .baseUnit(name.endsWith(".bytes") ? "bytes" : null)
+                .tag(tag, value).register(registry));
+    }
+
+    public final class Transfer implements AutoCloseable {
+
+        private final String direction;
+        private final String lane;
+        private final AtomicInteger active;
+        private final long started = System.nanoTime();
+        private long bytes = -1; // Set by success()
+
+        private Transfer(String direction, String lane, AtomicInteger active) {
+            this.direction = direction;
+            this.lane = lane;
+            this.active = active;
+            active.incrementAndGet();
+        }
+
+        public void success(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            active.decrementAndGet();
+            finish(direction, lane, started, Math.max(0, bytes), bytes >= 0);
+        }
+    }
+
+    // Download body that measures itself. Multi-range responses open one stream per range; each
+    // counts as its own transfer, only the first byte of the response counts for the TTFB.
+    private final class MeteredResource extends AbstractResource {
+
+        private final Resource delegate;
+        private final String lane;
+        private final long started;
+        private volatile boolean firstByteSeen;
+
+        MeteredResource(Resource delegate, String lane, long started) {
+            this.delegate = delegate;
+            this.lane = lane;
+            this.started = started;
+        }
+
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new MeteredStream(delegate.getInputStream());
+        }
+
+        private final class MeteredStream extends FilterInputStream {
+
+            private final long opened = System.nanoTime();
+            private long count;
+            private boolean failed;
+            private boolean closed;
+
+            MeteredStream(InputStream in) {
+                super(in);
+                activeDownloads.incrementAndGet();
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b;
+                try {
+                    b = super.read();
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+                if (b >= 0) advance(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n;
+                try {
+                    n = super.read(b, off, len);
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+                if (n > 0) advance(n);
+                return n;
+            }
+
+            private void advance(int n) {
+                if (count == 0 && !firstByteSeen) {
+                    firstByteSeen = true;
+                    ttfb.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                }
+                count += n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        activeDownloads.decrementAndGet();
+                        finish("download", lane, opened, count, !failed);
+                    }
+                }
+            }
+        }
+    }
+}
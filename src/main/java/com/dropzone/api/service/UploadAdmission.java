@@ -0,0 +1,266 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Admission control for uploads: one is only let in while the storage volumes (and the quota) have room
+// for the bytes it declares, next to everything already promised to the uploads in flight. Without it,
+// several big uploads arriving together on a small disk all start, all run out of space partway through,
+// and every one of them is lost.
+//
+// An admitted upload holds a Reservation until it ends. The reservation shrinks as its bytes are written
+// (from then on they show in the disk's free space, and must not be counted twice); whatever is left goes
+// back when it closes. An upload of unknown length reserves STEP bytes at a time as it goes, and fails
+// the moment the next step is refused, before the disk is full.
+//
+// Refusals: 507 (Insufficient Storage) when the upload would not fit even with nothing else in flight,
+// Retry-After pointing at the next file expiry; 429 (Too Many Requests) when it only doesn't fit next to
+// the uploads in progress, Retry-After 'retryAfter'. Space getting tight starts the janitor early.
+//
+// The quota is checked against a running total of the stored files' sizes: summed from the table once,
+// then kept up by the storage services as rows are saved and deleted (stored() / deleted()), so no
+// admission waits for a SUM over every file.
+@Service
+public class UploadAdmission {
+
+    private static final long STEP = 8L * 1024 * 1024; // Reservation growth for uploads of unknown length
+    private static final Duration JANITOR_COOLDOWN = Duration.ofMinutes(1);
+    private static final Duration MAX_RETRY_AFTER = Duration.ofHours(1);
+
+    private final StorageVolumes volumes;
+    private final FileRepository fileRepository;
+    private final ExpiryScheduler expiryScheduler;
+    private final TransferMetrics metrics;
+    private final ObjectProvider<FileCleanupService> janitor; // Looked up late: the janitor depends on the upload services
+    private final long quota; // Total size of the files on record, 0 = only the disks limit it
+    private final Duration retryAfter;
+
+    private final ReentrantLock lock = new ReentrantLock(); // Makes check + reserve one step
+    private final AtomicLong outstanding = new AtomicLong(); // Reserved by uploads in flight, not written yet
+    private final AtomicLong storedBytes = new AtomicLong(); // Size of the files on record (see seedStored)
+    private volatile boolean seeded;
+    private final AtomicLong janitorDue = new AtomicLong(); // Earliest time (ms) for the next early janitor run
+
+    public UploadAdmission(StorageVolumes volumes,
+                           FileRepository fileRepository,
+                           ExpiryScheduler expiryScheduler,
+                           TransferMetrics metrics,
+                           ObjectProvider<FileCleanupService> janitor,
+                           @Value("${app.storage.quota:0}") DataSize quota,
+                           @Value("${app.admission.retry-after:30s}") Duration retryAfter) {
+        this.volumes = volumes;
+        this.fileRepository = fileRepository;
+        this.expiryScheduler = expiryScheduler;
+        this.metrics = metrics;
+        this.janitor = janitor;
+        this.quota = quota.toBytes();
+        this.retryAfter = retryAfter;
+        metrics.registerReservedBytes(outstanding::get);
+    }
+
+    // 1. Let an upload of 'declared' bytes in (-1: length unknown, reserved as it goes), or refuse it.
+    // 0 reserves nothing (an upload that is not stored).
+    public Reservation admit(long declared) throws Refused {
+        if (declared == 0) return new Reservation(0, false);
+        boolean growing = declared < 0;
+        long bytes = growing ? STEP : declared;
+        reserve(bytes);
+        return new Reservation(bytes, growing);
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    // 2. A file of 'bytes' was saved / files of 'bytes' in total were deleted (after the commit)
+    public void stored(long bytes) {
+        storedBytes.addAndGet(bytes);
+    }
+
+    public void deleted(long bytes) {
+        storedBytes.addAndGet(-bytes);
+    }
+
+    // The first quota check sums the table once. Whatever stored()/deleted() counted before that is
+    // already in the sum, so the total becomes the sum plus what was counted since the query started.
+    private long storedSize() {
+        if (!seeded) {
+            lock.lock();
+            try {
+                if (!seeded) {
+                    long before = storedBytes.get();
+                    storedBytes.addAndGet(fileRepository.sumSizes() - before);
+                    seeded = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return storedBytes.get();
+    }
+
+    private void reserve(long bytes) throws Refused {
+        // Looked up outside the lock: a statfs() per volume
+        long stored = quota > 0 ? storedSize() : 0;
+        long largest = 0, total = 0;
+        for (long room : volumes.room()) {
+            largest = Math.max(largest, room);
+            total += room;
+        }
+
+        long left;
+        lock.lock();
+        try {
+            long reserved = outstanding.get();
+            // Too big for any disk (or the quota) even alone: only files expiring can help
+            if (bytes > largest || (quota > 0 && stored + bytes > quota)) {
+                throw refuse(507, "Not enough storage for " + bytes + " bytes", untilNextExpiry());
+            }
+            // Fits, but not next to the uploads already in flight: some of them will end soon
+            if (bytes > total - reserved || (quota > 0 && stored + reserved + bytes > quota)) {
+                throw refuse(429, "Storage is taken by uploads in progress", retryAfter);
+            }
+            outstanding.addAndGet(bytes);
+            left = Math.min(total, quota > 0 ? quota - stored : Long.MAX_VALUE) - reserved - bytes;
+        } finally {
+            lock.unlock();
+        }
+        if (left < bytes) startJanitor(); // Tight: the next upload like this one would not fit
+    }
+
+    private Refused refuse(int status, String message, Duration wait) {
+        metrics.recordRefusedUpload(status);
+        startJanitor();
+        return new Refused(status, message, wait);
+    }
+
+    // Expired files are deleted right at their deadline: the next one is when space comes back
+    private Duration untilNextExpiry() {
+        Duration next = expiryScheduler.untilNext();
+        if (next == null || next.compareTo(MAX_RETRY_AFTER) > 0) return MAX_RETRY_AFTER;
+        return next.compareTo(retryAfter) < 0 ? retryAfter : next;
+    }
+
+    // Runs the janitor's reconcile and orphan sweep now instead of at their next slot (at most once a
+    // minute): download counters flushed, used-up files deleted, forgotten blobs removed
+    private void startJanitor() {
+        long now = System.currentTimeMillis();
+        long due = janitorDue.get();
+        if (now < due || !janitorDue.compareAndSet(due, now + JANITOR_COOLDOWN.toMillis())) return;
+
+        Thread sweep = new Thread(() -> {
+            try {
+                FileCleanupService cleanup = janitor.getObject();
+                cleanup.cleanupExpiredFiles();
+                cleanup.cleanOrphanFiles();
+            } catch (RuntimeException e) {
+                System.err.println("⚠️ Early janitor run failed: " + e.getMessage());
+            }
+        }, "dz-janitor-early");
+        sweep.setDaemon(true);
+        sweep.start();
+        System.out.println("🧹 Storage is tight: janitor started early.");
+    }
+
+    // The space promised to one upload. Close it when the upload ends, however it ends.
+    public final class Reservation implements AutoCloseable {
+
+        private final boolean growing;
+        // Not 'synchronized': written() may call reserve(), which does I/O, on a virtual thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private long granted; // Reserved so far (guarded by 'lock')
+        private long written;
+        private boolean closed;
+
+        private Reservation(long granted, boolean growing) {
+            this.granted = granted;
+            this.growing = growing;
+        }
+
+        // 'bytes' more are on disk: they stop counting as reserved. An upload of unknown length
+        // reserves its next step here, and is refused (Refused, an IOException) if it doesn't get it.
+        public void written(long bytes) throws Refused {
+            if (bytes <= 0) return;
+            lock.lock();
+            try {
+                if (closed) return;
+                long before = Math.min(written, granted);
+                written += bytes;
+                try {
+                    while (growing && written > granted) {
+                        reserve(STEP);
+                        granted += STEP;
+                    }
+                } finally {
+                    outstanding.addAndGet(before - Math.min(written, granted));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The upload body, counting its bytes into written() as they are read (read ~ written: they go
+        // straight on to disk)
+        public InputStream track(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) written(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) written(n);
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                outstanding.addAndGet(Math.min(written, granted) - granted);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // An upload that was not let in. An IOException, so a refusal midway (see Reservation.written) fails
+    // the write like a full disk would, and its partial file is deleted on the way out.
+    public static final class Refused extends IOException {
+
+        private final int status;
+        private final Duration retryAfter;
+
+        Refused(int status, String message, Duration retryAfter) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getRetryAfterSeconds() {
+            return Math.max(1, retryAfter.toSeconds());
+        }
+    }
+}
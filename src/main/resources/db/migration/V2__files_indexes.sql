@@ -0,0 +1,14 @@
+-- Indexes for every lookup that is not by id (the primary key).
+
+-- Blob name: existsByStorageName, the dedup reference counts (a range on 'cas-'), the orphan check
+CREATE INDEX IF NOT EXISTS idx_files_storage_name ON files (storage_name);
+
+-- The reconcile sweep: files past their deadline (findByExpiryTimeBefore)
+CREATE INDEX IF NOT EXISTS idx_files_expiry_time ON files (expiry_time);
+
+-- Files out of downloads (findByExpiryLimit). Two columns compared with each other can't be looked
+-- up in a plain index; this partial one only holds the rows that match, so it stays tiny.
+CREATE INDEX IF NOT EXISTS idx_files_exhausted ON files (id) WHERE download_count >= max_downloads;
+
+-- Bundle members (findByBundleIdOrderByOriginalFilename). Only batch uploads have a bundle id.
+CREATE INDEX IF NOT EXISTS idx_files_bundle_id ON files (bundle_id, original_filename) WHERE bundle_id IS NOT NULL;
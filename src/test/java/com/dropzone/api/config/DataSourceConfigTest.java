@@ -0,0 +1,79 @@
+package com.dropzone.api.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataSourceConfigTest {
+
+    @TempDir
+    Path dir;
+
+    private HikariDataSource writer;
+    private HikariDataSource reader;
+    private JdbcTemplate jdbc;
+    private TransactionTemplate readWrite;
+    private TransactionTemplate readOnly;
+
+    @BeforeEach
+    void setUp() {
+        DataSourceConfig config = new DataSourceConfig();
+        String url = "jdbc:sqlite:" + dir.resolve("test.db");
+        writer = config.writerDataSource(url, "WAL", Duration.ofSeconds(5));
+        reader = config.readerDataSource(url, "WAL", Duration.ofSeconds(5), 2);
+        DataSource routing = config.dataSource(writer, reader);
+
+        jdbc = new JdbcTemplate(routing);
+        DataSourceTransactionManager transactions = new DataSourceTransactionManager(routing);
+        readWrite = new TransactionTemplate(transactions);
+        readOnly = new TransactionTemplate(transactions);
+        readOnly.setReadOnly(true);
+
+        readWrite.executeWithoutResult(status -> jdbc.execute("CREATE TABLE files (id TEXT PRIMARY KEY)"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    void readOnlyTransactionsGoToTheReaders() {
+        assertEquals(1, queryOnly(readOnly));
+        assertEquals(0, queryOnly(readWrite));
+
+        // A reader can't write, even by mistake
+        assertThrows(DataAccessException.class, () -> readOnly.executeWithoutResult(
+                status -> jdbc.update("INSERT INTO files (id) VALUES ('nope')")));
+        // Without a transaction (startup, Flyway): the writer
+        assertEquals(0, jdbc.queryForObject("PRAGMA query_only", Integer.class));
+    }
+
+    @Test
+    void readersSeeWhatTheWriterCommitted() {
+        readWrite.executeWithoutResult(status -> jdbc.update("INSERT INTO files (id) VALUES ('abc123')"));
+
+        Integer rows = readOnly.execute(status -> jdbc.queryForObject("SELECT COUNT(*) FROM files", Integer.class));
+        assertEquals(1, rows);
+        assertEquals("wal", jdbc.queryForObject("PRAGMA journal_mode", String.class));
+    }
+
+    // 1 on a reader connection (opened with PRAGMA query_only = 1), 0 on the writer
+    private int queryOnly(TransactionTemplate transaction) {
+        Integer flag = transaction.execute(status -> jdbc.queryForObject("PRAGMA query_only", Integer.class));
+        return flag;
+    }
+}
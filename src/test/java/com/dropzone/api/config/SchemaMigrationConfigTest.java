@@ -0,0 +1,92 @@
+package com.dropzone.api.config;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.sqlite.SQLiteDataSource;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class SchemaMigrationConfigTest {
+
+    @TempDir
+    Path dir;
+
+    private SQLiteDataSource dataSource;
+    private JdbcTemplate jdbc;
+
+    @BeforeEach
+    void setUp() {
+        dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dir.resolve("test.db"));
+        jdbc = new JdbcTemplate(dataSource);
+    }
+
+    @Test
+    void aNewDatabaseIsMigratedToTheCurrentVersion() {
+        Flyway flyway = flyway(null);
+        strategy("if-outdated").migrate(flyway);
+
+        verify(flyway).migrate();
+        // Fails when a migration was added without bumping SCHEMA_VERSION
+        assertEquals(SchemaMigrationConfig.SCHEMA_VERSION, flyway.info().current().getVersion().getVersion());
+    }
+
+    @Test
+    void ifOutdatedSkipsFlywayOnlyAtTheCurrentVersion() {
+        flyway(null).migrate();
+
+        Flyway current = flyway(null);
+        strategy("if-outdated").migrate(current);
+        verify(current, never()).migrate();
+
+        // The default mode runs Flyway every time
+        Flyway always = flyway(null);
+        strategy("always").migrate(always);
+        verify(always).migrate();
+    }
+
+    @Test
+    void anOlderDatabaseIsMigrated() {
+        flyway("2").migrate();
+
+        Flyway flyway = flyway(null);
+        strategy("if-outdated").migrate(flyway);
+
+        verify(flyway).migrate();
+        assertEquals(SchemaMigrationConfig.SCHEMA_VERSION, flyway.info().current().getVersion().getVersion());
+    }
+
+    @Test
+    void aFailedMigrationAtTheCurrentVersionIsNotSkipped() {
+        flyway(null).migrate();
+        jdbc.update("UPDATE flyway_schema_history SET success = 0 WHERE version = ?", SchemaMigrationConfig.SCHEMA_VERSION);
+
+        Flyway flyway = flyway(null);
+        doReturn(null).when(flyway).migrate(); // Flyway itself would refuse to go on: that is its call to make
+        strategy("if-outdated").migrate(flyway);
+
+        verify(flyway).migrate();
+    }
+
+    private static FlywayMigrationStrategy strategy(String mode) {
+        return new SchemaMigrationConfig().migrationStrategy(mode);
+    }
+
+    // Configured like spring.flyway.* in application.properties; 'target' null: the newest migration
+    private Flyway flyway(String target) {
+        var configuration = Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration", "classpath:com/dropzone/api/migration")
+                .baselineOnMigrate(true)
+                .baselineVersion("0");
+        if (target != null) configuration.target(target);
+        return spy(configuration.load());
+    }
+}
@@ -0,0 +1,196 @@
+package com.dropzone.api.controller;
+
+import com.dropzone.api.service.StorageService;
+import com.dropzone.api.service.StorageVolumes;
+import com.jayway.jsonpath.JsonPath;
+import jakarta.servlet.http.Cookie;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+// Range, If-Range and conditional GETs against the real application (throw-away database and storage)
+@SpringBootTest
+@AutoConfigureMockMvc
+class FileControllerRangeTest {
+
+    private static final byte[] CONTENT = new byte[100_000];
+
+    @TempDir
+    static Path workDir;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> "jdbc:sqlite:" + workDir.resolve("test.db"));
+        registry.add("app.storage.location", () -> workDir.resolve("uploads").toString());
+        // Short enough to wait out in a test (slot tokens keep their 5 minutes)
+        registry.add("app.expiry.last-download-grace", () -> "500ms");
+    }
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StorageVolumes volumes;
+
+    @BeforeEach
+    void content() {
+        new Random(42).nextBytes(CONTENT);
+    }
+
+    @Test
+    void aWholeDownloadCarriesItsValidators() throws Exception {
+        String id = upload(5);
+        MockHttpServletResponse response = download(id, null, null, null);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(CONTENT, response.getContentAsByteArray());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertNotNull(response.getHeader(HttpHeaders.ETAG));
+        assertNotNull(response.getHeader(HttpHeaders.LAST_MODIFIED));
+    }
+
+    @Test
+    void aRangeIsServedAsPartialContent() throws Exception {
+        String id = upload(5);
+        MockHttpServletResponse response = download(id, "bytes=1000-1999", null, null);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 1000-1999/" + CONTENT.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 1000, 2000), response.getContentAsByteArray());
+    }
+
+    @Test
+    void aRangePastTheEndIsUnsatisfiable() throws Exception {
+        String id = upload(5);
+        MockHttpServletResponse response = download(id, "bytes=200000-", null, null);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */" + CONTENT.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void ifRangeWithTheCurrentTagGetsTheRangeAndAStaleOneTheWholeFile() throws Exception {
+        String id = upload(5);
+        String etag = download(id, null, null, null).getHeader(HttpHeaders.ETAG);
+
+        MockHttpServletResponse matching = download(id, "bytes=0-99", etag, null);
+        assertEquals(206, matching.getStatus());
+        assertArrayEquals(Arrays.copyOf(CONTENT, 100), matching.getContentAsByteArray());
+
+        MockHttpServletResponse stale = download(id, "bytes=0-99", "\"something-else\"", null);
+        assertEquals(200, stale.getStatus());
+        assertArrayEquals(CONTENT, stale.getContentAsByteArray());
+    }
+
+    @Test
+    void aRevalidationIsNotModifiedAndUsesNoDownload() throws Exception {
+        String id = upload(2);
+        String etag = download(id, null, null, null).getHeader(HttpHeaders.ETAG);
+
+        MockHttpServletResponse revalidated = mvc.perform(get("/api/files/" + id)
+                .header(HttpHeaders.IF_NONE_MATCH, etag)).andReturn().getResponse();
+        assertEquals(304, revalidated.getStatus());
+        assertEquals(0, revalidated.getContentAsByteArray().length);
+
+        // The second of two downloads is still there
+        assertEquals(200, download(id, null, null, null).getStatus());
+        assertEquals(410, download(id, null, null, null).getStatus());
+    }
+
+    @Test
+    void revalidationsAndUnsatisfiableRangesAreAnsweredWithoutOpeningTheBlob() throws Exception {
+        byte[] own = Arrays.copyOf(CONTENT, 5000); // Content of its own: no other test shares the blob
+        String id = upload(5, own);
+        String etag = download(id, null, null, null).getHeader(HttpHeaders.ETAG);
+        Files.delete(volumes.locate(storageService.getMetadata(id).getStorageName()));
+
+        MockHttpServletResponse revalidated = mvc.perform(get("/api/files/" + id)
+                .header(HttpHeaders.IF_NONE_MATCH, etag)).andReturn().getResponse();
+        assertEquals(304, revalidated.getStatus());
+        assertEquals(etag, revalidated.getHeader(HttpHeaders.ETAG));
+
+        MockHttpServletResponse unsatisfiable = download(id, "bytes=9000-", null, null);
+        assertEquals(416, unsatisfiable.getStatus());
+        assertEquals("bytes */5000", unsatisfiable.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void rangesWithoutASlotOfTheirOwnCantGetPastTheDownloadLimit() throws Exception {
+        String id = upload(1);
+        MockHttpServletResponse first = download(id, "bytes=0-0", null, null);
+        assertEquals(206, first.getStatus());
+        Cookie slot = first.getCookie("dz-slot");
+        assertNotNull(slot);
+
+        // Anyone else asking for the rest: the one download is taken
+        assertEquals(410, download(id, "bytes=1-", null, null).getStatus());
+
+        // The client that holds the slot gets its follow-up range
+        MockHttpServletResponse rest = download(id, "bytes=1-", null, slot);
+        assertEquals(206, rest.getStatus());
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 1, CONTENT.length), rest.getContentAsByteArray());
+    }
+
+    @Test
+    void theLastDownloadCanStillSeekAfterTheLastDownloadGrace() throws Exception {
+        String id = upload(1);
+        MockHttpServletResponse first = download(id, "bytes=0-0", null, null);
+        assertEquals(206, first.getStatus());
+        Cookie slot = first.getCookie("dz-slot");
+
+        // The janitor comes for the used-up file, but its slot token is still good
+        Thread.sleep(1500);
+
+        MockHttpServletResponse seek = download(id, "bytes=50000-50999", null, slot);
+        assertEquals(206, seek.getStatus());
+        assertArrayEquals(Arrays.copyOfRange(CONTENT, 50_000, 51_000), seek.getContentAsByteArray());
+        assertEquals(410, download(id, null, null, null).getStatus());
+    }
+
+    @Test
+    void anUnknownIdIsNotFound() throws Exception {
+        assertEquals(404, download("nosuchid", null, null, null).getStatus());
+    }
+
+    private String upload(int downloads) throws Exception {
+        return upload(downloads, CONTENT);
+    }
+
+    private String upload(int downloads, byte[] content) throws Exception {
+        String body = mvc.perform(put("/api/files/stream")
+                        .param("filename", "range-test.bin")
+                        .param("downloads", String.valueOf(downloads))
+                        .contentType("application/octet-stream")
+                        .content(content))
+                .andReturn().getResponse().getContentAsString();
+        return JsonPath.read(body, "$.id");
+    }
+
+    private MockHttpServletResponse download(String id, String range, String ifRange, Cookie slot) throws Exception {
+        var request = get("/api/files/" + id);
+        if (range != null) request.header(HttpHeaders.RANGE, range);
+        if (ifRange != null) request.header(HttpHeaders.IF_RANGE, ifRange);
+        if (slot != null) request.cookie(slot);
+        return mvc.perform(request).andReturn().getResponse();
+    }
+}
@@ -0,0 +1,129 @@
+package com.dropzone.api.controller;
+
+import com.dropzone.api.service.BandwidthShaper;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+// Which downloads are handed to the container's sendfile() (throw-away database and storage)
+@SpringBootTest
+@AutoConfigureMockMvc
+class FileControllerSendfileTest {
+
+    private static final String SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String START = "org.apache.tomcat.sendfile.start";
+    private static final String END = "org.apache.tomcat.sendfile.end";
+
+    private static final byte[] CONTENT = new byte[100_000];
+
+    @TempDir
+    static Path workDir;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> "jdbc:sqlite:" + workDir.resolve("test.db"));
+        registry.add("app.storage.location", () -> workDir.resolve("uploads").toString());
+    }
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private BandwidthShaper shaper;
+
+    @BeforeEach
+    void content() {
+        new Random(3).nextBytes(CONTENT);
+    }
+
+    @Test
+    void aPlainFileGoesThroughSendfileWithNoBody() throws Exception {
+        String id = upload("clip.mp4", "video/mp4", CONTENT);
+        MvcResult result = download(id, null, true);
+
+        assertEquals(200, result.getResponse().getStatus());
+        assertEquals(0, result.getResponse().getContentAsByteArray().length);
+        assertEquals(String.valueOf(CONTENT.length), result.getResponse().getHeader(HttpHeaders.CONTENT_LENGTH));
+        String file = (String) result.getRequest().getAttribute(FILENAME);
+        assertNotNull(file);
+        assertArrayEquals(CONTENT, Files.readAllBytes(new File(file).toPath()));
+        assertEquals(0L, result.getRequest().getAttribute(START));
+        assertEquals((long) CONTENT.length, result.getRequest().getAttribute(END));
+    }
+
+    @Test
+    void aRangeOfAPlainFileIsSentAsAPartOfTheFile() throws Exception {
+        String id = upload("range.mp4", "video/mp4", CONTENT);
+        MvcResult result = download(id, "bytes=1000-60999", true);
+
+        assertEquals(206, result.getResponse().getStatus());
+        assertEquals("bytes 1000-60999/" + CONTENT.length, result.getResponse().getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(1000L, result.getRequest().getAttribute(START));
+        assertEquals(61_000L, result.getRequest().getAttribute(END));
+    }
+
+    @Test
+    void encryptedSmallUnsupportedOrThrottledDownloadsAreStreamed() throws Exception {
+        // Encrypted: the bytes on disk are not the bytes to send
+        assertStreamed(download(upload("secret.bin", "application/octet-stream", CONTENT), null, true), CONTENT);
+
+        // Under the minimum size: not worth it
+        byte[] small = Arrays.copyOf(CONTENT, 10_000);
+        small[0] ^= 1; // Content of its own
+        assertStreamed(download(upload("small.mp4", "video/mp4", small), null, true), small);
+
+        // The container can't do it
+        assertStreamed(download(upload("plain.mp4", "video/mp4", CONTENT), null, false), CONTENT);
+
+        // A bandwidth limit only applies to bytes that go through Java
+        shaper.setLimits(100_000_000, 0, 0);
+        try {
+            assertStreamed(download(upload("limited.mp4", "video/mp4", CONTENT), null, true), CONTENT);
+        } finally {
+            shaper.setLimits(0, 0, 0);
+        }
+    }
+
+    private static void assertStreamed(MvcResult result, byte[] content) throws Exception {
+        assertEquals(200, result.getResponse().getStatus());
+        assertNull(result.getRequest().getAttribute(FILENAME));
+        assertArrayEquals(content, result.getResponse().getContentAsByteArray());
+    }
+
+    private String upload(String filename, String contentType, byte[] content) throws Exception {
+        String body = mvc.perform(put("/api/files/stream")
+                        .param("filename", filename)
+                        .param("downloads", "5")
+                        .contentType(contentType)
+                        .content(content))
+                .andReturn().getResponse().getContentAsString();
+        return JsonPath.read(body, "$.id");
+    }
+
+    private MvcResult download(String id, String range, boolean sendfileSupport) throws Exception {
+        var request = get("/api/files/" + id);
+        if (range != null) request.header(HttpHeaders.RANGE, range);
+        if (sendfileSupport) request.requestAttr(SUPPORT, Boolean.TRUE);
+        return mvc.perform(request).andReturn();
+    }
+}
@@ -0,0 +1,120 @@
+package com.dropzone.api.controller;
+
+import com.dropzone.api.repository.FileRepository;
+import com.dropzone.api.service.StorageService;
+import com.dropzone.api.service.StorageVolumes;
+import com.jayway.jsonpath.JsonPath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+// The raw PUT upload: the request body goes to its blob in one pass (throw-away database and storage)
+@SpringBootTest
+@AutoConfigureMockMvc
+class FileControllerStreamUploadTest {
+
+    @TempDir
+    static Path workDir;
+
+    @DynamicPropertySource
+    static void storage(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> "jdbc:sqlite:" + workDir.resolve("test.db"));
+        registry.add("app.storage.location", () -> workDir.resolve("uploads").toString());
+    }
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StorageVolumes volumes;
+
+    @Autowired
+    private FileRepository fileRepository;
+
+    @Test
+    void aStreamedUploadComesBackByteForByte() throws Exception {
+        byte[] content = random(300_000, 1);
+        String body = mvc.perform(put("/api/files/stream")
+                        .param("filename", "whole.bin")
+                        .contentType("application/octet-stream")
+                        .content(content))
+                .andReturn().getResponse().getContentAsString();
+        String id = JsonPath.read(body, "$.id");
+        assertEquals(content.length, ((Number) JsonPath.read(body, "$.size")).longValue());
+
+        MockHttpServletResponse download = mvc.perform(get("/api/files/" + id)).andReturn().getResponse();
+        assertArrayEquals(content, download.getContentAsByteArray());
+    }
+
+    @Test
+    void aBodyThatBreaksOffIsRejectedAndLeavesNothingBehind() throws Exception {
+        long rows = fileRepository.count();
+        List<Path> before = blobs();
+
+        // The connection drops partway (the container reports a body shorter than its Content-Length the same way)
+        for (String type : new String[]{"application/octet-stream", "video/mp4"}) { // Encrypted and plain
+            assertThrows(IOException.class, () -> storageService.storeStream(truncated(random(300_000, 2)),
+                    "truncated", type, 1, 10, null));
+        }
+
+        assertEquals(rows, fileRepository.count());
+        assertEquals(before, blobs());
+    }
+
+    @Test
+    void anEmptyBodyIsABadRequest() throws Exception {
+        long rows = fileRepository.count();
+        assertEquals(400, mvc.perform(put("/api/files/stream")
+                .param("filename", "empty.bin")
+                .contentType("application/octet-stream")
+                .content(new byte[0])).andReturn().getResponse().getStatus());
+        assertEquals(rows, fileRepository.count());
+    }
+
+    private static InputStream truncated(byte[] content) {
+        return new SequenceInputStream(new ByteArrayInputStream(content, 0, content.length / 2), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+    }
+
+    // Every blob and temp file on the volumes (hidden files like the dedup secret aside)
+    private List<Path> blobs() throws IOException {
+        try (Stream<Path> files = Files.walk(volumes.primary())) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .sorted().toList();
+        }
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
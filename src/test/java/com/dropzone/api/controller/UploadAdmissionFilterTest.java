@@ -0,0 +1,103 @@
+package com.dropzone.api.controller;
+
+import com.dropzone.api.repository.FileRepository;
+import com.dropzone.api.service.ExpiryScheduler;
+import com.dropzone.api.service.FileCleanupService;
+import com.dropzone.api.service.StorageVolumes;
+import com.dropzone.api.service.TransferMetrics;
+import com.dropzone.api.service.UploadAdmission;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UploadAdmissionFilterTest {
+
+    private StorageVolumes volumes;
+    private UploadAdmission admission;
+    private UploadAdmissionFilter filter;
+    private FilterChain chain;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        volumes = mock(StorageVolumes.class);
+        when(volumes.room()).thenReturn(new long[]{10_000});
+        ExpiryScheduler expiryScheduler = mock(ExpiryScheduler.class);
+        when(expiryScheduler.untilNext()).thenReturn(Duration.ofMinutes(2));
+        ObjectProvider<FileCleanupService> janitor = mock(ObjectProvider.class);
+        when(janitor.getObject()).thenReturn(mock(FileCleanupService.class));
+        admission = new UploadAdmission(volumes, mock(FileRepository.class), expiryScheduler,
+                mock(TransferMetrics.class), janitor, DataSize.ofBytes(0), Duration.ofSeconds(30));
+        filter = new UploadAdmissionFilter(admission);
+        chain = mock(FilterChain.class);
+    }
+
+    @Test
+    void aMultipartUploadWithoutALengthIs411() throws Exception {
+        MockHttpServletResponse response = filter(multipart(null));
+
+        assertEquals(411, response.getStatus());
+        verifyNoInteractions(chain, volumes);
+    }
+
+    @Test
+    void tooBigForTheDiskIs507AndTooBigNextToAnotherUploadIs429() throws Exception {
+        MockHttpServletResponse full = filter(multipart(20_000L));
+        assertEquals(507, full.getStatus());
+        assertEquals("120", full.getHeader(HttpHeaders.RETRY_AFTER)); // The next expiry frees space
+
+        try (UploadAdmission.Reservation other = admission.admit(6_000)) {
+            MockHttpServletResponse busy = filter(multipart(6_000L));
+            assertEquals(429, busy.getStatus());
+            assertEquals("30", busy.getHeader(HttpHeaders.RETRY_AFTER));
+        }
+        verifyNoInteractions(chain); // The body is never read
+    }
+
+    @Test
+    void anAdmittedUploadHoldsItsReservationForTheWholeRequest() throws Exception {
+        doAnswer(invocation -> {
+            assertEquals(1000, admission.getOutstanding());
+            return null;
+        }).when(chain).doFilter(any(), any());
+
+        filter(multipart(1000L));
+
+        verify(chain).doFilter(any(), any());
+        assertEquals(0, admission.getOutstanding());
+    }
+
+    @Test
+    void otherRequestsPassUntouched() throws Exception {
+        MockHttpServletRequest stream = new MockHttpServletRequest("PUT", "/api/files/stream");
+        stream.setContentType("application/octet-stream");
+        filter(stream);
+
+        verify(chain).doFilter(any(), any());
+        verifyNoInteractions(volumes);
+    }
+
+    private MockHttpServletResponse filter(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    private static MockHttpServletRequest multipart(Long length) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/files/upload");
+        request.setContentType("multipart/form-data; boundary=x");
+        if (length != null) request.setContent(new byte[length.intValue()]);
+        return request;
+    }
+}
@@ -0,0 +1,91 @@
+package com.dropzone.api.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BandwidthShaperTest {
+
+    private static final int SLICE = 65536;
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void aSmallTransferOvertakesALongOneWhenTheLinkIsDry() throws Exception {
+        // 4 slices a second for everyone together
+        BandwidthShaper shaper = shaper(4 * SLICE);
+        AtomicLong longMoved = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        Future<?> video = pool.submit(() -> {
+            InputStream in = shaper.shapeUpload(endless(), "laptop", -1);
+            byte[] buffer = new byte[SLICE];
+            while (!stop.get()) longMoved.addAndGet(in.read(buffer));
+            return null;
+        });
+
+        // The long transfer has been going for a while and keeps the bucket empty
+        while (longMoved.get() < 8 * SLICE) Thread.sleep(10);
+
+        long before = longMoved.get();
+        long started = System.nanoTime();
+        byte[] pdf = shaper.shapeUpload(new ByteArrayInputStream(new byte[2 * SLICE]), "phone", 2 * SLICE).readAllBytes();
+        long took = System.nanoTime() - started;
+        long during = longMoved.get() - before;
+        stop.set(true);
+        video.get(5, TimeUnit.SECONDS);
+
+        assertEquals(2 * SLICE, pdf.length);
+        // Both its slices went first: at most the slice the long one had already been granted got through
+        assertTrue(during <= SLICE, "the long transfer moved " + during + " bytes meanwhile");
+        assertTrue(took < TimeUnit.SECONDS.toNanos(1), "took " + took / 1_000_000 + " ms");
+    }
+
+    @Test
+    void liftingTheLimitReleasesTheWaiters() throws Exception {
+        // 1KB a second: after its first slice the transfer would wait a minute for the next
+        BandwidthShaper shaper = shaper(1024);
+        Future<byte[]> transfer = pool.submit(() ->
+                shaper.shapeUpload(new ByteArrayInputStream(new byte[3 * SLICE]), "laptop", -1).readAllBytes());
+        Thread.sleep(300);
+        assertFalse(transfer.isDone());
+
+        shaper.setLimits(0, 0, 0);
+        assertEquals(3 * SLICE, transfer.get(5, TimeUnit.SECONDS).length);
+    }
+
+    private static BandwidthShaper shaper(long globalLimit) {
+        return new BandwidthShaper(new TransferMetrics(new SimpleMeterRegistry()), DataSize.ofBytes(globalLimit),
+                DataSize.ofBytes(0), DataSize.ofBytes(0), DataSize.ofMegabytes(8));
+    }
+
+    private static InputStream endless() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return len;
+            }
+        };
+    }
+}
@@ -0,0 +1,160 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ContentAddressedStoreTest {
+
+    private static final byte[] CONTENT = new byte[300_000];
+
+    @TempDir
+    Path dir;
+
+    private FileRepository fileRepository;
+    private SegmentedCipherEngine cipherEngine;
+    private StorageVolumes volumes;
+
+    @BeforeEach
+    void setUp() {
+        new Random(11).nextBytes(CONTENT);
+        fileRepository = mock(FileRepository.class);
+        CipherService cipherService = new CipherService();
+        cipherEngine = new SegmentedCipherEngine(cipherService, DataSize.ofKilobytes(64), 2, 2,
+                new TransferMetrics(new SimpleMeterRegistry()));
+        volumes = new StorageVolumes(dir.toString(), List.of(), DataSize.ofBytes(0));
+    }
+
+    @AfterEach
+    void tearDown() {
+        cipherEngine.shutdown();
+    }
+
+    @Test
+    void twoIdenticalUploadsShareOneBlob() throws IOException {
+        ContentAddressedStore store = store();
+        ContentAddressedStore.Blob first = store.store(upload(CONTENT), true);
+        ContentAddressedStore.Blob second = store.store(upload(CONTENT), true);
+
+        assertEquals(first.storageName(), second.storageName());
+        assertArrayEquals(first.key().getEncoded(), second.key().getEncoded());
+        assertEquals(first.checksum(), second.checksum());
+        assertEquals(List.of(first.storageName()), blobs());
+
+        // Other content, or the same content unencrypted, is a blob of its own
+        byte[] other = CONTENT.clone();
+        other[0] ^= 1;
+        assertNotEquals(first.storageName(), store.store(upload(other), true).storageName());
+        assertNotEquals(first.storageName(), store.store(upload(CONTENT), false).storageName());
+        assertEquals(3, blobs().size());
+    }
+
+    @Test
+    void theBlobGoesWithItsLastRow() throws IOException {
+        ContentAddressedStore store = store();
+        String name = store.store(upload(CONTENT), false).storageName();
+        assertEquals(name, store.storeStream(stream(CONTENT), false).storageName()); // A streamed copy attaches too
+
+        store.release(name);
+        assertTrue(Files.exists(volumes.locate(name)));
+        store.release(name);
+        assertFalse(Files.exists(volumes.locate(name)));
+
+        // Stored again from scratch afterwards
+        assertEquals(name, store.store(upload(CONTENT), false).storageName());
+        assertTrue(Files.exists(volumes.locate(name)));
+    }
+
+    @Test
+    void referencesOfRowsSavedBeforeAStartAreKept() throws IOException {
+        String name = store().store(upload(CONTENT), false).storageName();
+        // After a restart: two rows point at the blob
+        when(fileRepository.countContentAddressedReferences()).thenReturn(List.<Object[]>of(new Object[]{name, 2L}));
+        ContentAddressedStore restarted = store();
+
+        restarted.release(name);
+        assertTrue(Files.exists(volumes.locate(name)));
+        restarted.release(name);
+        assertFalse(Files.exists(volumes.locate(name)));
+    }
+
+    @Test
+    void concurrentUploadsOfTheSameNewContentEndUpOnOneBlob() throws Exception {
+        ContentAddressedStore store = store();
+        int uploads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(uploads);
+        List<String> names = new ArrayList<>();
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return store.storeStream(stream(CONTENT), false).storageName();
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) names.add(result.get());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        String name = names.get(0);
+        assertTrue(names.stream().allMatch(name::equals));
+        assertEquals(List.of(name), blobs()); // No temp file left behind
+        assertArrayEquals(CONTENT, Files.readAllBytes(volumes.locate(name)));
+
+        // Every upload holds its own reference
+        for (int i = 1; i < uploads; i++) store.release(name);
+        assertTrue(Files.exists(volumes.locate(name)));
+        store.release(name);
+        assertFalse(Files.exists(volumes.locate(name)));
+    }
+
+    private ContentAddressedStore store() throws IOException {
+        ContentAddressedStore store = new ContentAddressedStore(true, volumes, "test-secret", fileRepository,
+                new CipherService(), cipherEngine, false);
+        store.init();
+        return store;
+    }
+
+    private static MockMultipartFile upload(byte[] content) {
+        return new MockMultipartFile("file", "same.bin", "application/octet-stream", content);
+    }
+
+    private static MeteredInputStream stream(byte[] content) {
+        return new MeteredInputStream(new ByteArrayInputStream(content), Long.MAX_VALUE);
+    }
+
+    // Every file under the storage folder but the hidden secret
+    private List<String> blobs() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> !name.startsWith("."))
+                    .sorted()
+                    .toList();
+        }
+    }
+}
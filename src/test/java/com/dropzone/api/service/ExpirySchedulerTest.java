@@ -0,0 +1,43 @@
+package com.dropzone.api.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpirySchedulerTest {
+
+    private final ExpiryScheduler scheduler = new ExpiryScheduler();
+
+    @Test
+    void theSameDeadlineIsQueuedOnce() {
+        LocalDateTime expiry = LocalDateTime.now().plusHours(1);
+        // The janitor re-arms a file it left alive on every pass
+        for (int i = 0; i < 100; i++) scheduler.schedule("file", expiry);
+        assertEquals(1, scheduler.size());
+
+        // Another deadline of the same file, or the same deadline of another file, is its own entry
+        scheduler.schedule("file", expiry.plusMinutes(1));
+        scheduler.schedule("other", expiry);
+        assertEquals(3, scheduler.size());
+    }
+
+    @Test
+    void aDeadlineThatCameDueMayBeQueuedAgain() throws InterruptedException {
+        LocalDateTime past = LocalDateTime.now().minusSeconds(1);
+        scheduler.schedule("file", past);
+        scheduler.schedule("file", past);
+        scheduler.scheduleAfter("used-up", Duration.ZERO);
+
+        List<String> due = scheduler.awaitDue();
+        assertEquals(2, due.size());
+        assertTrue(due.containsAll(List.of("file", "used-up")));
+        assertEquals(0, scheduler.size());
+
+        scheduler.schedule("file", past);
+        assertEquals(List.of("file"), scheduler.awaitDue());
+    }
+}
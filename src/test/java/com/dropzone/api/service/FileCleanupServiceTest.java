@@ -0,0 +1,200 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class FileCleanupServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private FileRepository fileRepository;
+    private FileMetadataCache metadataCache;
+    private ExpiryScheduler expiryScheduler;
+    private ShortIdAllocator idAllocator;
+    private StorageVolumes volumes;
+    private UploadAdmission admission;
+    private DownloadSlotTokens slotTokens;
+    private FileCleanupService cleanup;
+
+    @BeforeEach
+    void setUp() {
+        fileRepository = mock(FileRepository.class);
+        metadataCache = new FileMetadataCache(fileRepository, 100);
+        expiryScheduler = mock(ExpiryScheduler.class);
+        idAllocator = mock(ShortIdAllocator.class);
+        volumes = mock(StorageVolumes.class);
+        admission = mock(UploadAdmission.class);
+        slotTokens = new DownloadSlotTokens(Duration.ofMinutes(5));
+        cleanup = new FileCleanupService(fileRepository, metadataCache, expiryScheduler,
+                mock(HotContentCache.class), idAllocator, mock(ContentAddressedStore.class),
+                mock(ChunkedUploadService.class), admission, slotTokens, mock(TransferMetrics.class), volumes,
+                mock(PlatformTransactionManager.class), 10000);
+    }
+
+    @Test
+    void theReconcileKeepsAFileWhoseLastDownloadIsStillStreaming() throws Exception {
+        FileMetadata file = FileMetadataCacheTest.file("streaming", 1);
+        metadataCache.put(file);
+        assertTrue(metadataCache.tryReserveDownload(file));
+
+        // After the flush the limit query finds the row: its counter says "used up"
+        reconcileFinds(file);
+        cleanup.cleanupExpiredFiles();
+
+        verify(fileRepository).addDownloads("streaming", 1);
+        verify(fileRepository, never()).deleteAllByIdInBatch(any());
+        verify(volumes, never()).delete(any());
+        verify(expiryScheduler).schedule("streaming", file.getExpiryTime());
+
+        // The slot is aborted: the file is downloadable again, and still there
+        metadataCache.releaseDownload(file);
+        assertTrue(metadataCache.tryReserveDownload(file));
+    }
+
+    @Test
+    void theReconcileDeletesAFileOnceItsLastDownloadCompleted() throws Exception {
+        FileMetadata file = FileMetadataCacheTest.file("delivered", 1);
+        metadataCache.put(file);
+        assertTrue(metadataCache.tryReserveDownload(file));
+        metadataCache.completeDownload(file);
+
+        reconcileFinds(file);
+        cleanup.cleanupExpiredFiles();
+
+        verify(fileRepository).deleteAllByIdInBatch(List.of("delivered"));
+        verify(volumes).delete("delivered-blob");
+        verify(idAllocator).release("delivered");
+        verify(admission).deleted(file.getSize());
+    }
+
+    @Test
+    void aUsedUpFileStaysWhileItsLastDownloadCanStillSeek() {
+        FileMetadata file = FileMetadataCacheTest.file("seeking", 1);
+        metadataCache.put(file);
+        assertTrue(metadataCache.tryReserveDownload(file));
+        String token = slotTokens.issue("seeking");
+        slotTokens.complete(token);
+        metadataCache.completeDownload(file);
+
+        // The last-download grace is over, the token's is not: the file waits for it
+        when(fileRepository.findAllById(any())).thenReturn(List.of(file));
+        assertEquals(0, cleanup.deleteExpired(List.of("seeking")));
+        verify(fileRepository, never()).deleteAllByIdInBatch(any());
+        verify(expiryScheduler).scheduleAfter(eq("seeking"), argThat(left -> left.compareTo(Duration.ofMinutes(4)) > 0));
+
+        // Its expiry time is a hard deadline
+        file.setExpiryTime(LocalDateTime.now().minusSeconds(1));
+        assertEquals(1, cleanup.deleteExpired(List.of("seeking")));
+    }
+
+    @Test
+    void aBundleIdIsReleasedWithItsLastMember() {
+        FileMetadata first = FileMetadataCacheTest.file("first", 1);
+        FileMetadata second = FileMetadataCacheTest.file("second", 1);
+        first.setBundleId("bundle");
+        second.setBundleId("bundle");
+        first.setExpiryTime(LocalDateTime.now().minusMinutes(1));
+
+        when(fileRepository.findAllById(any())).thenReturn(List.of(first));
+        when(fileRepository.existsByBundleId("bundle")).thenReturn(true);
+        cleanup.deleteExpired(List.of("first"));
+        verify(idAllocator, never()).release("bundle");
+
+        second.setExpiryTime(LocalDateTime.now().minusMinutes(1));
+        when(fileRepository.findAllById(any())).thenReturn(List.of(second));
+        when(fileRepository.existsByBundleId("bundle")).thenReturn(false);
+        cleanup.deleteExpired(List.of("second"));
+        verify(idAllocator).release("bundle");
+    }
+
+    @Test
+    void theOrphanSweepRemovesOnlyOldBlobsWithoutARow() throws Exception {
+        StorageVolumes real = new StorageVolumes(dir.toString(), List.of(), DataSize.ofBytes(0));
+        Path live = blob(real, "live-blob", true);
+        Path orphan = blob(real, "orphan-blob", true);
+        Path young = blob(real, "young-blob", false); // Its upload may not have saved the row yet
+        FileCleanupService sweeper = sweeper(real, mock(ChunkedUploadService.class), 100, "live-blob");
+
+        sweeper.cleanOrphanFiles();
+
+        assertTrue(Files.exists(live));
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(young));
+    }
+
+    @Test
+    void theOrphanSweepResumesWhereTheLastRunStopped() throws Exception {
+        StorageVolumes real = new StorageVolumes(dir.toString(), List.of(), DataSize.ofBytes(0));
+        List<String> names = List.of("a-blob", "b-blob", "c-blob", "d-blob", "e-blob");
+        for (String name : names) blob(real, name, true);
+        ChunkedUploadService chunked = mock(ChunkedUploadService.class);
+        FileCleanupService sweeper = sweeper(real, chunked, 2, names.toArray(String[]::new));
+
+        // Two entries per run: the lap takes three runs and covers every blob once
+        Set<String> lap = new HashSet<>();
+        for (int run = 0; run < 3; run++) {
+            List<String> scanned = scannedBy(chunked, sweeper::cleanOrphanFiles);
+            assertEquals(run < 2 ? 2 : 1, scanned.size());
+            for (String name : scanned) assertTrue(lap.add(name), name + " scanned twice in one lap");
+        }
+        assertEquals(Set.copyOf(names), lap);
+
+        // The next run starts the next lap
+        assertEquals(2, scannedBy(chunked, sweeper::cleanOrphanFiles).size());
+    }
+
+    // The blobs the sweep looked at in one run (each is checked against the chunked uploads first)
+    private static List<String> scannedBy(ChunkedUploadService chunked, Runnable sweep) {
+        clearInvocations(chunked);
+        sweep.run();
+        ArgumentCaptor<String> names = ArgumentCaptor.forClass(String.class);
+        verify(chunked, atLeast(0)).isUploading(names.capture());
+        return new ArrayList<>(names.getAllValues());
+    }
+
+    private FileCleanupService sweeper(StorageVolumes real, ChunkedUploadService chunked, int batchSize,
+                                       String... known) {
+        // Each run streams a fresh snapshot of the table
+        when(fileRepository.streamAllStorageNames()).thenAnswer(invocation -> Stream.of(known));
+        return new FileCleanupService(fileRepository, metadataCache, expiryScheduler,
+                mock(HotContentCache.class), idAllocator, mock(ContentAddressedStore.class),
+                chunked, admission, slotTokens, mock(TransferMetrics.class), real,
+                mock(PlatformTransactionManager.class), batchSize);
+    }
+
+    private static Path blob(StorageVolumes real, String name, boolean old) throws Exception {
+        Path path = real.allocate(name, 0);
+        Files.write(path, new byte[]{1, 2, 3});
+        if (old) Files.setLastModifiedTime(path, FileTime.from(Instant.now().minus(Duration.ofHours(1))));
+        return path;
+    }
+
+    private void reconcileFinds(FileMetadata file) {
+        when(fileRepository.findByExpiryTimeBefore(any())).thenReturn(List.of());
+        when(fileRepository.findByExpiryLimit()).thenReturn(List.of(file));
+        when(fileRepository.findAllById(any())).thenReturn(List.of(file));
+    }
+}
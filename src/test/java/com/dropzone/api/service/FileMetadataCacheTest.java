@@ -0,0 +1,196 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class FileMetadataCacheTest {
+
+    private static final byte[] CONTENT = new byte[64 * 1024];
+
+    private FileRepository fileRepository;
+    private FileMetadataCache cache;
+
+    @BeforeEach
+    void setUp() {
+        fileRepository = mock(FileRepository.class);
+        cache = new FileMetadataCache(fileRepository, 100);
+    }
+
+    @Test
+    void concurrentReservationsOnAOneDownloadFileHaveExactlyOneWinner() throws Exception {
+        FileMetadata file = file("once", 1);
+        cache.put(file);
+
+        int threads = 32;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> attempts = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                attempts.add(pool.submit(() -> {
+                    start.await();
+                    return cache.tryReserveDownload(file);
+                }));
+            }
+            start.countDown();
+            int winners = 0;
+            for (Future<Boolean> attempt : attempts) {
+                if (attempt.get()) winners++;
+            }
+            assertEquals(1, winners);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(cache.isExhausted(file));
+        assertEquals(1, file.getDownloadCount());
+    }
+
+    @Test
+    void concurrentReservationsNeverExceedTheLimit() throws Exception {
+        FileMetadata file = file("five", 5);
+        cache.put(file);
+
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Boolean>> attempts = new ArrayList<>();
+            for (int i = 0; i < 200; i++) attempts.add(pool.submit(() -> cache.tryReserveDownload(file)));
+            int winners = 0;
+            for (Future<Boolean> attempt : attempts) {
+                if (attempt.get()) winners++;
+            }
+            assertEquals(5, winners);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void anAbortedDownloadGivesItsSlotBack() throws IOException {
+        FileMetadata file = file("aborted", 1);
+        cache.put(file);
+        assertTrue(cache.tryReserveDownload(file));
+
+        // The client hangs up halfway through the body
+        try (InputStream in = slot(file).getInputStream()) {
+            in.readNBytes(CONTENT.length / 2);
+        }
+
+        assertFalse(cache.isExhausted(file));
+        assertEquals(0, file.getDownloadCount());
+        assertTrue(cache.tryReserveDownload(file));
+    }
+
+    @Test
+    void aDeliveredDownloadKeepsItsSlot() throws IOException {
+        FileMetadata file = file("delivered", 1);
+        cache.put(file);
+        assertTrue(cache.tryReserveDownload(file));
+
+        try (InputStream in = slot(file).getInputStream()) {
+            in.readAllBytes();
+        }
+
+        assertTrue(cache.isUsedUp(file));
+        assertFalse(cache.tryReserveDownload(file));
+    }
+
+    @Test
+    void aFileIsNotUsedUpWhileItsLastDownloadIsInFlight() {
+        FileMetadata file = file("streaming", 1);
+        cache.put(file);
+        assertTrue(cache.tryReserveDownload(file));
+
+        assertTrue(cache.isExhausted(file));
+        assertFalse(cache.isUsedUp(file));
+
+        cache.completeDownload(file);
+        assertTrue(cache.isUsedUp(file));
+    }
+
+    @Test
+    void aLiveReceiverAbortedAfterTheHandOverGivesItsSlotBack() {
+        // Two receivers joined while the upload was live: one has finished, one is still reading
+        FileMetadata file = file("live", 2);
+        file.setDownloadCount(2);
+        cache.handOver(file, 2);
+        cache.put(file);
+        assertTrue(cache.isExhausted(file));
+        assertFalse(cache.isUsedUp(file));
+
+        // Both settle on the stored row: the finished one completes, the other hangs up
+        cache.completeDownload(file);
+        assertFalse(cache.isUsedUp(file));
+        cache.releaseDownload(file);
+
+        assertFalse(cache.isUsedUp(file));
+        assertTrue(cache.tryReserveDownload(file));
+        cache.completeDownload(file);
+        assertTrue(cache.isUsedUp(file));
+    }
+
+    @Test
+    void aLookupThatRacedWithAnEvictionDoesNotPutTheRowBack() {
+        FileMetadata file = file("deleted", 1);
+        // The janitor deletes the row while the lookup is in the DB
+        when(fileRepository.findById("deleted")).thenAnswer(invocation -> {
+            cache.evict("deleted");
+            return Optional.of(file);
+        });
+
+        assertNull(cache.get("deleted"));
+
+        when(fileRepository.findById("deleted")).thenReturn(Optional.empty());
+        assertNull(cache.get("deleted"));
+    }
+
+    @Test
+    void pendingDownloadsAreFlushedAsOneRelativeUpdate() {
+        FileMetadata file = file("flushed", 5);
+        cache.put(file);
+        cache.tryReserveDownload(file);
+        cache.tryReserveDownload(file);
+        cache.releaseDownload(file);
+
+        cache.flushDownloadCounts();
+
+        verify(fileRepository).addDownloads("flushed", 1);
+        cache.flushDownloadCounts();
+        verifyNoMoreInteractions(fileRepository);
+    }
+
+    // Settles the slot the way FileController does for a streamed download
+    private DownloadSlotResource slot(FileMetadata file) {
+        return new DownloadSlotResource(new ByteArrayResource(CONTENT), 0, CONTENT.length,
+                () -> cache.completeDownload(file), () -> cache.releaseDownload(file));
+    }
+
+    static FileMetadata file(String id, int maxDownloads) {
+        return FileMetadata.builder()
+                .id(id)
+                .originalFilename(id + ".bin")
+                .storageName(id + "-blob")
+                .size(CONTENT.length)
+                .contentType("application/octet-stream")
+                .maxDownloads(maxDownloads)
+                .uploadTime(LocalDateTime.now())
+                .expiryTime(LocalDateTime.now().plusHours(1))
+                .build();
+    }
+}
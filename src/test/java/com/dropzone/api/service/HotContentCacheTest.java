@@ -0,0 +1,107 @@
+package com.dropzone.api.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotContentCacheTest {
+
+    private static final int SIZE = 1000;
+
+    private final HotContentCache cache = new HotContentCache(new TransferMetrics(new SimpleMeterRegistry()),
+            DataSize.ofBytes(2 * SIZE), DataSize.ofBytes(SIZE), 2);
+
+    @Test
+    void aPopularBlobIsServedFromMemoryAfterOneRead() throws Exception {
+        CountingResource source = new CountingResource("hot");
+        cache.get("hot", SIZE);
+        assertSame(source, cache.offer("hot", source)); // Asked for once: not worth a copy yet
+
+        cache.get("hot", SIZE);
+        Resource loaded = cache.offer("hot", source);
+        assertNotSame(source, loaded);
+        assertEquals(1, source.opened.get());
+
+        Resource cached = cache.get("hot", SIZE);
+        assertNotNull(cached);
+        try (InputStream in = cached.getInputStream()) {
+            assertArrayEquals(source.content, in.readAllBytes());
+        }
+        assertEquals(1, source.opened.get());
+    }
+
+    @Test
+    void aBlobThatIsNotAdmittedIsNotReadIntoMemory() throws Exception {
+        // Two hot entries fill the cache
+        for (String name : new String[]{"first", "second"}) {
+            for (int i = 0; i < 5; i++) cache.get(name, SIZE);
+            cache.offer(name, new CountingResource(name));
+        }
+
+        // Popular enough to be offered, but colder than both: it stays out, and so does its content
+        CountingResource source = new CountingResource("lukewarm");
+        cache.get("lukewarm", SIZE);
+        cache.get("lukewarm", SIZE);
+        assertSame(source, cache.offer("lukewarm", source));
+        assertEquals(0, source.opened.get());
+        assertNull(cache.get("lukewarm", SIZE));
+        assertNotNull(cache.get("first", SIZE));
+    }
+
+    @Test
+    void aFailedLoadGivesItsRoomBack() throws Exception {
+        cache.get("broken", SIZE);
+        cache.get("broken", SIZE);
+        assertThrows(Exception.class, () -> cache.offer("broken", new CountingResource("broken") {
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(new byte[SIZE / 2]); // Shorter than recorded
+            }
+        }));
+
+        // The whole budget is still there for two entries
+        for (String name : new String[]{"first", "second"}) {
+            cache.get(name, SIZE);
+            cache.get(name, SIZE);
+            cache.offer(name, new CountingResource(name));
+            assertNotNull(cache.get(name, SIZE), name);
+        }
+    }
+
+    private static class CountingResource extends AbstractResource {
+
+        final byte[] content = new byte[SIZE];
+        final AtomicInteger opened = new AtomicInteger();
+        private final String name;
+
+        CountingResource(String name) {
+            this.name = name;
+            Arrays.fill(content, (byte) name.length());
+        }
+
+        @Override
+        public long contentLength() {
+            return SIZE;
+        }
+
+        @Override
+        public String getDescription() {
+            return name;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream(content);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import com.dropzone.api.repository.FileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.AEADBadTagException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class IntegrityScrubberTest {
+
+    private static final byte[] CONTENT = new byte[200_000];
+
+    private FileRepository fileRepository;
+    private StorageService storageService;
+    private FileMetadataCache metadataCache;
+    private ExpiryScheduler expiryScheduler;
+    private TransferMetrics metrics;
+    private IntegrityScrubber scrubber;
+
+    @BeforeEach
+    void setUp() {
+        new Random(7).nextBytes(CONTENT);
+        fileRepository = mock(FileRepository.class);
+        storageService = mock(StorageService.class);
+        metadataCache = mock(FileMetadataCache.class);
+        expiryScheduler = mock(ExpiryScheduler.class);
+        metrics = mock(TransferMetrics.class);
+        scrubber = new IntegrityScrubber(fileRepository, storageService, metadataCache, expiryScheduler,
+                metrics, DataSize.ofGigabytes(1));
+    }
+
+    @Test
+    void aFileThatStillMatchesStaysOnline() throws Exception {
+        FileMetadata file = file("intact", sha256(CONTENT), CONTENT.length);
+        stored(file, CONTENT);
+
+        scrubber.scrub();
+
+        verify(metrics).recordScrub("ok");
+        verifyNoInteractions(expiryScheduler);
+    }
+
+    @Test
+    void aFlippedBitTakesTheFileOffline() throws Exception {
+        FileMetadata file = file("rotten", sha256(CONTENT), CONTENT.length);
+        byte[] rotten = CONTENT.clone();
+        rotten[123_456] ^= 0x10;
+        stored(file, rotten);
+
+        scrubber.scrub();
+
+        verify(expiryScheduler).scheduleAfter("rotten", Duration.ZERO);
+        verify(metrics).recordScrub("corrupt");
+    }
+
+    @Test
+    void aFileOfTheWrongLengthTakesTheFileOffline() throws Exception {
+        FileMetadata file = file("short", sha256(CONTENT), CONTENT.length);
+        stored(file, Arrays.copyOf(CONTENT, CONTENT.length - 1));
+
+        scrubber.scrub();
+
+        verify(expiryScheduler).scheduleAfter("short", Duration.ZERO);
+    }
+
+    @Test
+    void aFailedAuthenticationTagTakesTheFileOffline() throws Exception {
+        FileMetadata file = file("tampered", sha256(CONTENT), CONTENT.length);
+        slice(file);
+        when(storageService.openOriginal(file))
+                .thenThrow(new IOException("Decryption failed", new AEADBadTagException("Tag mismatch")));
+
+        scrubber.scrub();
+
+        verify(expiryScheduler).scheduleAfter("tampered", Duration.ZERO);
+    }
+
+    @Test
+    void aFileWithoutAChecksumGetsOne() throws Exception {
+        FileMetadata file = file("unhashed", null, CONTENT.length);
+        FileMetadata cached = file("unhashed", null, CONTENT.length);
+        when(fileRepository.findTop100ByChecksumIsNullOrderByIdAsc()).thenReturn(List.of(file));
+        when(storageService.openOriginal(file)).thenReturn(new ByteArrayInputStream(CONTENT));
+        when(metadataCache.get("unhashed")).thenReturn(cached);
+
+        scrubber.scrub();
+
+        verify(fileRepository).setChecksum("unhashed", sha256(CONTENT));
+        assertEquals(sha256(CONTENT), cached.getChecksum());
+        verifyNoInteractions(expiryScheduler);
+    }
+
+    @Test
+    void aFileDeletedMidCheckIsNotCorrupt() throws Exception {
+        FileMetadata file = file("gone", sha256(CONTENT), CONTENT.length);
+        slice(file);
+        when(storageService.openOriginal(file)).thenThrow(new NoSuchFileException("gone"));
+
+        scrubber.scrub();
+
+        verifyNoInteractions(expiryScheduler);
+        verify(metrics, never()).recordScrub(any());
+    }
+
+    @Test
+    void itGivesWayToTransfersAndChecksTheFileOnTheNextPass() throws Exception {
+        FileMetadata file = file("busy", sha256(CONTENT), CONTENT.length);
+        stored(file, CONTENT);
+        when(metrics.activeTransfers()).thenReturn(1);
+
+        scrubber.scrub();
+        verify(storageService, never()).openOriginal(any());
+
+        when(metrics.activeTransfers()).thenReturn(0);
+        when(storageService.openOriginal(file)).thenReturn(new ByteArrayInputStream(CONTENT));
+        scrubber.scrub();
+        verify(metrics).recordScrub("ok");
+    }
+
+    private void stored(FileMetadata file, byte[] bytes) throws IOException {
+        slice(file);
+        when(storageService.openOriginal(file)).thenReturn(new ByteArrayInputStream(bytes));
+    }
+
+    // The file is the whole of the current lap's first slice
+    private void slice(FileMetadata file) {
+        when(fileRepository.findTop100ByIdGreaterThanOrderByIdAsc("")).thenReturn(List.of(file));
+    }
+
+    private static FileMetadata file(String id, String checksum, long size) {
+        return FileMetadata.builder().id(id).storageName(id + "-blob").size(size).checksum(checksum).build();
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+}
@@ -0,0 +1,209 @@
+package com.dropzone.api.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardOpenOption.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedCipherEngineTest {
+
+    private static final int SEGMENT = 4096;
+
+    @TempDir
+    Path dir;
+
+    private CipherService cipherService;
+    private SegmentedCipherEngine engine;
+    private SecretKey key;
+
+    @BeforeEach
+    void setUp() {
+        cipherService = new CipherService();
+        engine = new SegmentedCipherEngine(cipherService, DataSize.ofBytes(SEGMENT), 2, 2,
+                new TransferMetrics(new SimpleMeterRegistry()));
+        key = cipherService.generateKey();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    void roundTripsWholeAndPartialSegments() throws IOException {
+        for (int length : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 10 * SEGMENT + 123}) {
+            byte[] plain = random(length);
+            Path file = encrypt(plain);
+            assertEquals(SegmentedCipherEngine.encryptedLength(length, SEGMENT), file.toFile().length());
+            assertArrayEquals(plain, decrypt(file, length, 0), "length " + length);
+        }
+    }
+
+    @Test
+    void skipJumpsToAnyOffset() throws IOException {
+        byte[] plain = random(10 * SEGMENT + 123);
+        Path file = encrypt(plain);
+        for (int offset : new int[]{1, SEGMENT - 1, SEGMENT, 3 * SEGMENT + 17, plain.length - 1, plain.length}) {
+            assertArrayEquals(Arrays.copyOfRange(plain, offset, plain.length), decrypt(file, plain.length, offset),
+                    "offset " + offset);
+        }
+    }
+
+    @Test
+    void aTamperedSegmentIsRejected() throws IOException {
+        byte[] plain = random(4 * SEGMENT);
+        Path file = encrypt(plain);
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            long position = CipherService.HEADER_LENGTH + 2L * (SEGMENT + 16) + 100;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            b.rewind();
+            channel.write(b, position);
+        }
+        assertThrows(IOException.class, () -> decrypt(file, plain.length, 0));
+    }
+
+    @Test
+    void aTruncatedFileIsRejected() throws IOException {
+        byte[] plain = random(4 * SEGMENT);
+        Path file = encrypt(plain);
+        // Drop the last segment and claim the file was always that long: segment 2 was not sealed as the last
+        long shorter = 3L * SEGMENT;
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            channel.truncate(SegmentedCipherEngine.encryptedLength(shorter, SEGMENT));
+        }
+        assertThrows(IOException.class, () -> decrypt(file, shorter, 0));
+        assertThrows(IOException.class, () -> decrypt(file, plain.length, 0));
+    }
+
+    @Test
+    void aHeaderOfAnotherFileIsRejected() throws IOException {
+        byte[] plain = random(2 * SEGMENT);
+        Path file = encrypt(plain);
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            InputStream in = engine.decryptingStream(channel, key, engine.newHeader(), plain.length);
+            assertThrows(IOException.class, in::readAllBytes);
+        }
+    }
+
+    @Test
+    void chunksSealEachSegmentOnceAndAResendMustMatch() throws IOException {
+        byte[] plain = random(4 * SEGMENT + 10);
+        byte[] header = engine.newHeader();
+        Set<Long> sealed = ConcurrentHashMap.newKeySet();
+        Path file = dir.resolve("chunked");
+        try (FileChannel channel = FileChannel.open(file, CREATE_NEW, READ, WRITE)) {
+            channel.write(ByteBuffer.wrap(header), 0);
+            // Chunks of two segments, out of order
+            encryptChunk(channel, header, plain, 2 * SEGMENT, sealed);
+            encryptChunk(channel, header, plain, 0, sealed);
+            encryptChunk(channel, header, plain, 4 * SEGMENT, sealed);
+            assertEquals(Set.of(0L, 1L, 2L, 3L, 4L), sealed);
+
+            // The same bytes again (a retry whose first attempt did get through): accepted, left alone
+            encryptChunk(channel, header, plain, 2 * SEGMENT, sealed);
+
+            // Different bytes under an index that was sealed already would reuse its nonce
+            byte[] changed = plain.clone();
+            changed[2 * SEGMENT + 5] ^= 1;
+            assertThrows(IllegalArgumentException.class, () -> encryptChunk(channel, header, changed, 2 * SEGMENT, sealed));
+        }
+        assertArrayEquals(plain, decrypt(file, plain.length, 0));
+    }
+
+    @Test
+    void aChunkThatBreaksMidStreamCanBeSentAgain() throws IOException {
+        byte[] plain = random(4 * SEGMENT);
+        byte[] header = engine.newHeader();
+        Set<Long> sealed = ConcurrentHashMap.newKeySet();
+        Path file = dir.resolve("broken");
+        try (FileChannel channel = FileChannel.open(file, CREATE_NEW, READ, WRITE)) {
+            channel.write(ByteBuffer.wrap(header), 0);
+            encryptChunk(channel, header, plain, 0, sealed);
+
+            // The connection drops halfway into the second segment of the chunk
+            InputStream broken = new SequenceInputStream(new ByteArrayInputStream(plain, 2 * SEGMENT, SEGMENT + 100),
+                    new InputStream() {
+                        @Override
+                        public int read() throws IOException {
+                            throw new IOException("Connection reset");
+                        }
+                    });
+            assertThrows(IOException.class, () -> engine.encryptRange(broken, channel, key, header,
+                    2 * SEGMENT, 2 * SEGMENT, plain.length, sealed));
+            assertEquals(Set.of(0L, 1L, 2L), sealed);
+
+            // The retry finds segment 2 on disk as sent and seals segment 3
+            encryptChunk(channel, header, plain, 2 * SEGMENT, sealed);
+        }
+        assertArrayEquals(plain, decrypt(file, plain.length, 0));
+    }
+
+    @Test
+    void aSegmentSealedButNeverStoredIsLostNotAMismatch() throws IOException {
+        byte[] plain = random(4 * SEGMENT);
+        byte[] header = engine.newHeader();
+        Set<Long> sealed = ConcurrentHashMap.newKeySet();
+        try (FileChannel channel = FileChannel.open(dir.resolve("lost"), CREATE_NEW, READ, WRITE)) {
+            channel.write(ByteBuffer.wrap(header), 0);
+            encryptChunk(channel, header, plain, 0, sealed);
+            // Its write failed partway: the segment's tail never reached the disk
+            channel.truncate(CipherService.HEADER_LENGTH + SEGMENT + 16 + 100);
+
+            assertThrows(SegmentedCipherEngine.SegmentLost.class, () -> encryptChunk(channel, header, plain, 0, sealed));
+            channel.write(ByteBuffer.allocate(SEGMENT), CipherService.HEADER_LENGTH + SEGMENT + 16 + 100);
+            assertThrows(SegmentedCipherEngine.SegmentLost.class, () -> encryptChunk(channel, header, plain, 0, sealed));
+        }
+    }
+
+    private void encryptChunk(FileChannel channel, byte[] header, byte[] plain, int offset, Set<Long> sealed)
+            throws IOException {
+        int length = Math.min(2 * SEGMENT, plain.length - offset);
+        engine.encryptRange(new ByteArrayInputStream(plain, offset, length), channel, key, header,
+                offset, length, plain.length, sealed);
+    }
+
+    private Path encrypt(byte[] plain) throws IOException {
+        Path file = dir.resolve("blob-" + plain.length + "-" + System.nanoTime());
+        try (FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+            assertEquals(plain.length, engine.encrypt(new ByteArrayInputStream(plain), channel, key, engine.newHeader()));
+        }
+        return file;
+    }
+
+    private byte[] decrypt(Path file, long plainLength, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            byte[] header = cipherService.readHeader(channel);
+            assertNotNull(header);
+            try (InputStream in = engine.decryptingStream(channel, key, header, plainLength)) {
+                assertEquals(offset, in.skip(offset));
+                return in.readAllBytes();
+            }
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,131 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ShortIdAllocatorTest {
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    @Test
+    void idsHaveTheConfiguredLengthAndAlphabet() {
+        ShortIdAllocator allocator = allocator(List.of(), List.of(), 6);
+        for (int i = 0; i < 1000; i++) {
+            String id = allocator.allocate();
+            assertEquals(6, id.length());
+            assertTrue(id.chars().allMatch(c -> ALPHABET.indexOf(c) >= 0), id);
+        }
+    }
+
+    @Test
+    void concurrentAllocationsNeverHandOutAnIdTwice() throws Exception {
+        // 4 characters: 14.8M ids, so a missing uniqueness check would show within these 160k
+        ShortIdAllocator allocator = allocator(List.of(), List.of(), 4);
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        assertTrue(seen.add(allocator.allocate()));
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(160_000, seen.size());
+        assertEquals(160_000, allocator.size());
+    }
+
+    @Test
+    void idsInTheTableAreNeverHandedOut() {
+        // A tenth of the 4-character space is taken by files and bundles
+        List<String> files = new ArrayList<>();
+        List<String> bundles = new ArrayList<>();
+        ShortIdAllocator source = allocator(List.of(), List.of(), 4);
+        for (int i = 0; i < 1_500_000; i++) (i % 2 == 0 ? files : bundles).add(source.allocate());
+
+        ShortIdAllocator allocator = allocator(files, bundles, 4);
+        assertEquals(1_500_000, allocator.size());
+        Set<String> taken = new HashSet<>(files);
+        taken.addAll(bundles);
+        for (int i = 0; i < 50_000; i++) {
+            assertFalse(taken.contains(allocator.allocate()));
+        }
+    }
+
+    @Test
+    void aReleasedIdIsFreeAgain() {
+        ShortIdAllocator allocator = allocator(List.of("AAAAAA"), List.of(), 6);
+        String id = allocator.allocate();
+        assertEquals(2, allocator.size());
+
+        allocator.release(id);
+        allocator.release("AAAAAA");
+        assertEquals(0, allocator.size());
+    }
+
+    @Test
+    void idsOfAnotherFormatAreIgnored() {
+        ShortIdAllocator allocator = allocator(List.of("short", "has-dash", "toolongid"), List.of(), 6);
+        assertEquals(0, allocator.size());
+        allocator.release("??????");
+        allocator.reserve(null);
+        assertEquals(0, allocator.size());
+    }
+
+    @Test
+    void everyCharacterIsEquallyLikely() {
+        // Chi-square over the first character: 61 degrees of freedom, 140 is p < 1e-8 for a fair draw
+        ShortIdAllocator allocator = allocator(List.of(), List.of(), 6);
+        int draws = ALPHABET.length() * 2000;
+        int[] counts = new int[ALPHABET.length()];
+        for (int i = 0; i < draws; i++) {
+            String id = allocator.allocate();
+            counts[ALPHABET.indexOf(id.charAt(0))]++;
+            allocator.release(id);
+        }
+        double expected = (double) draws / counts.length;
+        double chiSquare = 0;
+        for (int count : counts) chiSquare += (count - expected) * (count - expected) / expected;
+        assertTrue(chiSquare < 140, "chi-square " + chiSquare);
+    }
+
+    @Test
+    void lazyLoadingThatFailedRefusesToHandOutIds() {
+        FileRepository repository = mock(FileRepository.class);
+        when(repository.findAllIds()).thenThrow(new IllegalStateException("database is gone"));
+        ShortIdAllocator allocator = new ShortIdAllocator(repository, 6, true);
+
+        assertThrows(IllegalStateException.class, allocator::allocate);
+    }
+
+    @Test
+    void lengthsOutsideTheSupportedRangeAreRejected() {
+        FileRepository repository = mock(FileRepository.class);
+        assertThrows(IllegalArgumentException.class, () -> new ShortIdAllocator(repository, 3, false));
+        assertThrows(IllegalArgumentException.class, () -> new ShortIdAllocator(repository, 11, false));
+    }
+
+    private static ShortIdAllocator allocator(List<String> files, List<String> bundles, int length) {
+        FileRepository repository = mock(FileRepository.class);
+        when(repository.findAllIds()).thenReturn(files);
+        when(repository.findAllBundleIds()).thenReturn(bundles);
+        return new ShortIdAllocator(repository, length, false);
+    }
+}
@@ -0,0 +1,83 @@
+package com.dropzone.api.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageVolumesTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void blobsGoTwoFolderLevelsDownByTheirLeadingHex() {
+        Path volume = dir.resolve("v1");
+        assertEquals(volume.resolve("55/0e/550e8400-e29b-41d4-a716-446655440000"),
+                StorageVolumes.shardPath(volume, "550e8400-e29b-41d4-a716-446655440000"));
+        // Deduplicated blobs shard by their hash, after the prefix
+        assertEquals(volume.resolve("ab/cd/cas-ABCDEF0123"), StorageVolumes.shardPath(volume, "cas-ABCDEF0123"));
+
+        // Other names still get two levels of two hex digits, the same ones every time
+        Path odd = StorageVolumes.shardPath(volume, "not-hex-at-all");
+        assertEquals(volume, odd.getParent().getParent().getParent());
+        assertTrue(volume.relativize(odd.getParent()).toString().matches("[0-9a-f]{2}[/\\\\][0-9a-f]{2}"), odd.toString());
+        assertEquals(odd, StorageVolumes.shardPath(volume, "not-hex-at-all"));
+    }
+
+    @Test
+    void aBlobIsFoundAndDeletedOnWhicheverVolumeItIsOn() throws Exception {
+        StorageVolumes volumes = volumes("v1", "v2");
+        Path allocated = volumes.allocate("0123abcd-blob", 0);
+        assertTrue(Files.isDirectory(allocated.getParent()));
+        Files.write(allocated, new byte[]{1});
+        assertEquals(allocated, volumes.locate("0123abcd-blob"));
+
+        // Put on the second volume by hand: still found there
+        Path elsewhere = StorageVolumes.shardPath(volumes.getVolumes().get(1), "4567abcd-blob");
+        Files.createDirectories(elsewhere.getParent());
+        Files.write(elsewhere, new byte[]{2});
+        assertEquals(elsewhere, volumes.locate("4567abcd-blob"));
+
+        volumes.delete("0123abcd-blob");
+        volumes.delete("4567abcd-blob");
+        assertFalse(Files.exists(allocated));
+        assertFalse(Files.exists(elsewhere));
+
+        // A missing blob resolves to where it would be on the first volume
+        assertEquals(StorageVolumes.shardPath(volumes.primary(), "89abcdef-gone"), volumes.locate("89abcdef-gone"));
+    }
+
+    @Test
+    void flatBlobsMoveIntoTheirShardAndStayReadableMeanwhile() throws Exception {
+        StorageVolumes volumes = volumes("v1");
+        Path flat = volumes.primary().resolve("cafebabe-old-blob");
+        Files.write(flat, new byte[]{1, 2, 3});
+        Path hidden = Files.write(volumes.primary().resolve(".dedup-secret"), new byte[]{9});
+        Path part = Files.write(volumes.primary().resolve("upload-1234.part"), new byte[]{8});
+
+        // Before the move the flat name is the one that exists
+        assertEquals(flat, volumes.locate("cafebabe-old-blob"));
+
+        volumes.migrateFlatBlobs();
+        Path shard = StorageVolumes.shardPath(volumes.primary(), "cafebabe-old-blob");
+        for (int i = 0; i < 100 && !Files.exists(shard); i++) Thread.sleep(50);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(shard));
+        assertEquals(shard, volumes.locate("cafebabe-old-blob"));
+        // The old name is kept for a grace period: a download that looked it up a moment ago can open it
+        assertTrue(Files.exists(flat));
+        assertTrue(Files.exists(hidden));
+        assertTrue(Files.exists(part));
+    }
+
+    private StorageVolumes volumes(String first, String... more) {
+        return new StorageVolumes(dir.resolve(first).toString(),
+                Stream.of(more).map(name -> dir.resolve(name).toString()).toList(), DataSize.ofBytes(0));
+    }
+}
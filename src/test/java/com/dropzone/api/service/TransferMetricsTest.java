@@ -0,0 +1,105 @@
+package com.dropzone.api.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferMetricsTest {
+
+    private SimpleMeterRegistry registry;
+    private TransferMetrics metrics;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        metrics = new TransferMetrics(registry);
+    }
+
+    @Test
+    void aTransferIsRecordedOnceWhenItEnds() {
+        try (TransferMetrics.Transfer upload = metrics.upload("stream")) {
+            assertEquals(1, metrics.activeTransfers());
+            assertEquals(1, registry.get("dropzone.transfers.active").tag("direction", "upload").gauge().value());
+            upload.success(2_000_000);
+        }
+
+        assertEquals(0, metrics.activeTransfers());
+        assertEquals(1, registry.get("dropzone.upload").tags("lane", "stream", "outcome", "success").timer().count());
+        assertEquals(2_000_000, registry.get("dropzone.upload.bytes").tag("lane", "stream").summary().totalAmount());
+        // 1MB or more: it also counts towards the speed histogram
+        assertEquals(1, registry.get("dropzone.transfer.mbps").tag("direction", "upload").summary().count());
+    }
+
+    @Test
+    void aTransferClosedWithoutSuccessIsAFailureWithNoBytes() {
+        try (TransferMetrics.Transfer upload = metrics.upload("chunk")) {
+            // The body broke off
+        }
+
+        assertEquals(1, registry.get("dropzone.upload").tags("lane", "chunk", "outcome", "failure").timer().count());
+        assertNull(registry.find("dropzone.upload.bytes").tag("lane", "chunk").summary());
+        assertNull(registry.find("dropzone.transfer.mbps").summary());
+    }
+
+    @Test
+    void aMeteredDownloadCountsWhatWasReadAndItsFirstByteOnce() throws IOException {
+        Resource resource = metrics.meterDownload(new ByteArrayResource(new byte[5000]), "stream", System.nanoTime());
+
+        // Two ranges of one response: two transfers, one time-to-first-byte
+        for (int i = 0; i < 2; i++) {
+            try (InputStream in = resource.getInputStream()) {
+                assertEquals(1, metrics.activeTransfers());
+                in.readNBytes(1000);
+            }
+        }
+
+        assertEquals(0, metrics.activeTransfers());
+        assertEquals(2, registry.get("dropzone.download").tags("lane", "stream", "outcome", "success").timer().count());
+        assertEquals(2000, registry.get("dropzone.download.bytes").tag("lane", "stream").summary().totalAmount());
+        assertEquals(1, registry.get("dropzone.download.ttfb").timer().count());
+    }
+
+    @Test
+    void aDownloadThatFailsMidStreamIsAFailure() throws IOException {
+        InputStream broken = new SequenceInputStream(new ByteArrayInputStream(new byte[100]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Disk gone");
+            }
+        });
+        Resource resource = metrics.meterDownload(new InputStreamResource(broken), "gzip", System.nanoTime());
+
+        try (InputStream in = resource.getInputStream()) {
+            assertThrows(IOException.class, in::readAllBytes);
+        }
+
+        assertEquals(1, registry.get("dropzone.download").tags("lane", "gzip", "outcome", "failure").timer().count());
+        assertEquals(0, metrics.activeTransfers());
+    }
+
+    @Test
+    void taggedCountersAreCreatedOnceAndAddUp() {
+        metrics.recordScrub("ok");
+        metrics.recordScrub("ok");
+        metrics.recordScrub("corrupt");
+        metrics.recordRefusedUpload(507);
+        metrics.recordJanitorPass("orphans", System.nanoTime(), 0);
+        metrics.recordJanitorPass("orphans", System.nanoTime(), 3);
+
+        assertEquals(2, registry.get("dropzone.scrub.files").tag("result", "ok").counter().count());
+        assertEquals(1, registry.get("dropzone.scrub.files").tag("result", "corrupt").counter().count());
+        assertEquals(1, registry.get("dropzone.uploads.refused").tag("status", "507").counter().count());
+        assertEquals(2, registry.get("dropzone.janitor.pass").tag("task", "orphans").timer().count());
+        assertEquals(3, registry.get("dropzone.janitor.deleted").tag("task", "orphans").counter().count());
+    }
+}
@@ -0,0 +1,117 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.repository.FileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class UploadAdmissionTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private final AtomicLong free = new AtomicLong(); // What the one volume reports as free
+    private StorageVolumes volumes;
+    private FileRepository fileRepository;
+    private ExpiryScheduler expiryScheduler;
+
+    @BeforeEach
+    void setUp() {
+        volumes = mock(StorageVolumes.class);
+        when(volumes.room()).thenAnswer(invocation -> new long[]{free.get()});
+        fileRepository = mock(FileRepository.class);
+        expiryScheduler = mock(ExpiryScheduler.class);
+    }
+
+    @Test
+    void aReservationShrinksAsItsBytesAreWrittenAndTheRestGoesBackOnce() throws Exception {
+        free.set(100 * MB);
+        UploadAdmission admission = admission(0);
+        UploadAdmission.Reservation reservation = admission.admit(10 * MB);
+        assertEquals(10 * MB, admission.getOutstanding());
+
+        // On disk now: counted by the volume's free space, no longer by the reservation
+        reservation.written(4 * MB);
+        assertEquals(6 * MB, admission.getOutstanding());
+
+        reservation.close();
+        assertEquals(0, admission.getOutstanding());
+        reservation.close();
+        reservation.written(MB);
+        assertEquals(0, admission.getOutstanding());
+    }
+
+    @Test
+    void anUploadOfUnknownLengthIsRefusedOnceItsNextStepDoesNotFit() throws Exception {
+        free.set(20 * MB);
+        UploadAdmission admission = admission(0);
+        UploadAdmission.Reservation reservation = admission.admit(-1);
+        assertEquals(8 * MB, admission.getOutstanding());
+
+        // Two steps go through, the disk filling up behind them
+        reservation.written(8 * MB);
+        free.addAndGet(-8 * MB);
+        reservation.written(8 * MB);
+        free.addAndGet(-8 * MB);
+        assertEquals(0, admission.getOutstanding());
+
+        // 4MB left: the third step is refused before the disk is full
+        UploadAdmission.Refused refused = assertThrows(UploadAdmission.Refused.class, () -> reservation.written(1));
+        assertEquals(507, refused.getStatus());
+        assertEquals(0, admission.getOutstanding());
+        reservation.close();
+        assertEquals(0, admission.getOutstanding());
+    }
+
+    @Test
+    void tooBigAloneIs507AndTooBigNextToOtherUploadsIs429() throws Exception {
+        free.set(10 * MB);
+        when(expiryScheduler.untilNext()).thenReturn(Duration.ofMinutes(5));
+        UploadAdmission admission = admission(0);
+
+        try (UploadAdmission.Reservation first = admission.admit(6 * MB)) {
+            UploadAdmission.Refused busy = assertThrows(UploadAdmission.Refused.class, () -> admission.admit(6 * MB));
+            assertEquals(429, busy.getStatus());
+            assertEquals(30, busy.getRetryAfterSeconds());
+
+            UploadAdmission.Refused full = assertThrows(UploadAdmission.Refused.class, () -> admission.admit(11 * MB));
+            assertEquals(507, full.getStatus());
+            assertEquals(300, full.getRetryAfterSeconds()); // The next expiry frees space
+        }
+        admission.admit(6 * MB).close();
+    }
+
+    @Test
+    void theQuotaIsSeededOnceAndKeepsWhatIsStoredWhileItSums() throws Exception {
+        free.set(1024 * MB);
+        UploadAdmission admission = admission(100 * MB);
+        admission.stored(30 * MB); // Saved before the sum: the table has it already
+        when(fileRepository.sumSizes()).thenAnswer(invocation -> {
+            admission.stored(10 * MB); // Saved while the sum runs, after its snapshot
+            return 80 * MB;
+        });
+
+        // 90MB on record
+        UploadAdmission.Refused refused = assertThrows(UploadAdmission.Refused.class, () -> admission.admit(11 * MB));
+        assertEquals(507, refused.getStatus());
+        admission.admit(10 * MB).close();
+
+        admission.deleted(40 * MB);
+        admission.admit(50 * MB).close();
+        verify(fileRepository, times(1)).sumSizes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private UploadAdmission admission(long quota) {
+        ObjectProvider<FileCleanupService> janitor = mock(ObjectProvider.class);
+        when(janitor.getObject()).thenReturn(mock(FileCleanupService.class));
+        return new UploadAdmission(volumes, fileRepository, expiryScheduler, mock(TransferMetrics.class), janitor,
+                DataSize.ofBytes(quota), Duration.ofSeconds(30));
+    }
+}
@@ -0,0 +1,129 @@
+package com.dropzone.api.service;
+
+import com.dropzone.api.model.FileMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class ZipBundleServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private StorageService storageService;
+    private ZipBundleService bundles;
+
+    @BeforeEach
+    void setUp() {
+        storageService = mock(StorageService.class);
+        bundles = new ZipBundleService(storageService);
+    }
+
+    @AfterEach
+    void tearDown() {
+        bundles.shutdown();
+    }
+
+    @Test
+    void mediaIsStoredAndTextIsDeflated() throws IOException {
+        byte[] video = random(200_000);
+        byte[] text = "the same line over and over\n".repeat(5000).getBytes(StandardCharsets.UTF_8);
+        FileMetadata clip = member("clip", "clip.mp4", "video/mp4", video, true);
+        FileMetadata notes = member("notes", "notes.txt", "text/plain", text, true);
+
+        try (ZipFile zip = write(List.of(clip, notes))) {
+            ZipEntry stored = zip.getEntry("clip.mp4");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals(video.length, stored.getCompressedSize());
+            assertArrayEquals(video, read(zip, stored));
+
+            ZipEntry deflated = zip.getEntry("notes.txt");
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            assertTrue(deflated.getCompressedSize() < text.length / 10);
+            assertArrayEquals(text, read(zip, deflated));
+        }
+    }
+
+    @Test
+    void mediaWithoutARecordedCrcIsCopiedAsDeflated() throws IOException {
+        // A chunked upload has no CRC-32 to put in the entry header up front
+        byte[] video = random(100_000);
+        try (ZipFile zip = write(List.of(member("chunked", "chunked.mp4", "video/mp4", video, false)))) {
+            ZipEntry entry = zip.getEntry("chunked.mp4");
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertArrayEquals(video, read(zip, entry));
+        }
+    }
+
+    @Test
+    void aStoredMemberThatDoesNotMatchItsCrcFailsTheBundle() throws IOException {
+        byte[] video = random(50_000);
+        FileMetadata clip = member("clip", "clip.mp4", "video/mp4", video, true);
+        video[1234] ^= 1; // The blob no longer holds what was uploaded
+
+        assertThrows(ZipException.class, () -> bundles.write(List.of(clip), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void entryNamesStayInsideTheArchiveAndDontCollide() {
+        Set<String> taken = new HashSet<>();
+        assertEquals("etc/passwd", ZipBundleService.entryName("/../etc/passwd", taken));
+        assertEquals("a.txt", ZipBundleService.entryName("a.txt", taken));
+        assertEquals("a (1).txt", ZipBundleService.entryName("a.txt", taken));
+        assertEquals("a (2).txt", ZipBundleService.entryName("..\\a.txt", taken));
+        assertEquals("file", ZipBundleService.entryName(null, taken));
+    }
+
+    private ZipFile write(List<FileMetadata> members) throws IOException {
+        Path file = dir.resolve("bundle.zip");
+        try (var out = Files.newOutputStream(file)) {
+            bundles.write(members, out);
+        }
+        return new ZipFile(file.toFile());
+    }
+
+    private FileMetadata member(String id, String filename, String contentType, byte[] content, boolean withCrc)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        FileMetadata member = FileMetadata.builder().id(id).originalFilename(filename).contentType(contentType)
+                .size(content.length).crc32(withCrc ? crc.getValue() : null)
+                .uploadTime(LocalDateTime.now()).build();
+        // Served from the array itself, so a test can change the bytes after the CRC was taken
+        when(storageService.loadAsResource(id)).thenAnswer(invocation -> new ByteArrayResource(content));
+        return member;
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}